@@ -5,192 +5,331 @@ import android.app.Activity;
 import android.app.AlertDialog;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.location.LocationManager;
 import android.os.Build;
-import android.os.Handler;
 import android.support.annotation.RequiresApi;
 import android.util.Log;
 import android.widget.Toast;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.HashSet;
-import java.util.Set;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * BLE Connection
  */
 
 @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
-public class BleConnection {
+public class BleConnection implements EventSink {
 
     private static final String TAG = "BleConnection";
     private final Activity mContext;
 
     private BluetoothAdapter mBluetoothAdapter;
-    private BluetoothDevice mDevice;
-    private BluetoothGatt mGatt;
-    private BluetoothGattCharacteristic mEventCharacteristic;
+    private BleScanner mScanner;
+    private volatile DeviceSelectionPolicy mSelectionPolicy =
+            new StrongestSignalPolicy(SCAN_SETTLE_MS, TimeUnit.MILLISECONDS, RSSI_THRESHOLD);
+    private volatile long mScanStartedAt;
+    private volatile RobotTransport mTransport;
 
     private static final String DEVICE_NAME = "BBC micro:bit";
     private static final int RSSI_THRESHOLD = -100;
+    private static final long SCAN_SETTLE_MS = 250;
     private static final int REQUEST_ENABLE_BT = 1;
+    private static final long SCAN_TIMEOUT_MS = 10000;
+    private static final long DIRECT_CONNECT_TIMEOUT_MS = 4000;
 
-    private Timer mScanTimer;
-    private static UUID MICROBIT_SERVICE =     UUID.fromString("e95d93af-251d-470a-a062-fa1922dfa9a8");
-    private static UUID EVENT_CHARACTERISTIC = UUID.fromString("e95d5404-251d-470a-a062-fa1922dfa9a8");
-
-    private static String CLIENT_CHARACTERISTIC_CONFIG = "00002902-0000-1000-8000-00805f9b34fb";
+    private volatile Timer mScanTimer;
     private boolean mWriteWithAnswer = false;
 
-    private static int MES_DPAD_CONTROLLER_ID = 1104;
-    public static int MES_DPAD_BUTTON_1_DOWN = 9; // forward
-    public static int MES_DPAD_BUTTON_1_UP = 10; // stop
-    public static int MES_DPAD_BUTTON_2_DOWN = 11; // backward
-    public static int MES_DPAD_BUTTON_3_DOWN = 13; // left
-    public static int MES_DPAD_BUTTON_4_DOWN = 15; // right
+    private static int MES_DPAD_CONTROLLER_ID = MicroBitEvents.MES_DPAD_CONTROLLER_ID;
+    public static int MES_DPAD_BUTTON_1_DOWN = MicroBitEvents.MES_DPAD_BUTTON_1_DOWN; // forward
+    public static int MES_DPAD_BUTTON_1_UP = MicroBitEvents.MES_DPAD_BUTTON_1_UP; // stop
+    public static int MES_DPAD_BUTTON_2_DOWN = MicroBitEvents.MES_DPAD_BUTTON_2_DOWN; // backward
+    public static int MES_DPAD_BUTTON_3_DOWN = MicroBitEvents.MES_DPAD_BUTTON_3_DOWN; // left
+    public static int MES_DPAD_BUTTON_4_DOWN = MicroBitEvents.MES_DPAD_BUTTON_4_DOWN; // right
 
     public enum State {IDLE, CONNECTING, CONNECTED};
-    private Set<ConnectionListener> listenerList = new HashSet<>();
-    private State state = State.IDLE;
+    private ListenerRegistry<ConnectionListener> listenerList = new ListenerRegistry<>();
+    private final ListenerRegistry<LinkStatsListener> mStatsListeners = new ListenerRegistry<>();
 
-    private boolean mConnected;
-    private boolean mWritten;
+    private static final long LINK_STATS_INTERVAL_MS = 1000;
+    private ScheduledFuture<?> mStatsSampling;
+    private volatile LinkStats mLinkStats;
 
-    public BleConnection(Activity context) {
-        this.mContext = context;
-    }
+    private static final int COMMAND_QUEUE_CAPACITY = 16;
+    private final CoalescingCommandQueue mCommandQueue = new CoalescingCommandQueue(COMMAND_QUEUE_CAPACITY);
+    private final CommandWriter mCommandWriter = new CommandWriter(mCommandQueue, new PacketWriter() {
+        @Override
+        public boolean writePacket(byte[] data, int length) {
+            RobotTransport transport = mTransport;
+            ConnectionSupervisor.State state = mSupervisor.getState();
+            if (state != ConnectionSupervisor.State.CONNECTED
+                    || transport == null || !transport.writePacket(data, length)) {
+                return false;
+            }
+            FlightRecorder recorder = mFlightRecorder;
+            if (recorder != null) {
+                recorder.recordPacket(FlightRecorder.Direction.SENT, data, length, state.ordinal());
+            }
+            return true;
+        }
+    });
+
+    private static final int INBOUND_EVENT_CAPACITY = 256;
+    private final EventRingBuffer mInboundEvents = new EventRingBuffer(INBOUND_EVENT_CAPACITY);
+    private volatile int[] mEventRequirements = new int[0];
+    private volatile boolean mEchoEnabled;
+
+    private static final String FLIGHT_RECORDER_FILE = "flight.rec";
+    private static final int FLIGHT_RECORDER_CAPACITY = 65536;
+    // opened on the scheduler thread, null until then
+    private volatile FlightRecorder mFlightRecorder;
+    private static final long CLOSE_TIMEOUT_MS = 500;
+
+    private final DeviceCache mDeviceCache;
+    private volatile RobotTransport mCustomTransport;
+    private volatile boolean mDirectConnect;
+    private volatile long mConnectStartedAt;
+    private final LatencyStats mDirectConnectTime = new LatencyStats();
+    private final LatencyStats mScanConnectTime = new LatencyStats();
+
+    private final LinkStatsSampler mStatsSampler = new LinkStatsSampler(mCommandWriter);
+
+    private static final long LINK_MONITOR_INTERVAL_MS = 500;
+    private final LinkMonitor mLinkMonitor = new LinkMonitor(mCommandWriter);
+    private ScheduledFuture<?> mLinkMonitoring;
+
+    // time the robot must stand still before the link switches to the idle priority
+    private static final long IDLE_PRIORITY_DELAY_MS = 2000;
+    private final MotionTracker mMotion = new MotionTracker();
+    private boolean mLowLatency;
+    private volatile int mPreferredMtu = GattTransport.PREFERRED_MTU;
+    private volatile boolean mIdleLowPower;
+
+    private final ScheduledExecutorService mScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "BleSupervisor");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Heartbeat mHeartbeat = new Heartbeat(new EventSink() {
+        @Override
+        public void sendPacket(int eventCode, int value) {
+            enqueue(eventCode, value, 0);
+        }
+    }, mCommandWriter, mMotion, mScheduler);
+
+    private final ConnectionSupervisor mSupervisor = new ConnectionSupervisor(new ConnectionSupervisor.Link() {
+
+        @Override
+        public void openLink(boolean reconnect) {
+            if (mCustomTransport != null) {
+                openTransport(mCustomTransport);
+                return;
+            }
+            String address = mDeviceCache.getAddress();
+            if (reconnect && address != null) {
+                Log.d(TAG, "Reconnecting to " + address);
+                mDirectConnect = true;
+                openGattTransport(mBluetoothAdapter.getRemoteDevice(address), false);
+            } else if (address != null) {
+                connectDirect(address);
+            } else if (reconnect) {
+                // retries run on the scheduler thread, the scan and its dialog need the main thread
+                mContext.runOnUiThread(new Runnable() {
+                    public void run() {
+                        if (mSupervisor.getState() == ConnectionSupervisor.State.RECONNECTING && !startScan()) {
+                            mSupervisor.onLinkDown();
+                        }
+                    }
+                });
+            } else if (!startScan()) {
+                mSupervisor.onLinkDown();
+            }
+        }
 
-    private BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void closeLink() {
+            if (mScanner != null) {
+                mScanner.stop();
+            }
+            cancelScanTimer();
+            RobotTransport transport = mTransport;
+            if (transport != null) {
+                transport.setCallback(null);
+                transport.close();
+            }
+        }
+
+        @Override
+        public void pauseSending() {
+            mCommandWriter.stop();
+        }
 
         @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            super.onConnectionStateChange(gatt, status, newState);
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                Log.d(TAG, "onConnectionStateChange: STATE_CONNECTED");
-                gatt.discoverServices();
-                mGatt = gatt;
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                Log.d(TAG, "onConnectionStateChange: STATE_DISCONNECTED");
-                // This is necessary to handle a disconnect on the rover side
-                mBluetoothAdapter.stopLeScan(mLeScanCallback);
-                mConnected = false;
-                state = State.IDLE;
-                notifyListener();
-            } else {
-                Log.d(TAG, "onConnectionStateChange: else: " + newState);
-                mBluetoothAdapter.stopLeScan(mLeScanCallback);
-                mConnected = false;
-                state = State.IDLE;
-                notifyListener();
+        public void resumeSending(boolean afterReconnect, int safeEventCode, int safeValue) {
+            mCommandQueue.clear();
+            if (afterReconnect) {
+                enqueue(safeEventCode, safeValue, 0);
             }
+            mCommandWriter.setMaxPacketSize(mTransport.getMtu() - 3);
+            mCommandWriter.start();
         }
 
         @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            super.onServicesDiscovered(gatt, status);
-            if (status != BluetoothGatt.GATT_SUCCESS) {
-                gatt.disconnect();
-            } else {
-                BluetoothGattService mbService = gatt.getService(MICROBIT_SERVICE);
-                mEventCharacteristic = mbService.getCharacteristic(EVENT_CHARACTERISTIC);
-                gatt.setCharacteristicNotification(mEventCharacteristic, true);
-//                BluetoothGattDescriptor descriptor = mEventCharacteristic.getDescriptor(UUID.fromString(CLIENT_CHARACTERISTIC_CONFIG));
-//                Log.d(TAG, "Descriptor: " + descriptor.toString());
-//                if(descriptor != null) {
-//                    descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-//                    gatt.writeDescriptor(descriptor);
-//                } else {
-//                    Log.d(TAG, "Descriptor is null")
-//                }
-                Log.d(TAG, "Connected!");
-                mConnected = true;
-                mWritten = false;
-                state = State.CONNECTED;
-                notifyListener();
+        public void onStateChanged(ConnectionSupervisor.State state) {
+            Log.d(TAG, "State: " + state);
+            FlightRecorder recorder = mFlightRecorder;
+            if (recorder != null) {
+                recorder.record(FlightRecorder.Direction.STATE, 0, 0, state.ordinal());
+            }
+            updateLinkMonitoring();
+            updateStatsSampling();
+            notifyListener();
+        }
+    }, mScheduler, System.nanoTime());
+
+    public BleConnection(Activity context) {
+        this.mContext = context;
+        this.mDeviceCache = new DeviceCache(context);
+        // creating and scanning the ring file takes too long for the main thread
+        mScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                FlightRecorder recorder = openFlightRecorder(new File(mContext.getFilesDir(), FLIGHT_RECORDER_FILE));
+                mFlightRecorder = recorder;
+                if (recorder != null && mScheduler.isShutdown()) {
+                    // closed meanwhile, a new connection opens the file next
+                    closeFlightRecorder();
+                }
             }
+        });
+    }
+
+    private static FlightRecorder openFlightRecorder(File file) {
+        try {
+            return new FlightRecorder(file, FLIGHT_RECORDER_CAPACITY);
+        } catch (IOException e) {
+            Log.w(TAG, "Flight recorder not available", e);
+            return null;
         }
+    }
+
+    private void closeFlightRecorder() {
+        FlightRecorder recorder = mFlightRecorder;
+        mFlightRecorder = null;
+        if (recorder != null) {
+            try {
+                recorder.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Flight recorder not closed", e);
+            }
+        }
+    }
+
+    private final RobotTransport.Callback mTransportCallback = new RobotTransport.Callback() {
 
         @Override
-        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            super.onCharacteristicWrite(gatt, characteristic, status);
-            Log.d(TAG, "On write call for characteristic: " + characteristic.getUuid().toString());
-            mWritten = true;
+        public void onLinkUp() {
+            cancelScanTimer();
+            if (mSupervisor.getState() == ConnectionSupervisor.State.CONNECTING) {
+                long connectTime = System.nanoTime() - mConnectStartedAt;
+                (mDirectConnect ? mDirectConnectTime : mScanConnectTime).record(connectTime);
+                Log.d(TAG, "Connected in " + TimeUnit.NANOSECONDS.toMillis(connectTime) + " ms"
+                        + (mDirectConnect ? " (direct)" : " (scan)"));
+            }
+            RobotTransport transport = mTransport;
+            if (transport instanceof GattTransport) {
+                BluetoothDevice device = ((GattTransport) transport).getDevice();
+                mDeviceCache.save(device.getAddress(), device.getName());
+            }
+            mSupervisor.onLinkUp();
         }
 
         @Override
-        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            super.onCharacteristicRead(gatt, characteristic, status);
-            Log.d(TAG, "On read call for characteristic: " + characteristic.getUuid().toString());
+        public void onLinkDown() {
+            if (mDirectConnect && mCustomTransport == null
+                    && mSupervisor.getState() == ConnectionSupervisor.State.CONNECTING) {
+                // the cached device did not answer, look for a micro:bit instead
+                fallBackToScan();
+                return;
+            }
+            // This is necessary to handle a disconnect on the rover side
+            if (mScanner != null) {
+                mScanner.stop();
+            }
+            mSupervisor.onLinkDown();
         }
 
         @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-            super.onCharacteristicChanged(gatt, characteristic);
-            Log.d(TAG, "On changed call for characteristic: " + characteristic.getUuid().toString());
+        public void onWriteComplete(boolean success) {
+            mCommandWriter.onWriteComplete(success);
         }
 
         @Override
-        public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-            super.onDescriptorRead(gatt, descriptor, status);
-            Log.d(TAG, "On read call for descriptor: " + descriptor.getUuid().toString());
+        public void onRssiRead(int rssi) {
+            mLinkMonitor.onRssi(rssi);
         }
 
         @Override
-        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-            super.onDescriptorWrite(gatt, descriptor, status);
-            Log.d(TAG, "On write call for descriptor: " + descriptor.getUuid().toString());
+        public void onPacketReceived(byte[] data, int length) {
+            long now = System.nanoTime();
+            FlightRecorder recorder = mFlightRecorder;
+            if (recorder != null) {
+                recorder.recordPacket(FlightRecorder.Direction.RECEIVED, data, length,
+                        mSupervisor.getState().ordinal());
+            }
+            for (int offset = 0; offset + EventCodec.FRAME_SIZE <= length; offset += EventCodec.FRAME_SIZE) {
+                int eventCode = EventCodec.decodeEventCode(data, offset);
+                int value = EventCodec.decodeValue(data, offset);
+                if (eventCode == MicroBitEvents.MOVEMINI_ECHO_ID) {
+                    mCommandWriter.getLatencyTracker().onEcho(value, now);
+                }
+                mInboundEvents.publish(eventCode, value, now);
+            }
         }
     };
 
-    private BluetoothAdapter.LeScanCallback mLeScanCallback = new BluetoothAdapter.LeScanCallback() {
-        @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private final BleScanner.Listener mScanListener = new BleScanner.Listener() {
         @Override
-        public void onLeScan(BluetoothDevice device, int rssi, byte[] anounce) {
-            if (device != null && device.getName() != null) {
-                Log.d(TAG, "Scanned device \"" + device.getName() + "\" RSSI: " + rssi);
-
-                if (device.getName().startsWith(DEVICE_NAME) && rssi> RSSI_THRESHOLD) {
-                    mBluetoothAdapter.stopLeScan(this);
-                    if (mScanTimer != null) {
-                        mScanTimer.cancel();
-                        mScanTimer = null;
-                    }
-                    state = State.CONNECTING;
-                    mDevice = device;
-                    mContext.runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            mDevice.connectGatt(mContext, true, mGattCallback);
-                        }
-                    });
-                }
+        public void onRobotSeen(RobotInfo robot, boolean found) {
+            RobotInfo selected = mSelectionPolicy.select(mScanner.getRobots(), mScanStartedAt, System.nanoTime());
+            if (selected != null && mScanner.stop()) {
+                Log.d(TAG, "Selected " + selected);
+                cancelScanTimer();
+                openGattTransport(mBluetoothAdapter.getRemoteDevice(selected.getAddress()), true);
             }
         }
     };
 
     @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
     public void connect() {
-        if (state != State.IDLE) {
+        if (mSupervisor.getState() != ConnectionSupervisor.State.IDLE) {
             Toast.makeText(mContext, "Connection already started", Toast.LENGTH_SHORT).show();
             return;
         }
 
         final BluetoothManager bluetoothManager = (BluetoothManager) mContext.getSystemService(Context.BLUETOOTH_SERVICE);
         mBluetoothAdapter = bluetoothManager.getAdapter();
+        if (mBluetoothAdapter != null && mScanner == null) {
+            mScanner = new BleScanner(mBluetoothAdapter, DEVICE_NAME);
+        }
 
         if (mBluetoothAdapter == null || !mBluetoothAdapter.isEnabled()) {
             Intent enableBtIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
@@ -199,34 +338,146 @@ public class BleConnection {
             return;
         }
 
-        if (!checkLocationSettings()) {
-            return;
-        }
+        mCustomTransport = null;
+        mConnectStartedAt = System.nanoTime();
+        mSupervisor.connect();
+    }
 
-        mBluetoothAdapter.stopLeScan(mLeScanCallback);
-        mBluetoothAdapter.startLeScan(mLeScanCallback);
+    /**
+     * Connects to the last known micro:bit without scanning. Falls back to a scan if it does
+     * not connect within {@link #DIRECT_CONNECT_TIMEOUT_MS}.
+     */
+    private void connectDirect(String address) {
+        Log.d(TAG, "Connecting directly to " + address);
+        mDirectConnect = true;
+        openGattTransport(mBluetoothAdapter.getRemoteDevice(address), false);
 
-        if (mScanTimer != null) {
-            mScanTimer.cancel();
+        cancelScanTimer();
+        mScanTimer = new Timer();
+        mScanTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                fallBackToScan();
+            }
+        }, DIRECT_CONNECT_TIMEOUT_MS);
+    }
+
+    private void fallBackToScan() {
+        Log.d(TAG, "Direct connect failed, scanning");
+        // the direct connect timeout must not start a second scan later
+        cancelScanTimer();
+        mDirectConnect = false;
+        RobotTransport transport = mTransport;
+        if (transport != null) {
+            transport.setCallback(null);
+            transport.close();
         }
+        mContext.runOnUiThread(new Runnable() {
+            public void run() {
+                if (mSupervisor.getState() == ConnectionSupervisor.State.CONNECTING && !startScan()) {
+                    mSupervisor.onLinkDown();
+                }
+            }
+        });
+    }
+
+    private boolean startScan() {
+        if (!checkLocationSettings()) {
+            return false;
+        }
+        mDirectConnect = false;
 
+        mScanStartedAt = System.nanoTime();
+        mScanner.start(mScanListener);
+
+        cancelScanTimer();
         mScanTimer = new Timer();
         mScanTimer.schedule(new TimerTask() {
             @Override
             public void run() {
-                mBluetoothAdapter.stopLeScan(mLeScanCallback);
-                state = State.IDLE;
-                notifyListener();
+                mScanner.stop();
+                mSupervisor.onLinkDown();
                 mContext.runOnUiThread(new Runnable() {
                     public void run() {
                         Toast.makeText(mContext, "BLE connection timeout", Toast.LENGTH_LONG).show();
                     }
                 });
             }
-        }, 10000);
+        }, SCAN_TIMEOUT_MS);
+        return true;
+    }
 
-        state = State.CONNECTING;
-        notifyListener();
+    private void cancelScanTimer() {
+        // also called from the timer and the GATT callback threads
+        Timer timer = mScanTimer;
+        mScanTimer = null;
+        if (timer != null) {
+            timer.cancel();
+        }
+    }
+
+    private void openGattTransport(BluetoothDevice device, boolean autoConnect) {
+        GattTransport transport = new GattTransport(mContext, device, autoConnect);
+        transport.setWriteWithResponse(mWriteWithAnswer);
+        transport.setPreferredMtu(mPreferredMtu);
+        transport.setIdleLowPower(mIdleLowPower);
+        int[] requirements = mEventRequirements;
+        if (mEchoEnabled) {
+            requirements = Arrays.copyOf(requirements, requirements.length + 1);
+            requirements[requirements.length - 1] = MicroBitEvents.MOVEMINI_ECHO_ID;
+        }
+        transport.setEventRequirements(requirements);
+        openTransport(transport);
+    }
+
+    /**
+     * Sets how the micro:bit to connect to is chosen when scanning. The default waits
+     * {@link #SCAN_SETTLE_MS} and takes the strongest smoothed signal.
+     */
+    public void setSelectionPolicy(DeviceSelectionPolicy policy) {
+        mSelectionPolicy = policy;
+    }
+
+    /**
+     * Forgets the cached micro:bit, the next {@link #connect()} scans again.
+     */
+    public void forgetDevice() {
+        mDeviceCache.clear();
+    }
+
+    /**
+     * Time from {@link #connect()} until CONNECTED for connections to the cached device.
+     */
+    public LatencyStats getDirectConnectTime() {
+        return mDirectConnectTime;
+    }
+
+    /**
+     * Time from {@link #connect()} until CONNECTED for connections that needed a scan.
+     */
+    public LatencyStats getScanConnectTime() {
+        return mScanConnectTime;
+    }
+
+    /**
+     * Connects through the given transport instead of scanning for a micro:bit,
+     * e.g. to drive a {@link SimulatedMicroBit}.
+     */
+    public void connect(RobotTransport transport) {
+        if (mSupervisor.getState() != ConnectionSupervisor.State.IDLE) {
+            Toast.makeText(mContext, "Connection already started", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        mCustomTransport = transport;
+        mDirectConnect = true;
+        mConnectStartedAt = System.nanoTime();
+        mSupervisor.connect();
+    }
+
+    private void openTransport(RobotTransport transport) {
+        mTransport = transport;
+        transport.setCallback(mTransportCallback);
+        transport.open();
     }
 
     /**
@@ -256,80 +507,378 @@ public class BleConnection {
         return true;
     }
 
+    /**
+     * Closes the link, also stops a running connect or reconnect.
+     */
     public void disconnect() {
         Log.d(TAG, "disconnect()");
-        mContext.runOnUiThread(new Runnable() {
-            public void run() {
-                if(mConnected) {
-                    mGatt.disconnect();
-                    //delay close command to fix potential NPE
-                    new Handler().postDelayed(new Runnable() {
-                        @Override
-                        public void run() {
-                            mGatt.close();
-                            mGatt = null;
-                        }
-                    }, 100);
-                    mConnected = false;
-                    mBluetoothAdapter.stopLeScan(mLeScanCallback);
-                    if (mScanTimer != null) {
-                        mScanTimer.cancel();
-                        mScanTimer = null;
-                    }
-                    state = State.IDLE;
-                    notifyListener();
-                }
-            }
-        });
+        mSupervisor.disconnect();
+    }
+
+    /**
+     * Disconnects and stops the threads of the connection for good, e.g. when the activity is
+     * destroyed. Otherwise the supervisor keeps reconnecting in the background and competes
+     * with a new connection for the micro:bit. Also closes the flight recorder, so the next
+     * connection can open the file. The connection cannot be used afterwards.
+     */
+    public void close() {
+        Log.d(TAG, "close()");
+        mSupervisor.disconnect();
+        mCommandWriter.stop();
+        mHeartbeat.stop();
+        stopMonitoring();
+        mScheduler.shutdownNow();
+        try {
+            // the flight recorder may still be opening
+            mScheduler.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeFlightRecorder();
     }
 
     public boolean isConnected() {
-        return state == State.CONNECTED;
+        return mSupervisor.getState() == ConnectionSupervisor.State.CONNECTED;
+    }
+
+    public State getState() {
+        switch (mSupervisor.getState()) {
+            case CONNECTED:
+                return State.CONNECTED;
+            case CONNECTING:
+            case RECONNECTING:
+                return State.CONNECTING;
+            default:
+                return State.IDLE;
+        }
+    }
+
+    /**
+     * True while a lost link is being reestablished, {@link #getState()} reports CONNECTING then.
+     */
+    public boolean isReconnecting() {
+        return mSupervisor.getState() == ConnectionSupervisor.State.RECONNECTING;
+    }
+
+    /**
+     * Reconnect configuration (backoff, attempts, safe command) and statistics.
+     */
+    public ConnectionSupervisor getConnectionSupervisor() {
+        return mSupervisor;
     }
 
     public void sendDirectionPacket(int value) {
-        mContext.runOnUiThread(new SendBlePacket(MES_DPAD_CONTROLLER_ID, value));
+        enqueue(MES_DPAD_CONTROLLER_ID, value, 0);
     }
 
-    public void sendPacket(int eventCode, int value) {
-        mContext.runOnUiThread(new SendBlePacket(eventCode, value));
+    /**
+     * Sends a direction caused by user input at {@code touchedAt} ({@link System#nanoTime()}
+     * time base), so the latency from the touch is tracked.
+     */
+    public void sendDirectionPacket(int value, long touchedAt) {
+        enqueue(MES_DPAD_CONTROLLER_ID, value, touchedAt);
     }
 
-    private class SendBlePacket implements Runnable {
+    @Override
+    public void sendPacket(int eventCode, int value) {
+        enqueue(eventCode, value, 0);
+    }
 
-        private final int eventCode;
-        private final int value;
+    public void sendPacket(int eventCode, int value, long touchedAt) {
+        enqueue(eventCode, value, touchedAt);
+    }
 
-        public SendBlePacket(int eventCode, int value){
-            this.eventCode = eventCode;
-            this.value = value;
+    /**
+     * Queues a command and follows whether it moves the robot, which drives the heartbeat
+     * and the connection priority. Every command goes through here.
+     *
+     * @param touchedAt time of the user input, 0 if not caused by one
+     */
+    private void enqueue(int eventCode, int value, long touchedAt) {
+        mCommandQueue.offer(eventCode, value, touchedAt);
+        if (mMotion.onCommand(eventCode, value, System.nanoTime())) {
+            // the robot starts moving, switch to the low latency priority right away
+            mScheduler.execute(mUpdateLinkPriority);
         }
+    }
 
-        public void run() {
-            if(mConnected) {
-                // create Event message
-                mEventCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
-                ByteBuffer bb = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
-                bb.putShort((short) eventCode);
-                bb.putShort((short) value);
-                mEventCharacteristic.setValue(bb.array());
-//                Log.d(TAG, "sendBlePacket: " + Utilities.getHexString(bb.array()));
-                mGatt.writeCharacteristic(mEventCharacteristic);
-            }
+    /**
+     * Asks the micro:bit program to echo, which needs an echo handler in the program. Takes
+     * effect on the next connect.
+     */
+    public void setEchoEnabled(boolean enabled) {
+        mEchoEnabled = enabled;
+    }
+
+    /**
+     * Sends an echo request through the command path; the answer is recorded as
+     * {@link LatencyTracker.Stage#ROUND_TRIP}. Call from one thread only.
+     */
+    public void sendEchoRequest() {
+        int sequence = mCommandWriter.getLatencyTracker().nextEcho(System.nanoTime());
+        enqueue(MicroBitEvents.MOVEMINI_ECHO_REQUEST_ID, sequence, 0);
+    }
+
+    /**
+     * Use acknowledged writes (write request) instead of write commands. Slower, but the
+     * completion callback then confirms that the micro:bit received the event.
+     */
+    public void setWriteWithResponse(boolean withResponse) {
+        mWriteWithAnswer = withResponse;
+        if (mTransport instanceof GattTransport) {
+            ((GattTransport) mTransport).setWriteWithResponse(withResponse);
         }
     }
 
+    /**
+     * MTU asked for after connecting, {@link RobotTransport#DEFAULT_MTU} to keep the default.
+     * Only Android 5 and later can change it; takes effect on the next connect.
+     */
+    public void setPreferredMtu(int mtu) {
+        mPreferredMtu = mtu;
+    }
+
+    /**
+     * Uses the low power connection priority while the robot is parked, instead of the
+     * balanced one. Takes effect on the next connect.
+     */
+    public void setIdleLowPower(boolean lowPower) {
+        mIdleLowPower = lowPower;
+    }
+
+    /**
+     * ATT MTU of the current link.
+     */
+    public int getMtu() {
+        RobotTransport transport = mTransport;
+        return transport != null ? transport.getMtu() : RobotTransport.DEFAULT_MTU;
+    }
+
+    /**
+     * Maximum number of characteristic writes that may wait for their completion callback.
+     */
+    public void setMaxWritesInFlight(int window) {
+        mCommandWriter.setMaxWritesInFlight(window);
+    }
+
+    /**
+     * Packs commands sent within {@code windowMicros} of each other into a single write.
+     * 0 (the default) sends every command on its own.
+     */
+    public void setBatchWindow(long windowMicros) {
+        mCommandWriter.setBatchWindow(windowMicros, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * Event codes the micro:bit is asked to send back, applied on the next connect.
+     */
+    public void setEventRequirements(int... eventCodes) {
+        mEventRequirements = eventCodes.clone();
+    }
+
+    /**
+     * Reads the events received from the micro:bit, starting with the next one to arrive.
+     * Each subscriber must be polled from a single thread.
+     *
+     * @param eventCode event code to receive, or {@link EventRingBuffer#ANY_EVENT}
+     */
+    public EventRingBuffer.Subscriber subscribeEvents(int eventCode) {
+        return mInboundEvents.subscribe(eventCode);
+    }
+
+    /**
+     * Latency histograms of the send path, see {@link LatencyTracker}.
+     */
+    public LatencyTracker getLatencyTracker() {
+        return mCommandWriter.getLatencyTracker();
+    }
+
+    /**
+     * Log of all events sent and received and of state changes, null if the file could not
+     * be opened or is still being opened in the background.
+     */
+    public FlightRecorder getFlightRecorder() {
+        return mFlightRecorder;
+    }
+
+    public WriteFlowControl getWriteFlowControl() {
+        return mCommandWriter.getFlowControl();
+    }
+
+    public CoalescingCommandQueue getCommandQueue() {
+        return mCommandQueue;
+    }
+
+    /**
+     * Latency from {@link #sendPacket} until the write was issued to the GATT stack.
+     */
+    public LatencyStats getQueueLatency() {
+        return mCommandWriter.getQueueLatency();
+    }
+
+    /**
+     * Adds a listener that is called on the thread that changed the state.
+     */
     public void addListener(ConnectionListener cscl) {
-        listenerList.add(cscl);
+        addListener(cscl, null);
+    }
+
+    /**
+     * Adds a listener that is always called on the given executor, e.g. a
+     * {@link HandlerExecutor} for the main thread. A {@link LinkStatsListener} also receives
+     * the link statistics.
+     *
+     * @param executor null to call the listener on the thread that changed the state
+     */
+    public void addListener(ConnectionListener cscl, Executor executor) {
+        listenerList.add(cscl, executor);
+        if (cscl instanceof LinkStatsListener) {
+            mStatsListeners.add((LinkStatsListener) cscl, executor);
+            updateStatsSampling();
+        }
     }
 
     public void removeListener(ConnectionListener cscl) {
         listenerList.remove(cscl);
+        if (cscl instanceof LinkStatsListener) {
+            mStatsListeners.remove((LinkStatsListener) cscl);
+            updateStatsSampling();
+        }
+    }
+
+    /**
+     * Readings of the link while connected, and the send rate adapted to them.
+     */
+    public LinkMonitor getLinkMonitor() {
+        return mLinkMonitor;
+    }
+
+    /**
+     * Keep-alive sent while the robot moves, see {@link Heartbeat#setTiming} to change the
+     * period and the deadline.
+     */
+    public Heartbeat getHeartbeat() {
+        return mHeartbeat;
+    }
+
+    /**
+     * Statistics of the last sampling interval, null if none was sampled yet. Only sampled
+     * while a {@link LinkStatsListener} is registered.
+     */
+    public LinkStats getLinkStats() {
+        return mLinkStats;
     }
 
+    private final ListenerRegistry.Notifier<ConnectionListener> mStateNotifier = new ListenerRegistry.Notifier<ConnectionListener>() {
+        @Override
+        public void notify(ConnectionListener cscl) {
+            cscl.connectionStateChanged(getState());
+        }
+    };
+
+    private final ListenerRegistry.Notifier<LinkStatsListener> mStatsNotifier = new ListenerRegistry.Notifier<LinkStatsListener>() {
+        @Override
+        public void notify(LinkStatsListener listener) {
+            LinkStats stats = mLinkStats;
+            if (stats != null) {
+                listener.linkStatsChanged(stats);
+            }
+        }
+    };
+
+    private final Runnable mSampleStats = new Runnable() {
+        @Override
+        public void run() {
+            mLinkStats = mStatsSampler.sample(System.nanoTime());
+            mStatsListeners.notifyListeners(mStatsNotifier);
+        }
+    };
+
     private void notifyListener() {
-        for (ConnectionListener cscl : listenerList) {
-            cscl.connectionStateChanged(state);
+        listenerList.notifyListeners(mStateNotifier);
+    }
+
+    private final Runnable mMonitorLink = new Runnable() {
+        @Override
+        public void run() {
+            RobotTransport transport = mTransport;
+            if (transport != null) {
+                // the reading arrives with a later callback and counts for the next sample
+                transport.readRssi();
+            }
+            mLinkMonitor.sample(System.nanoTime());
+            updateLinkPriority(false);
+        }
+    };
+
+    private final Runnable mUpdateLinkPriority = new Runnable() {
+        @Override
+        public void run() {
+            updateLinkPriority(false);
+        }
+    };
+
+    /**
+     * Asks for the low latency connection priority while the robot moves and shortly after,
+     * and for the idle one otherwise.
+     */
+    private synchronized void updateLinkPriority(boolean force) {
+        RobotTransport transport = mTransport;
+        if (transport == null || !isConnected()) {
+            return;
+        }
+        boolean lowLatency = mMotion.isActive(System.nanoTime(),
+                TimeUnit.MILLISECONDS.toNanos(IDLE_PRIORITY_DELAY_MS));
+        if (force || lowLatency != mLowLatency) {
+            mLowLatency = lowLatency;
+            transport.setLowLatency(lowLatency);
+        }
+    }
+
+    /**
+     * Polls the link quality and keeps a moving robot alive while connected, starting every
+     * link at the full rate.
+     */
+    private synchronized void updateLinkMonitoring() {
+        boolean connected = isConnected();
+        if (connected && mLinkMonitoring == null) {
+            mLinkMonitor.reset(System.nanoTime());
+            updateLinkPriority(true);
+            mHeartbeat.start();
+            mLinkMonitoring = mScheduler.scheduleAtFixedRate(mMonitorLink,
+                    LINK_MONITOR_INTERVAL_MS, LINK_MONITOR_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        } else if (!connected && mLinkMonitoring != null) {
+            mLinkMonitoring.cancel(false);
+            mLinkMonitoring = null;
+            mHeartbeat.stop();
+            // a reconnect starts with the safe command, which stops the robot
+            mMotion.reset();
+        }
+    }
+
+    /**
+     * Samples the link statistics only while they have a listener and there is a link.
+     */
+    private synchronized void updateStatsSampling() {
+        boolean sample = mStatsListeners.size() > 0 && isConnected();
+        if (sample && mStatsSampling == null) {
+            mStatsSampler.reset(System.nanoTime());
+            mStatsSampling = mScheduler.scheduleAtFixedRate(mSampleStats,
+                    LINK_STATS_INTERVAL_MS, LINK_STATS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        } else if (!sample && mStatsSampling != null) {
+            mStatsSampling.cancel(false);
+            mStatsSampling = null;
+        }
+    }
+
+    private synchronized void stopMonitoring() {
+        if (mLinkMonitoring != null) {
+            mLinkMonitoring.cancel(false);
+            mLinkMonitoring = null;
+        }
+        if (mStatsSampling != null) {
+            mStatsSampling.cancel(false);
+            mStatsSampling = null;
         }
     }
 
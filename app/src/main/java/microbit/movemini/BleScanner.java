@@ -0,0 +1,218 @@
+package microbit.movemini;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.os.ParcelUuid;
+import android.support.annotation.RequiresApi;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * BleScanner
+ *
+ * Scans for micro:bits and keeps a {@link RobotInfo} with a smoothed RSSI for each. On
+ * Lollipop and later it uses the {@link BluetoothLeScanner} in low latency mode, with
+ * hardware filters when a service UUID or exact name is configured; older devices use
+ * {@link BluetoothAdapter#startLeScan}.
+ *
+ * The name is read from the advertisement, not from {@link BluetoothDevice#getName()},
+ * and only for devices not seen before: advertisements of known robots cost a map lookup,
+ * those of other devices a set lookup.
+ */
+
+@RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class BleScanner {
+
+    public interface Listener {
+
+        /**
+         * Called on the scan thread for every advertisement of a micro:bit.
+         *
+         * @param found true for the first advertisement of this robot
+         */
+        public void onRobotSeen(RobotInfo robot, boolean found);
+    }
+
+    private final BluetoothAdapter mAdapter;
+    private final String mNamePrefix;
+    private final ConcurrentHashMap<String, RobotInfo> mRobots = new ConcurrentHashMap<>();
+    // devices whose advertised name does not match, for the current scan
+    private final Set<String> mIgnored = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile Listener mListener;
+    private UUID mServiceUuid;
+    private String mExactName;
+    private boolean mScanning;
+    private LollipopScan mLollipopScan;
+
+    /**
+     * @param namePrefix devices whose name starts with this are reported
+     */
+    public BleScanner(BluetoothAdapter adapter, String namePrefix) {
+        this.mAdapter = adapter;
+        this.mNamePrefix = namePrefix;
+    }
+
+    /**
+     * Lets the controller drop other advertisements on Lollipop and later. A micro:bit name
+     * includes its serial, so the exact name only helps to find a known device. Takes effect
+     * on the next start.
+     *
+     * @param serviceUuid service that must be advertised, or null
+     * @param exactName   complete name that must be advertised, or null
+     */
+    public synchronized void setFilter(UUID serviceUuid, String exactName) {
+        mServiceUuid = serviceUuid;
+        mExactName = exactName;
+    }
+
+    /**
+     * Starts scanning, forgetting the robots and the ignored devices of a previous scan; a
+     * device may have been renamed or flashed with another program meanwhile.
+     */
+    public synchronized void start(Listener listener) {
+        stop();
+        mRobots.clear();
+        mIgnored.clear();
+        mListener = listener;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && mAdapter.getBluetoothLeScanner() != null) {
+            mLollipopScan = new LollipopScan();
+            mLollipopScan.start(mServiceUuid, mExactName);
+        } else {
+            mAdapter.startLeScan(mLeScanCallback);
+        }
+        mScanning = true;
+    }
+
+    /**
+     * @return false if no scan was running
+     */
+    public synchronized boolean stop() {
+        if (!mScanning) {
+            return false;
+        }
+        mScanning = false;
+        if (mLollipopScan != null) {
+            mLollipopScan.stop();
+            mLollipopScan = null;
+        } else {
+            mAdapter.stopLeScan(mLeScanCallback);
+        }
+        mListener = null;
+        return true;
+    }
+
+    public synchronized boolean isScanning() {
+        return mScanning;
+    }
+
+    /**
+     * Robots seen by the current or last scan.
+     */
+    public Collection<RobotInfo> getRobots() {
+        return mRobots.values();
+    }
+
+    private void onAdvertisement(BluetoothDevice device, int rssi, byte[] scanRecord, String advertisedName) {
+        String address = device.getAddress();
+        RobotInfo robot = mRobots.get(address);
+        boolean found = false;
+        if (robot == null) {
+            if (mIgnored.contains(address)) {
+                return;
+            }
+            String name = advertisedName != null ? advertisedName : AdvertisingData.parseName(scanRecord);
+            if (name == null) {
+                // the name may follow in a scan response
+                return;
+            }
+            if (!name.startsWith(mNamePrefix)) {
+                mIgnored.add(address);
+                return;
+            }
+            robot = new RobotInfo(address, name);
+            RobotInfo previous = mRobots.putIfAbsent(address, robot);
+            if (previous != null) {
+                robot = previous;
+            } else {
+                found = true;
+            }
+        }
+        robot.seen(rssi, System.nanoTime());
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onRobotSeen(robot, found);
+        }
+    }
+
+    private final BluetoothAdapter.LeScanCallback mLeScanCallback = new BluetoothAdapter.LeScanCallback() {
+        @Override
+        public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            if (device != null) {
+                onAdvertisement(device, rssi, scanRecord, null);
+            }
+        }
+    };
+
+    /**
+     * Kept in its own class so that older devices never load the Lollipop scan classes.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private class LollipopScan extends ScanCallback {
+
+        private BluetoothLeScanner mScanner;
+
+        void start(UUID serviceUuid, String exactName) {
+            List<ScanFilter> filters = null;
+            if (serviceUuid != null || exactName != null) {
+                ScanFilter.Builder filter = new ScanFilter.Builder();
+                if (serviceUuid != null) {
+                    filter.setServiceUuid(new ParcelUuid(serviceUuid));
+                }
+                if (exactName != null) {
+                    filter.setDeviceName(exactName);
+                }
+                filters = new ArrayList<>();
+                filters.add(filter.build());
+            }
+            ScanSettings settings = new ScanSettings.Builder()
+                    .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
+                    .build();
+            mScanner = mAdapter.getBluetoothLeScanner();
+            mScanner.startScan(filters, settings, this);
+        }
+
+        void stop() {
+            // throws if Bluetooth was switched off meanwhile
+            if (mAdapter.isEnabled()) {
+                mScanner.stopScan(this);
+            }
+        }
+
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            ScanRecord record = result.getScanRecord();
+            onAdvertisement(result.getDevice(), result.getRssi(), null,
+                    record != null ? record.getDeviceName() : null);
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            for (ScanResult result : results) {
+                onScanResult(ScanCallback.CALLBACK_TYPE_ALL_MATCHES, result);
+            }
+        }
+    }
+}
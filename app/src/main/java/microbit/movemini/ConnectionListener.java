@@ -2,9 +2,14 @@ package microbit.movemini;
 
 /**
  * ConnectionListener
+ *
+ * Implement {@link LinkStatsListener} instead to also receive the link statistics.
  */
 
 public interface ConnectionListener {
 
+    /**
+     * A listener that falls behind gets the latest state only, so it may miss states in between.
+     */
     public void connectionStateChanged(BleConnection.State state);
-}
\ No newline at end of file
+}
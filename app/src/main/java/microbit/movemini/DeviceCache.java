@@ -0,0 +1,52 @@
+package microbit.movemini;
+
+import android.bluetooth.BluetoothAdapter;
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * DeviceCache
+ *
+ * Remembers the last micro:bit a connection was established with, so the next connect can
+ * go to it directly instead of scanning. Service and characteristic handles are not stored:
+ * Android keeps its own GATT cache per device and does not accept handles from the app.
+ */
+
+public class DeviceCache {
+
+    private static final String PREFERENCES = "device_cache";
+    private static final String KEY_ADDRESS = "address";
+    private static final String KEY_NAME = "name";
+
+    private final SharedPreferences mPreferences;
+
+    public DeviceCache(Context context) {
+        this.mPreferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return the address of the last connected micro:bit, or null if none is known
+     */
+    public String getAddress() {
+        String address = mPreferences.getString(KEY_ADDRESS, null);
+        return address != null && BluetoothAdapter.checkBluetoothAddress(address) ? address : null;
+    }
+
+    public String getName() {
+        return mPreferences.getString(KEY_NAME, null);
+    }
+
+    public void save(String address, String name) {
+        if (address.equals(mPreferences.getString(KEY_ADDRESS, null))) {
+            return;
+        }
+        mPreferences.edit()
+                .putString(KEY_ADDRESS, address)
+                .putString(KEY_NAME, name)
+                .apply();
+    }
+
+    public void clear() {
+        mPreferences.edit().clear().apply();
+    }
+}
@@ -0,0 +1,227 @@
+package microbit.movemini;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothManager;
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.RequiresApi;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * FleetManager
+ *
+ * Drives several micro:bits at once. A single scan collects every micro:bit in range with
+ * its RSSI, then any number of them can be connected. Each robot gets its own
+ * {@link RobotSession} with its own command queue; one {@link FleetDispatcher} thread writes
+ * for all of them in turn.
+ */
+
+@RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class FleetManager {
+
+    public interface FleetListener {
+
+        public void onRobotFound(RobotInfo robot);
+
+        public void onRobotStateChanged(String address, boolean connected);
+
+        public void onScanFinished();
+    }
+
+    private static final String TAG = "FleetManager";
+    private static final String DEVICE_NAME = "BBC micro:bit";
+
+    private final Context mContext;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final FleetDispatcher mDispatcher = new FleetDispatcher();
+    private final ConcurrentHashMap<String, RobotInfo> mRobots = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, RobotSession> mSessions = new ConcurrentHashMap<>();
+    private volatile FleetListener mListener;
+    private BluetoothAdapter mBluetoothAdapter;
+    private BleScanner mScanner;
+
+    public FleetManager(Context context) {
+        this.mContext = context;
+    }
+
+    public void setListener(FleetListener listener) {
+        mListener = listener;
+    }
+
+    private final BleScanner.Listener mScanListener = new BleScanner.Listener() {
+        @Override
+        public void onRobotSeen(RobotInfo robot, boolean found) {
+            if (!found) {
+                return;
+            }
+            mRobots.put(robot.getAddress(), robot);
+            Log.d(TAG, "Found " + robot);
+            FleetListener listener = mListener;
+            if (listener != null) {
+                listener.onRobotFound(robot);
+            }
+        }
+    };
+
+    private final Runnable mStopScan = new Runnable() {
+        @Override
+        public void run() {
+            stopScan();
+        }
+    };
+
+    /**
+     * Scans for micro:bits for the given time. Robots found are reported to the listener
+     * and kept in {@link #getRobots()}.
+     *
+     * @return false if Bluetooth is not available
+     */
+    public boolean startScan(long durationMs) {
+        BluetoothManager bluetoothManager = (BluetoothManager) mContext.getSystemService(Context.BLUETOOTH_SERVICE);
+        mBluetoothAdapter = bluetoothManager.getAdapter();
+        if (mBluetoothAdapter == null || !mBluetoothAdapter.isEnabled()) {
+            return false;
+        }
+        if (mScanner == null) {
+            mScanner = new BleScanner(mBluetoothAdapter, DEVICE_NAME);
+        }
+        mScanner.start(mScanListener);
+        mMainHandler.removeCallbacks(mStopScan);
+        mMainHandler.postDelayed(mStopScan, durationMs);
+        return true;
+    }
+
+    public void stopScan() {
+        mMainHandler.removeCallbacks(mStopScan);
+        if (mScanner == null || !mScanner.stop()) {
+            return;
+        }
+        FleetListener listener = mListener;
+        if (listener != null) {
+            listener.onScanFinished();
+        }
+    }
+
+    /**
+     * Robots found so far, strongest smoothed signal first.
+     */
+    public List<RobotInfo> getRobots() {
+        List<RobotInfo> robots = new ArrayList<>(mRobots.values());
+        for (int i = 1; i < robots.size(); i++) {
+            RobotInfo robot = robots.get(i);
+            int j = i - 1;
+            while (j >= 0 && robots.get(j).getSmoothedRssi() < robot.getSmoothedRssi()) {
+                robots.set(j + 1, robots.get(j));
+                j--;
+            }
+            robots.set(j + 1, robot);
+        }
+        return robots;
+    }
+
+    public void connect(String address) {
+        if (mSessions.containsKey(address) || mBluetoothAdapter == null) {
+            return;
+        }
+        BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
+        connect(address, new GattTransport(mContext, device, false));
+    }
+
+    /**
+     * Adds a robot reached through the given transport, e.g. a {@link SimulatedMicroBit}.
+     */
+    public void connect(String address, RobotTransport transport) {
+        RobotSession session = new RobotSession(address, transport, mDispatcher);
+        if (mSessions.putIfAbsent(address, session) != null) {
+            return;
+        }
+        session.setListener(mSessionListener);
+        mDispatcher.start();
+        session.open();
+    }
+
+    /**
+     * Connects every robot found by the last scan.
+     */
+    public void connectAll() {
+        for (RobotInfo robot : mRobots.values()) {
+            connect(robot.getAddress());
+        }
+    }
+
+    public void disconnect(String address) {
+        RobotSession session = mSessions.remove(address);
+        if (session != null) {
+            session.close();
+        }
+    }
+
+    public void disconnectAll() {
+        for (String address : mSessions.keySet()) {
+            disconnect(address);
+        }
+        mDispatcher.stop();
+    }
+
+    public boolean isConnected(String address) {
+        RobotSession session = mSessions.get(address);
+        return session != null && session.isConnected();
+    }
+
+    public int getConnectedCount() {
+        return mDispatcher.getSessionCount();
+    }
+
+    public void sendDirection(String address, int value) {
+        sendPacket(address, MicroBitEvents.MES_DPAD_CONTROLLER_ID, value);
+    }
+
+    public void sendPacket(String address, int eventCode, int value) {
+        RobotSession session = mSessions.get(address);
+        if (session != null) {
+            session.sendPacket(eventCode, value);
+        }
+    }
+
+    /**
+     * Sends the direction to every connected robot.
+     */
+    public void broadcastDirection(int value) {
+        broadcastPacket(MicroBitEvents.MES_DPAD_CONTROLLER_ID, value);
+    }
+
+    public void broadcastPacket(int eventCode, int value) {
+        for (RobotSession session : mSessions.values()) {
+            session.sendPacket(eventCode, value);
+        }
+    }
+
+    /**
+     * Session of a robot, e.g. to read its writer statistics.
+     */
+    public RobotSession getSession(String address) {
+        return mSessions.get(address);
+    }
+
+    private final RobotSession.Listener mSessionListener = new RobotSession.Listener() {
+        @Override
+        public void onSessionStateChanged(RobotSession session, boolean connected) {
+            Log.d(TAG, session.getAddress() + (connected ? " connected" : " disconnected"));
+            if (!connected) {
+                // the session closed its link, connect(address) starts a new one
+                mSessions.remove(session.getAddress(), session);
+            }
+            FleetListener listener = mListener;
+            if (listener != null) {
+                listener.onRobotStateChanged(session.getAddress(), connected);
+            }
+        }
+    };
+}
@@ -0,0 +1,390 @@
+package microbit.movemini;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.RequiresApi;
+import android.util.Log;
+
+import java.util.UUID;
+
+/**
+ * GattTransport
+ *
+ * {@link RobotTransport} that writes to the event characteristic of a micro:bit over GATT.
+ *
+ * After service discovery notifications of the MicroBit Event characteristic are enabled and
+ * the events of interest registered with the Client Requirements characteristic. GATT runs
+ * one operation at a time, so each step waits for the completion of the previous one and the
+ * link is only reported up once setup is done.
+ *
+ * On Lollipop and later setup starts by asking for a larger MTU, so that batched commands fit
+ * in one write, and the connection priority can be switched between low latency while driving
+ * and balanced or low power while parked.
+ */
+
+@RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class GattTransport implements RobotTransport {
+
+    private static final String TAG = "GattTransport";
+
+    private static UUID MICROBIT_SERVICE =     UUID.fromString("e95d93af-251d-470a-a062-fa1922dfa9a8");
+    private static UUID EVENT_CHARACTERISTIC = UUID.fromString("e95d5404-251d-470a-a062-fa1922dfa9a8");
+    private static UUID MICROBIT_EVENT_CHARACTERISTIC = UUID.fromString("e95d9775-251d-470a-a062-fa1922dfa9a8");
+    private static UUID CLIENT_REQUIREMENTS_CHARACTERISTIC = UUID.fromString("e95d23c4-251d-470a-a062-fa1922dfa9a8");
+
+    // enough for a batch of 61 events; micro:bits that cannot raise the MTU keep the default
+    static final int PREFERRED_MTU = 247;
+
+    private static UUID CLIENT_CHARACTERISTIC_CONFIG = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    private final Context mContext;
+    private final BluetoothDevice mDevice;
+    private final boolean mAutoConnect;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private volatile Callback mCallback;
+    private volatile BluetoothGatt mGatt;
+    private volatile boolean mClosed;
+    private volatile BluetoothGattCharacteristic mEventCharacteristic;
+    private volatile BluetoothGattCharacteristic mRequirementsCharacteristic;
+    private volatile BluetoothGattCharacteristic mNotifyCharacteristic;
+    private volatile boolean mWriteWithAnswer = false;
+    private volatile int[] mEventRequirements = new int[0];
+    private volatile int mPreferredMtu = PREFERRED_MTU;
+    private volatile int mMtu = DEFAULT_MTU;
+    private volatile boolean mIdleLowPower;
+    private int mSetupStep;
+    // setValue() keeps the array, so each packet length gets its own reused buffer
+    private final byte[][] mPacketBuffers = new byte[128][];
+
+    /**
+     * @param autoConnect false connects directly, which is faster for a device known to be in range
+     */
+    public GattTransport(Context context, BluetoothDevice device, boolean autoConnect) {
+        this.mContext = context;
+        this.mDevice = device;
+        this.mAutoConnect = autoConnect;
+    }
+
+    public BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    public void setWriteWithResponse(boolean withResponse) {
+        mWriteWithAnswer = withResponse;
+    }
+
+    /**
+     * Event codes the micro:bit is asked to send, any value of each. Takes effect on the next
+     * connect.
+     */
+    public void setEventRequirements(int... eventCodes) {
+        mEventRequirements = eventCodes.clone();
+    }
+
+    /**
+     * MTU to ask for after connecting, {@link #DEFAULT_MTU} to keep the default. Takes effect
+     * on the next connect.
+     */
+    public void setPreferredMtu(int mtu) {
+        mPreferredMtu = mtu;
+    }
+
+    /**
+     * Uses the low power connection priority instead of the balanced one while not driving.
+     * Saves more battery, but the first command after a pause takes longer.
+     */
+    public void setIdleLowPower(boolean lowPower) {
+        mIdleLowPower = lowPower;
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    @Override
+    public void open() {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mClosed) {
+                    return;
+                }
+                mGatt = mDevice.connectGatt(mContext, mAutoConnect, mGattCallback);
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+        mEventCharacteristic = null;
+        // on the main thread like open(), so the GATT client of a pending attempt exists by now
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final BluetoothGatt gatt = mGatt;
+                if (gatt == null) {
+                    // never opened, or already closed after the link dropped
+                    return;
+                }
+                mGatt = null;
+                gatt.disconnect();
+                //delay close command to fix potential NPE
+                mMainHandler.postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        gatt.close();
+                    }
+                }, 100);
+            }
+        });
+    }
+
+    @Override
+    public int getMtu() {
+        return mMtu;
+    }
+
+    @Override
+    public void setLowLatency(boolean lowLatency) {
+        BluetoothGatt gatt = mGatt;
+        if (gatt == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        int priority = lowLatency ? BluetoothGatt.CONNECTION_PRIORITY_HIGH
+                : mIdleLowPower ? BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER
+                : BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+        if (!requestConnectionPriority(gatt, priority)) {
+            Log.w(TAG, "Could not request connection priority " + priority);
+        }
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private static boolean requestConnectionPriority(BluetoothGatt gatt, int priority) {
+        return gatt.requestConnectionPriority(priority);
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private static boolean requestMtu(BluetoothGatt gatt, int mtu) {
+        return gatt.requestMtu(mtu);
+    }
+
+    @Override
+    public boolean readRssi() {
+        BluetoothGatt gatt = mGatt;
+        return gatt != null && mEventCharacteristic != null && gatt.readRemoteRssi();
+    }
+
+    @Override
+    public boolean writePacket(byte[] data, int length) {
+        BluetoothGatt gatt = mGatt;
+        BluetoothGattCharacteristic characteristic = mEventCharacteristic;
+        if (gatt == null || characteristic == null) {
+            return false;
+        }
+        characteristic.setWriteType(mWriteWithAnswer
+                ? BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT
+                : BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        characteristic.setValue(packetBuffer(data, length));
+        return gatt.writeCharacteristic(characteristic);
+    }
+
+    private byte[] packetBuffer(byte[] data, int length) {
+        if (length == data.length) {
+            return data;
+        }
+        int slot = length / EventCodec.FRAME_SIZE;
+        byte[] buffer = slot < mPacketBuffers.length ? mPacketBuffers[slot] : null;
+        if (buffer == null || buffer.length != length) {
+            buffer = new byte[length];
+            if (slot < mPacketBuffers.length && length % EventCodec.FRAME_SIZE == 0) {
+                mPacketBuffers[slot] = buffer;
+            }
+        }
+        System.arraycopy(data, 0, buffer, 0, length);
+        return buffer;
+    }
+
+    private void enableEventNotifications(BluetoothGatt gatt) {
+        BluetoothGattCharacteristic notifyCharacteristic = mNotifyCharacteristic;
+        if (notifyCharacteristic != null && gatt.setCharacteristicNotification(notifyCharacteristic, true)) {
+            BluetoothGattDescriptor descriptor = notifyCharacteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG);
+            if (descriptor != null) {
+                descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+                if (gatt.writeDescriptor(descriptor)) {
+                    // continues in onDescriptorWrite
+                    return;
+                }
+            }
+        }
+        Log.w(TAG, "Could not enable event notifications");
+        nextSetupStep(gatt);
+    }
+
+    /**
+     * Issues the next setup operation, or reports the link up when there is none left.
+     */
+    private void nextSetupStep(BluetoothGatt gatt) {
+        int[] requirements = mEventRequirements;
+        BluetoothGattCharacteristic characteristic = mRequirementsCharacteristic;
+        while (characteristic != null && mSetupStep < requirements.length) {
+            byte[] value = new byte[EventCodec.FRAME_SIZE];
+            EventCodec.encode(requirements[mSetupStep++], MicroBitEvents.MICROBIT_EVT_ANY, value, 0);
+            characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+            characteristic.setValue(value);
+            if (gatt.writeCharacteristic(characteristic)) {
+                return;
+            }
+            Log.w(TAG, "Could not register event " + requirements[mSetupStep - 1]);
+        }
+        mRequirementsCharacteristic = null;
+        Log.d(TAG, "Connected!");
+        Callback callback = mCallback;
+        if (callback != null) {
+            callback.onLinkUp();
+        }
+    }
+
+    private void notifyLinkDown() {
+        mEventCharacteristic = null;
+        Callback callback = mCallback;
+        if (callback != null) {
+            callback.onLinkDown();
+        }
+    }
+
+    private BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            super.onConnectionStateChange(gatt, status, newState);
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                Log.d(TAG, "onConnectionStateChange: STATE_CONNECTED");
+                if (mClosed) {
+                    return;
+                }
+                mGatt = gatt;
+                gatt.discoverServices();
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                Log.d(TAG, "onConnectionStateChange: STATE_DISCONNECTED");
+                notifyLinkDown();
+            } else {
+                Log.d(TAG, "onConnectionStateChange: else: " + newState);
+                notifyLinkDown();
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            super.onServicesDiscovered(gatt, status);
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                gatt.disconnect();
+            } else {
+                BluetoothGattService mbService = gatt.getService(MICROBIT_SERVICE);
+                if (mbService == null) {
+                    Log.w(TAG, "Event service not found");
+                    gatt.disconnect();
+                    return;
+                }
+                mSetupStep = 0;
+                mMtu = DEFAULT_MTU;
+                mRequirementsCharacteristic = mbService.getCharacteristic(CLIENT_REQUIREMENTS_CHARACTERISTIC);
+                mEventCharacteristic = mbService.getCharacteristic(EVENT_CHARACTERISTIC);
+                mNotifyCharacteristic = mbService.getCharacteristic(MICROBIT_EVENT_CHARACTERISTIC);
+                int preferredMtu = mPreferredMtu;
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                    // setup runs faster on a short connection interval
+                    requestConnectionPriority(gatt, BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+                    if (preferredMtu > DEFAULT_MTU && requestMtu(gatt, preferredMtu)) {
+                        // continues in onMtuChanged
+                        return;
+                    }
+                }
+                enableEventNotifications(gatt);
+            }
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            super.onMtuChanged(gatt, mtu, status);
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mMtu = mtu;
+                Log.d(TAG, "MTU: " + mtu);
+            } else {
+                Log.w(TAG, "MTU request failed: " + status);
+            }
+            enableEventNotifications(gatt);
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            super.onCharacteristicWrite(gatt, characteristic, status);
+            if (mRequirementsCharacteristic != null
+                    && CLIENT_REQUIREMENTS_CHARACTERISTIC.equals(characteristic.getUuid())) {
+                nextSetupStep(gatt);
+                return;
+            }
+            Callback callback = mCallback;
+            if (callback != null) {
+                callback.onWriteComplete(status == BluetoothGatt.GATT_SUCCESS);
+            }
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            super.onCharacteristicRead(gatt, characteristic, status);
+            Log.d(TAG, "On read call for characteristic: " + characteristic.getUuid().toString());
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+            super.onCharacteristicChanged(gatt, characteristic);
+            if (!MICROBIT_EVENT_CHARACTERISTIC.equals(characteristic.getUuid())) {
+                return;
+            }
+            Callback callback = mCallback;
+            byte[] value = characteristic.getValue();
+            if (callback != null && value != null) {
+                callback.onPacketReceived(value, value.length);
+            }
+        }
+
+        @Override
+        public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+            super.onReadRemoteRssi(gatt, rssi, status);
+            Callback callback = mCallback;
+            if (callback != null && status == BluetoothGatt.GATT_SUCCESS) {
+                callback.onRssiRead(rssi);
+            }
+        }
+
+        @Override
+        public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            super.onDescriptorRead(gatt, descriptor, status);
+            Log.d(TAG, "On read call for descriptor: " + descriptor.getUuid().toString());
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            super.onDescriptorWrite(gatt, descriptor, status);
+            Log.d(TAG, "On write call for descriptor: " + descriptor.getUuid().toString());
+            if (CLIENT_CHARACTERISTIC_CONFIG.equals(descriptor.getUuid())) {
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    Log.w(TAG, "Enabling event notifications failed: " + status);
+                }
+                nextSetupStep(gatt);
+            }
+        }
+    };
+}
@@ -0,0 +1,26 @@
+package microbit.movemini;
+
+import android.os.Handler;
+
+import java.util.concurrent.Executor;
+
+/**
+ * HandlerExecutor
+ *
+ * Runs tasks on the thread of a {@link Handler}, e.g. to deliver listener callbacks on the
+ * main thread.
+ */
+
+public class HandlerExecutor implements Executor {
+
+    private final Handler mHandler;
+
+    public HandlerExecutor(Handler handler) {
+        this.mHandler = handler;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        mHandler.post(task);
+    }
+}
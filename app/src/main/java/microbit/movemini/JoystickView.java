@@ -0,0 +1,117 @@
+package microbit.movemini;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.MotionEvent;
+import android.view.View;
+
+/**
+ * JoystickView
+ *
+ * On-screen analog stick reporting (speed, turn) in [-1, 1]. The knob springs back to the
+ * center when released.
+ */
+
+public class JoystickView extends View {
+
+    public interface OnMoveListener {
+
+        public void onMove(float speed, float turn);
+    }
+
+    private final Paint mBasePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mKnobPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    private OnMoveListener mListener;
+    private float mCenterX;
+    private float mCenterY;
+    private float mRadius;
+    private float mKnobRadius;
+    private float mKnobX;
+    private float mKnobY;
+
+    public JoystickView(Context context) {
+        super(context);
+        init();
+    }
+
+    public JoystickView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        init();
+    }
+
+    public JoystickView(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+        init();
+    }
+
+    private void init() {
+        mBasePaint.setColor(Color.LTGRAY);
+        mBasePaint.setStyle(Paint.Style.FILL);
+        mKnobPaint.setColor(Color.DKGRAY);
+        mKnobPaint.setStyle(Paint.Style.FILL);
+    }
+
+    public void setOnMoveListener(OnMoveListener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        float half = Math.min(w, h) / 2f;
+        mCenterX = w / 2f;
+        mCenterY = h / 2f;
+        mKnobRadius = half * 0.3f;
+        mRadius = half - mKnobRadius;
+        mKnobX = mCenterX;
+        mKnobY = mCenterY;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        canvas.drawCircle(mCenterX, mCenterY, mRadius + mKnobRadius, mBasePaint);
+        canvas.drawCircle(mKnobX, mKnobY, mKnobRadius, mKnobPaint);
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+            case MotionEvent.ACTION_MOVE:
+                float dx = event.getX() - mCenterX;
+                float dy = event.getY() - mCenterY;
+                float distance = (float) Math.sqrt(dx * dx + dy * dy);
+                if (distance > mRadius && distance > 0) {
+                    dx = dx * mRadius / distance;
+                    dy = dy * mRadius / distance;
+                }
+                moveKnob(dx, dy);
+                return true;
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL:
+                moveKnob(0, 0);
+                performClick();
+                return true;
+        }
+        return super.onTouchEvent(event);
+    }
+
+    @Override
+    public boolean performClick() {
+        return super.performClick();
+    }
+
+    private void moveKnob(float dx, float dy) {
+        mKnobX = mCenterX + dx;
+        mKnobY = mCenterY + dy;
+        invalidate();
+        if (mListener != null && mRadius > 0) {
+            mListener.onMove(-dy / mRadius, dx / mRadius);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package microbit.movemini;
+
+/**
+ * LinkStatsListener
+ *
+ * A {@link ConnectionListener} that also receives the link statistics. They are only sampled
+ * while such a listener is registered and the robot is connected.
+ */
+
+public interface LinkStatsListener extends ConnectionListener {
+
+    /**
+     * Called about once per sampling interval; a listener that falls behind gets the latest
+     * statistics only.
+     */
+    public void linkStatsChanged(LinkStats stats);
+}
@@ -2,6 +2,7 @@ package microbit.movemini;
 
 import android.Manifest;
 import android.content.DialogInterface;
+import android.content.Intent;
 import android.content.pm.ActivityInfo;
 import android.content.pm.PackageManager;
 import android.os.Build;
@@ -9,12 +10,17 @@ import android.support.annotation.RequiresApi;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
+import android.os.Handler;
 import android.util.Log;
 import android.view.MotionEvent;
 import android.view.View;
 import android.widget.Button;
+import android.widget.CompoundButton;
+import android.widget.ToggleButton;
 import android.widget.Toast;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * MainActivity
  */
@@ -23,13 +29,27 @@ public class MainActivity extends AppCompatActivity {
 
     private static final int PERMISSION_REQUEST_COARSE_LOCATION = 1;
     private static final String TAG = "MoveMini";
+    private static final float ANALOG_RATE_HZ = 20;
+    private static final int ANALOG_DEADBAND = 5;
+    private static final float TILT_RATE_HZ = ANALOG_RATE_HZ;
     private Button upButton;
     private Button downButton;
     private Button leftButton;
     private Button rightButton;
     private Button connectButton;
+    private JoystickView joystick;
+    private ToggleButton tiltButton;
 
     private BleConnection mBleConnection;
+    private AnalogDrive mAnalogDrive;
+    private TiltSteering mTiltSteering;
+    private final Handler mHandler = new Handler();
+    private final Runnable mAnalogFlush = new Runnable() {
+        @Override
+        public void run() {
+            scheduleAnalogFlush(mAnalogDrive.flush(System.nanoTime()));
+        }
+    };
 
     private boolean isConnected = false;
 
@@ -44,30 +64,35 @@ public class MainActivity extends AppCompatActivity {
         leftButton = (Button) findViewById(R.id.left);
         rightButton = (Button) findViewById(R.id.right);
         connectButton = (Button) findViewById(R.id.connect);
-
-        setTouchListeners();
+        joystick = (JoystickView) findViewById(R.id.joystick);
+        tiltButton = (ToggleButton) findViewById(R.id.tilt);
 
         mBleConnection = new BleConnection(this);
+        mAnalogDrive = new AnalogDrive(mBleConnection, ANALOG_RATE_HZ, ANALOG_DEADBAND);
+        mTiltSteering = new TiltSteering(this, mBleConnection, mAnalogDrive, TILT_RATE_HZ);
+
+        setTouchListeners();
         mBleConnection.addListener(new ConnectionListener() {
 
             @Override
-            public void connectionStateChanged(final BleConnection.State state) {
-                runOnUiThread(new Runnable() {
-                    public void run() {
-                        if (state == BleConnection.State.CONNECTED) {
-                            isConnected = true;
-                            connectButton.setText(getText(R.string.disconnect));
-                        } else if (state == BleConnection.State.CONNECTING) {
-                            isConnected = false;
-                            connectButton.setText(getText(R.string.connecting));
-                        } else {
-                            isConnected = false;
-                            connectButton.setText(getText(R.string.connect));
-                        }
-                    }
-                });
+            public void connectionStateChanged(BleConnection.State state) {
+                if (state == BleConnection.State.CONNECTED) {
+                    isConnected = true;
+                    connectButton.setText(getText(R.string.disconnect));
+                } else if (state == BleConnection.State.CONNECTING) {
+                    isConnected = false;
+                    connectButton.setText(getText(R.string.connecting));
+                } else {
+                    isConnected = false;
+                    connectButton.setText(getText(R.string.connect));
+                }
+                if (!isConnected) {
+                    tiltButton.setChecked(false);
+                    mHandler.removeCallbacks(mAnalogFlush);
+                    mAnalogDrive.reset();
+                }
             }
-        });
+        }, new HandlerExecutor(mHandler));
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
             // Android M Permission check 
@@ -87,6 +112,21 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    @Override
+    protected void onPause() {
+        super.onPause();
+        // the sensors keep running in the background otherwise
+        tiltButton.setChecked(false);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mHandler.removeCallbacks(mAnalogFlush);
+        // a new activity creates its own connection, this one must not keep reconnecting
+        mBleConnection.close();
+    }
+
     private void setTouchListeners() {
         upButton.setOnTouchListener(new View.OnTouchListener() {
             @Override
@@ -120,11 +160,38 @@ public class MainActivity extends AppCompatActivity {
             }
         });
 
+        joystick.setOnMoveListener(new JoystickView.OnMoveListener() {
+            @Override
+            public void onMove(float speed, float turn) {
+                if (mBleConnection.isConnected()) {
+                    scheduleAnalogFlush(mAnalogDrive.update(speed, turn, System.nanoTime()));
+                }
+            }
+        });
+
+        tiltButton.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton button, boolean checked) {
+                if (!checked) {
+                    mTiltSteering.stop();
+                } else if (!mBleConnection.isConnected()) {
+                    Toast.makeText(getApplicationContext(), "Not connected", Toast.LENGTH_SHORT).show();
+                    button.setChecked(false);
+                } else if (!mTiltSteering.isAvailable()) {
+                    Toast.makeText(getApplicationContext(), "No accelerometer", Toast.LENGTH_SHORT).show();
+                    button.setChecked(false);
+                } else {
+                    // the current position of the phone becomes neutral
+                    mTiltSteering.start();
+                }
+            }
+        });
+
         connectButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
                 if (mBleConnection != null) {
-                    if (isConnected) {
+                    if (mBleConnection.getState() != BleConnection.State.IDLE) {
                         mBleConnection.disconnect();
                     } else {
                         mBleConnection.connect();
@@ -133,6 +200,21 @@ public class MainActivity extends AppCompatActivity {
             }
         });
 
+        connectButton.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View view) {
+                showLatency();
+                return true;
+            }
+        });
+
+    }
+
+    private void scheduleAnalogFlush(long delayNanos) {
+        mHandler.removeCallbacks(mAnalogFlush);
+        if (delayNanos >= 0) {
+            mHandler.postDelayed(mAnalogFlush, TimeUnit.NANOSECONDS.toMillis(delayNanos) + 1);
+        }
     }
 
     private void handleDirectionCommand(int buttonId, MotionEvent event) {
@@ -140,11 +222,11 @@ public class MainActivity extends AppCompatActivity {
             switch (event.getAction()) {
                 case MotionEvent.ACTION_DOWN:
                     // send direction
-                    mBleConnection.sendDirectionPacket(buttonId);
+                    mBleConnection.sendDirectionPacket(buttonId, touchTime(event));
                     break;
                 case MotionEvent.ACTION_UP:
                     // send stop
-                    mBleConnection.sendDirectionPacket(BleConnection.MES_DPAD_BUTTON_1_UP);
+                    mBleConnection.sendDirectionPacket(BleConnection.MES_DPAD_BUTTON_1_UP, touchTime(event));
                     break;
             }
         } else {
@@ -152,6 +234,37 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    /**
+     * Time of the touch in the {@link System#nanoTime()} time base; both count from boot.
+     */
+    private static long touchTime(MotionEvent event) {
+        return TimeUnit.MILLISECONDS.toNanos(event.getEventTime());
+    }
+
+    private void showLatency() {
+        final LatencyTracker tracker = mBleConnection.getLatencyTracker();
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.latency_title)
+                .setMessage(tracker.summary())
+                .setPositiveButton(android.R.string.ok, null)
+                .setNeutralButton(R.string.latency_export, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        Intent intent = new Intent(Intent.ACTION_SEND);
+                        intent.setType("text/csv");
+                        intent.putExtra(Intent.EXTRA_TEXT, tracker.exportCsv());
+                        startActivity(Intent.createChooser(intent, getText(R.string.latency_export)));
+                    }
+                })
+                .setNegativeButton(R.string.latency_reset, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        tracker.reset();
+                    }
+                })
+                .show();
+    }
+
     @Override
     public void onRequestPermissionsResult(int requestCode, String permissions[], int[] grantResults) {
         switch (requestCode) {
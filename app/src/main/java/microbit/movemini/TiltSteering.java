@@ -0,0 +1,140 @@
+package microbit.movemini;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.support.annotation.RequiresApi;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TiltSteering
+ *
+ * Feeds the accelerometer and gyroscope into a {@link TiltFilter} on a sensor thread and
+ * ticks a {@link TiltDrive} on a control thread at a fixed rate. The gyroscope is optional,
+ * without one the filter works from the accelerometer alone.
+ */
+
+@RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class TiltSteering implements SensorEventListener {
+
+    private final SensorManager mSensorManager;
+    private final TiltFilter mFilter = new TiltFilter();
+    private final TiltDrive mDrive;
+    private final long mTickNanos;
+
+    private HandlerThread mSensorThread;
+    private ScheduledExecutorService mControl;
+    private ScheduledFuture<?> mTicks;
+    private volatile boolean mCalibrate;
+
+    /**
+     * @param rateHz control loop rate
+     */
+    public TiltSteering(Context context, EventSink sink, AnalogDrive analogDrive, float rateHz) {
+        if (rateHz <= 0) {
+            throw new IllegalArgumentException("rate must be positive: " + rateHz);
+        }
+        this.mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        this.mDrive = new TiltDrive(mFilter, sink, analogDrive);
+        this.mTickNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rateHz);
+    }
+
+    public TiltDrive getDrive() {
+        return mDrive;
+    }
+
+    /**
+     * @return false if the phone has no accelerometer
+     */
+    public boolean isAvailable() {
+        return mSensorManager != null && mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER) != null;
+    }
+
+    /**
+     * Starts steering; the tilt at the start is the neutral position.
+     */
+    public synchronized void start() {
+        if (mTicks != null || !isAvailable()) {
+            return;
+        }
+        mFilter.reset();
+        mCalibrate = true;
+        mSensorThread = new HandlerThread("TiltSensors", Process.THREAD_PRIORITY_URGENT_DISPLAY);
+        mSensorThread.start();
+        Handler handler = new Handler(mSensorThread.getLooper());
+        mSensorManager.registerListener(this, mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER),
+                SensorManager.SENSOR_DELAY_GAME, handler);
+        Sensor gyroscope = mSensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
+        if (gyroscope != null) {
+            mSensorManager.registerListener(this, gyroscope, SensorManager.SENSOR_DELAY_GAME, handler);
+        }
+        mControl = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "TiltControl");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mTicks = mControl.scheduleAtFixedRate(mTick, mTickNanos, mTickNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stops steering and the robot.
+     */
+    public synchronized void stop() {
+        if (mTicks == null) {
+            return;
+        }
+        mSensorManager.unregisterListener(this);
+        mSensorThread.quitSafely();
+        mSensorThread = null;
+        mTicks.cancel(false);
+        mTicks = null;
+        mControl.shutdown();
+        mControl = null;
+        mDrive.stop(System.nanoTime());
+    }
+
+    public synchronized boolean isRunning() {
+        return mTicks != null;
+    }
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            if (mCalibrate && mFilter.hasEstimate()) {
+                mDrive.calibrate();
+                mCalibrate = false;
+            }
+            if (!mCalibrate) {
+                mDrive.tick(System.nanoTime());
+            }
+        }
+    };
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        float[] values = event.values;
+        if (event.sensor.getType() == Sensor.TYPE_GYROSCOPE) {
+            mFilter.onGyroscope(values[0], values[1], values[2], event.timestamp);
+        } else {
+            mFilter.onAccelerometer(values[0], values[1], values[2], event.timestamp);
+        }
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    }
+}
@@ -0,0 +1,89 @@
+package microbit.movemini;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DispatchBenchmark
+ *
+ * Path of a D-pad touch from sendDirectionPacket() down to the write: enqueue into the
+ * coalescing queue, take it on the writer, encode and hand it to a link that completes
+ * every write immediately.
+ */
+
+@State(Scope.Thread)
+public class DispatchBenchmark {
+
+    private CoalescingCommandQueue mQueue;
+    private CommandWriter mWriter;
+    private CoalescingCommandQueue mBatchQueue;
+    private CommandWriter mBatchWriter;
+    private Blackhole mBlackhole;
+    private int mValue;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        mBlackhole = blackhole;
+        mQueue = new CoalescingCommandQueue(16);
+        mWriter = new CommandWriter(mQueue, new PacketWriter() {
+            @Override
+            public boolean writePacket(byte[] data, int length) {
+                mBlackhole.consume(data);
+                mWriter.onWriteComplete(true);
+                return true;
+            }
+        });
+        mBatchQueue = new CoalescingCommandQueue(16);
+        mBatchWriter = new CommandWriter(mBatchQueue, new PacketWriter() {
+            @Override
+            public boolean writePacket(byte[] data, int length) {
+                mBlackhole.consume(data);
+                mBatchWriter.onWriteComplete(true);
+                return true;
+            }
+        });
+        mBatchWriter.setBatchWindow(5, TimeUnit.MILLISECONDS);
+    }
+
+    @Benchmark
+    public boolean enqueue() {
+        mValue = mValue == MicroBitEvents.MES_DPAD_BUTTON_1_DOWN
+                ? MicroBitEvents.MES_DPAD_BUTTON_1_UP
+                : MicroBitEvents.MES_DPAD_BUTTON_1_DOWN;
+        boolean offered = mQueue.offer(MicroBitEvents.MES_DPAD_CONTROLLER_ID, mValue);
+        mQueue.clear();
+        return offered;
+    }
+
+    @Benchmark
+    public boolean enqueueAndWrite() throws InterruptedException {
+        mValue = mValue == MicroBitEvents.MES_DPAD_BUTTON_1_DOWN
+                ? MicroBitEvents.MES_DPAD_BUTTON_1_UP
+                : MicroBitEvents.MES_DPAD_BUTTON_1_DOWN;
+        mQueue.offer(MicroBitEvents.MES_DPAD_CONTROLLER_ID, mValue);
+        return mWriter.writeNext();
+    }
+
+    @Benchmark
+    public boolean coalesceAndWrite() throws InterruptedException {
+        // a burst of direction changes collapses into a single write
+        mQueue.offer(MicroBitEvents.MES_DPAD_CONTROLLER_ID, MicroBitEvents.MES_DPAD_BUTTON_1_DOWN);
+        mQueue.offer(MicroBitEvents.MES_DPAD_CONTROLLER_ID, MicroBitEvents.MES_DPAD_BUTTON_3_DOWN);
+        mQueue.offer(MicroBitEvents.MES_DPAD_CONTROLLER_ID, MicroBitEvents.MES_DPAD_BUTTON_1_UP);
+        return mWriter.writeNext();
+    }
+
+    @Benchmark
+    public boolean batchedWrite() throws InterruptedException {
+        // direction plus both analog axes packed into one write
+        mBatchQueue.offer(MicroBitEvents.MES_DPAD_CONTROLLER_ID, MicroBitEvents.MES_DPAD_BUTTON_1_DOWN);
+        mBatchQueue.offer(MicroBitEvents.MOVEMINI_SPEED_ID, 50);
+        mBatchQueue.offer(MicroBitEvents.MOVEMINI_TURN_ID, -20);
+        return mBatchWriter.writeNext();
+    }
+}
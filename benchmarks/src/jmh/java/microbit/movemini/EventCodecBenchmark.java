@@ -0,0 +1,27 @@
+package microbit.movemini;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * EventCodecBenchmark
+ *
+ * Cost of encoding one event frame, the work done per packet before the GATT write.
+ */
+
+@State(Scope.Thread)
+public class EventCodecBenchmark {
+
+    private final byte[] mFrame = new byte[EventCodec.FRAME_SIZE];
+    private int mValue;
+
+    @Benchmark
+    public byte[] encode() {
+        mValue = mValue == MicroBitEvents.MES_DPAD_BUTTON_1_DOWN
+                ? MicroBitEvents.MES_DPAD_BUTTON_1_UP
+                : MicroBitEvents.MES_DPAD_BUTTON_1_DOWN;
+        EventCodec.encode(MicroBitEvents.MES_DPAD_CONTROLLER_ID, mValue, mFrame, 0);
+        return mFrame;
+    }
+}
@@ -0,0 +1,39 @@
+package microbit.movemini;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * EventRingBufferBenchmark
+ *
+ * Cost of decoding a notification into the inbound ring and reading it back, with and
+ * without an event code filter.
+ */
+
+@State(Scope.Thread)
+public class EventRingBufferBenchmark {
+
+    private final EventRingBuffer mRing = new EventRingBuffer(256);
+    private final EventRingBuffer.Subscriber mAll = mRing.subscribe(EventRingBuffer.ANY_EVENT);
+    private final EventRingBuffer.Subscriber mFiltered = mRing.subscribe(MicroBitEvents.MOVEMINI_TURN_ID);
+    private final EventRecord mRecord = new EventRecord();
+    private final byte[] mPacket = new byte[2 * EventCodec.FRAME_SIZE];
+    private int mValue;
+
+    @Benchmark
+    public int publishAndPoll() {
+        mRing.publish(MicroBitEvents.MES_DPAD_CONTROLLER_ID, mValue++ & 0xFF, System.nanoTime());
+        mAll.poll(mRecord);
+        return mRecord.value;
+    }
+
+    @Benchmark
+    public int packetAndFilteredPoll() {
+        int offset = EventCodec.encode(MicroBitEvents.MOVEMINI_SPEED_ID, mValue++ & 0xFF, mPacket, 0);
+        EventCodec.encode(MicroBitEvents.MOVEMINI_TURN_ID, mValue & 0xFF, mPacket, offset);
+        mRing.publishPacket(mPacket, mPacket.length, System.nanoTime());
+        mFiltered.poll(mRecord);
+        return mRecord.value;
+    }
+}
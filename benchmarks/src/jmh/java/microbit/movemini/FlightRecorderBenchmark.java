@@ -0,0 +1,44 @@
+package microbit.movemini;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * FlightRecorderBenchmark
+ *
+ * Cost the flight recorder adds to every packet written to the link.
+ */
+
+@State(Scope.Thread)
+public class FlightRecorderBenchmark {
+
+    private final byte[] mPacket = new byte[EventCodec.FRAME_SIZE];
+    private File mFile;
+    private FlightRecorder mRecorder;
+    private int mValue;
+
+    @Setup
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("flight", ".rec");
+        mRecorder = new FlightRecorder(mFile, 65536);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mRecorder.close();
+        mFile.delete();
+    }
+
+    @Benchmark
+    public FlightRecorder recordPacket() {
+        EventCodec.encode(MicroBitEvents.MES_DPAD_CONTROLLER_ID, mValue++ & 0xF, mPacket, 0);
+        mRecorder.recordPacket(FlightRecorder.Direction.SENT, mPacket, mPacket.length, 2);
+        return mRecorder;
+    }
+}
@@ -0,0 +1,26 @@
+package microbit.movemini;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * LatencyHistogramBenchmark
+ *
+ * Cost of recording a latency sample, paid several times per command on the send path.
+ */
+
+@State(Scope.Thread)
+public class LatencyHistogramBenchmark {
+
+    private final LatencyHistogram mHistogram = new LatencyHistogram();
+    private long mValue = 1;
+
+    @Benchmark
+    public LatencyHistogram record() {
+        // spread the samples from microseconds to seconds
+        mValue = mValue * 6364136223846793005L + 1442695040888963407L;
+        mHistogram.record((mValue >>> 34) & 0x3FFFFFFFL);
+        return mHistogram;
+    }
+}
@@ -0,0 +1,83 @@
+package microbit.movemini;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * ListenerNotifyBenchmark
+ *
+ * Cost of one BleConnection.notifyListener() round over the registered listeners, called on
+ * the notifying thread, and of a burst of state changes delivered through an executor, which
+ * are coalesced into one call per listener.
+ */
+
+@State(Scope.Thread)
+public class ListenerNotifyBenchmark {
+
+    public interface StateListener {
+
+        public void stateChanged(int state);
+    }
+
+    @Param({"1", "4"})
+    public int listeners;
+
+    private static final int BURST = 8;
+
+    private final ListenerRegistry<StateListener> mRegistry = new ListenerRegistry<>();
+    private final ListenerRegistry<StateListener> mExecutorRegistry = new ListenerRegistry<>();
+    private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+    private final Executor mExecutor = new Executor() {
+        @Override
+        public void execute(Runnable task) {
+            mTasks.add(task);
+        }
+    };
+    private int mState;
+
+    private final ListenerRegistry.Notifier<StateListener> mNotifier = new ListenerRegistry.Notifier<StateListener>() {
+        @Override
+        public void notify(StateListener listener) {
+            listener.stateChanged(mState);
+        }
+    };
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        for (int i = 0; i < listeners; i++) {
+            StateListener listener = new StateListener() {
+                @Override
+                public void stateChanged(int state) {
+                    blackhole.consume(state);
+                }
+            };
+            mRegistry.add(listener);
+            mExecutorRegistry.add(listener, mExecutor);
+        }
+    }
+
+    @Benchmark
+    public void notifyListeners() {
+        mState = (mState + 1) % 3;
+        mRegistry.notifyListeners(mNotifier);
+    }
+
+    @Benchmark
+    public void notifyBurstOnExecutor() {
+        for (int i = 0; i < BURST; i++) {
+            mState = (mState + 1) % 3;
+            mExecutorRegistry.notifyListeners(mNotifier);
+        }
+        Runnable task;
+        while ((task = mTasks.poll()) != null) {
+            task.run();
+        }
+    }
+}
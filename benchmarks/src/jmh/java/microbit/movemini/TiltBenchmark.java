@@ -0,0 +1,61 @@
+package microbit.movemini;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * TiltBenchmark
+ *
+ * Cost of the tilt steering path: fusing one accelerometer and gyroscope sample, paid at
+ * sensor rate, and one control tick quantizing the tilt into commands.
+ */
+
+@State(Scope.Thread)
+public class TiltBenchmark {
+
+    // 200 Hz, like SENSOR_DELAY_GAME on many phones
+    private static final long SAMPLE_NANOS = 5000000;
+
+    @Param({"DPAD", "ANALOG"})
+    public TiltDrive.Mode mode;
+
+    private final TiltFilter mFilter = new TiltFilter();
+    private TiltDrive mDrive;
+    private long mTimestamp;
+    private int mStep;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        EventSink sink = new EventSink() {
+            @Override
+            public void sendPacket(int eventCode, int value) {
+                blackhole.consume(value);
+            }
+        };
+        mDrive = new TiltDrive(mFilter, sink, new AnalogDrive(sink, 1e9f, 1));
+        mDrive.setMode(mode);
+        mFilter.onAccelerometer(0, 0, 9.81f, 0);
+        mDrive.calibrate();
+    }
+
+    @Benchmark
+    public TiltFilter fuse() {
+        mTimestamp += SAMPLE_NANOS;
+        // swing back and forth through the dead zone
+        float tilt = ((mStep++ & 255) - 128) / 128f;
+        mFilter.onAccelerometer(-9.81f * tilt * 0.5f, 9.81f * tilt * 0.2f, 9.81f, mTimestamp);
+        mFilter.onGyroscope(tilt * 0.1f, tilt * 0.2f, 0, mTimestamp);
+        return mFilter;
+    }
+
+    @Benchmark
+    public TiltDrive fuseAndTick() {
+        fuse();
+        mDrive.tick(mTimestamp);
+        return mDrive;
+    }
+}
@@ -0,0 +1,54 @@
+package microbit.movemini;
+
+import java.nio.charset.Charset;
+
+/**
+ * AdvertisingData
+ *
+ * Reads fields from raw BLE advertising data (a sequence of length, type, data structures)
+ * as delivered to a legacy scan callback, without asking the Bluetooth service for the
+ * device name.
+ */
+
+public final class AdvertisingData {
+
+    private static final int TYPE_SHORT_NAME = 0x08;
+    private static final int TYPE_COMPLETE_NAME = 0x09;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private AdvertisingData() {
+    }
+
+    /**
+     * @return the complete or shortened local name, or null if the data has none
+     */
+    public static String parseName(byte[] data) {
+        int offset = findName(data);
+        if (offset < 0) {
+            return null;
+        }
+        return new String(data, offset + 2, (data[offset] & 0xFF) - 1, UTF_8);
+    }
+
+    /**
+     * @return offset of the name structure, or -1
+     */
+    private static int findName(byte[] data) {
+        if (data == null) {
+            return -1;
+        }
+        int offset = 0;
+        while (offset + 1 < data.length) {
+            int length = data[offset] & 0xFF;
+            if (length == 0 || offset + 1 + length > data.length) {
+                return -1;
+            }
+            int type = data[offset + 1] & 0xFF;
+            if (type == TYPE_COMPLETE_NAME || type == TYPE_SHORT_NAME) {
+                return offset;
+            }
+            offset += 1 + length;
+        }
+        return -1;
+    }
+}
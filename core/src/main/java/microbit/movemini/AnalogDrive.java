@@ -0,0 +1,137 @@
+package microbit.movemini;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AnalogDrive
+ *
+ * Turns continuous (speed, turn) input into motor events. Values are quantized to percent,
+ * changes smaller than the deadband are ignored, updates are limited to a fixed rate and
+ * only the axis that changed is sent. Returning to neutral is always sent at once.
+ *
+ * Updates held back by the rate limit are not lost: {@link #update} and {@link #flush}
+ * return the delay after which {@link #flush} has to be called to send them.
+ */
+
+public class AnalogDrive {
+
+    private final EventSink mSink;
+    private final long mMinIntervalNanos;
+    private final int mDeadband;
+
+    private int mSentSpeed;
+    private int mSentTurn;
+    private int mPendingSpeed;
+    private int mPendingTurn;
+    private boolean mPending;
+    private long mLastSentAt;
+    private boolean mSentOnce;
+
+    private long mUpdates;
+    private long mPackets;
+
+    /**
+     * @param rateHz   maximum number of updates sent per second
+     * @param deadband minimum change in percent that is sent
+     */
+    public AnalogDrive(EventSink sink, float rateHz, int deadband) {
+        if (rateHz <= 0) {
+            throw new IllegalArgumentException("rate must be positive: " + rateHz);
+        }
+        this.mSink = sink;
+        this.mMinIntervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rateHz);
+        this.mDeadband = deadband;
+    }
+
+    /**
+     * @param speed forward speed in [-1, 1]
+     * @param turn  turn rate in [-1, 1], positive turns right
+     * @return nanoseconds until {@link #flush} must be called, or -1 if nothing is pending
+     */
+    public synchronized long update(float speed, float turn, long now) {
+        mUpdates++;
+        int quantizedSpeed = quantize(speed);
+        int quantizedTurn = quantize(turn);
+        boolean neutral = quantizedSpeed == 0 && quantizedTurn == 0;
+
+        if (neutral ? mSentSpeed == 0 && mSentTurn == 0
+                : Math.abs(quantizedSpeed - mSentSpeed) < mDeadband && Math.abs(quantizedTurn - mSentTurn) < mDeadband) {
+            mPending = false;
+            return -1;
+        }
+        mPendingSpeed = quantizedSpeed;
+        mPendingTurn = quantizedTurn;
+        mPending = true;
+        if (neutral) {
+            send(now);
+            return -1;
+        }
+        return flush(now);
+    }
+
+    /**
+     * Sends a held back update once the rate limit allows it.
+     *
+     * @return nanoseconds until the next call, or -1 if nothing is pending
+     */
+    public synchronized long flush(long now) {
+        if (!mPending) {
+            return -1;
+        }
+        long wait = mSentOnce ? mLastSentAt + mMinIntervalNanos - now : 0;
+        if (wait > 0) {
+            return wait;
+        }
+        send(now);
+        return -1;
+    }
+
+    /**
+     * Forgets what was sent, e.g. after the connection was lost.
+     */
+    public synchronized void reset() {
+        mSentSpeed = 0;
+        mSentTurn = 0;
+        mPending = false;
+        mSentOnce = false;
+    }
+
+    /**
+     * Number of input updates received.
+     */
+    public synchronized long getUpdateCount() {
+        return mUpdates;
+    }
+
+    /**
+     * Number of events sent to the sink.
+     */
+    public synchronized long getPacketCount() {
+        return mPackets;
+    }
+
+    private void send(long now) {
+        if (mPendingSpeed != mSentSpeed) {
+            mSink.sendPacket(MicroBitEvents.MOVEMINI_SPEED_ID, mPendingSpeed);
+            mSentSpeed = mPendingSpeed;
+            mPackets++;
+        }
+        if (mPendingTurn != mSentTurn) {
+            mSink.sendPacket(MicroBitEvents.MOVEMINI_TURN_ID, mPendingTurn);
+            mSentTurn = mPendingTurn;
+            mPackets++;
+        }
+        mPending = false;
+        mLastSentAt = now;
+        mSentOnce = true;
+    }
+
+    private static int quantize(float value) {
+        if (value > 1) {
+            value = 1;
+        } else if (value < -1) {
+            value = -1;
+        }
+        return Math.round(value * 100);
+    }
+}
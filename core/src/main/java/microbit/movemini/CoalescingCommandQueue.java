@@ -0,0 +1,140 @@
+package microbit.movemini;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CoalescingCommandQueue
+ *
+ * Bounded {@link CommandQueue} that keeps at most one pending command per event code:
+ * a newer command replaces a waiting one of the same kind, so stale D-pad directions
+ * never reach the radio. When the queue is full the oldest command is dropped.
+ */
+
+public class CoalescingCommandQueue implements CommandQueue {
+
+    private final int[] mEventCodes;
+    private final int[] mValues;
+    private final long[] mTouchedAt;
+    private final long[] mEnqueuedAt;
+    private int mHead;
+    private int mCount;
+
+    private long mCoalesced;
+    private long mOverflowed;
+
+    public CoalescingCommandQueue(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        mEventCodes = new int[capacity];
+        mValues = new int[capacity];
+        mTouchedAt = new long[capacity];
+        mEnqueuedAt = new long[capacity];
+    }
+
+    @Override
+    public boolean offer(int eventCode, int value) {
+        return offer(eventCode, value, 0);
+    }
+
+    @Override
+    public synchronized boolean offer(int eventCode, int value, long touchedAt) {
+        int capacity = mEventCodes.length;
+        for (int i = 0; i < mCount; i++) {
+            if (mEventCodes[(mHead + i) % capacity] == eventCode) {
+                removeAt(i);
+                mCoalesced++;
+                break;
+            }
+        }
+        if (mCount == capacity) {
+            removeAt(0);
+            mOverflowed++;
+        }
+        int tail = (mHead + mCount) % capacity;
+        mEventCodes[tail] = eventCode;
+        mValues[tail] = value;
+        mTouchedAt[tail] = touchedAt;
+        mEnqueuedAt[tail] = System.nanoTime();
+        mCount++;
+        notifyAll();
+        return true;
+    }
+
+    @Override
+    public synchronized void take(Command out) throws InterruptedException {
+        while (mCount == 0) {
+            wait();
+        }
+        removeFirst(out);
+    }
+
+    @Override
+    public synchronized boolean poll(Command out) {
+        if (mCount == 0) {
+            return false;
+        }
+        removeFirst(out);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean poll(Command out, long timeout, TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        long deadline = System.nanoTime() + remaining;
+        while (mCount == 0) {
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            remaining = deadline - System.nanoTime();
+        }
+        removeFirst(out);
+        return true;
+    }
+
+    @Override
+    public synchronized int size() {
+        return mCount;
+    }
+
+    @Override
+    public synchronized void clear() {
+        mHead = 0;
+        mCount = 0;
+    }
+
+    /**
+     * Number of commands that were replaced by a newer one of the same event code.
+     */
+    public synchronized long getCoalescedCount() {
+        return mCoalesced;
+    }
+
+    /**
+     * Number of commands that were dropped because the queue was full.
+     */
+    public synchronized long getOverflowCount() {
+        return mOverflowed;
+    }
+
+    private void removeFirst(Command out) {
+        out.set(mEventCodes[mHead], mValues[mHead], mTouchedAt[mHead], mEnqueuedAt[mHead]);
+        mHead = (mHead + 1) % mEventCodes.length;
+        mCount--;
+    }
+
+    private void removeAt(int index) {
+        int capacity = mEventCodes.length;
+        // shift the younger entries one slot towards the head
+        for (int i = index; i < mCount - 1; i++) {
+            int to = (mHead + i) % capacity;
+            int from = (to + 1) % capacity;
+            mEventCodes[to] = mEventCodes[from];
+            mValues[to] = mValues[from];
+            mTouchedAt[to] = mTouchedAt[from];
+            mEnqueuedAt[to] = mEnqueuedAt[from];
+        }
+        mCount--;
+    }
+}
@@ -0,0 +1,23 @@
+package microbit.movemini;
+
+/**
+ * Command
+ *
+ * Mutable holder for a queued event, reused by the consumer to avoid allocation.
+ */
+
+public final class Command {
+
+    public int eventCode;
+    public int value;
+    // time of the user input that caused the command, 0 if unknown
+    public long touchedAt;
+    public long enqueuedAt;
+
+    public void set(int eventCode, int value, long touchedAt, long enqueuedAt) {
+        this.eventCode = eventCode;
+        this.value = value;
+        this.touchedAt = touchedAt;
+        this.enqueuedAt = enqueuedAt;
+    }
+}
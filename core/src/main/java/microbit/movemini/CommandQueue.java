@@ -0,0 +1,49 @@
+package microbit.movemini;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CommandQueue
+ *
+ * Queue between the producers of commands (UI, timers) and the single BLE writer.
+ */
+
+public interface CommandQueue {
+
+    /**
+     * Enqueues a command. Implementations may drop or replace older commands.
+     *
+     * @return false if the command was rejected
+     */
+    public boolean offer(int eventCode, int value);
+
+    /**
+     * Like {@link #offer(int, int)} for a command caused by user input at {@code touchedAt}
+     * ({@link System#nanoTime()} time base), for latency tracking.
+     */
+    public boolean offer(int eventCode, int value, long touchedAt);
+
+    /**
+     * Copies the oldest command into {@code out} and removes it, waiting until one is available.
+     */
+    public void take(Command out) throws InterruptedException;
+
+    /**
+     * Copies the oldest command into {@code out} and removes it.
+     *
+     * @return false if the queue was empty
+     */
+    public boolean poll(Command out);
+
+    /**
+     * Copies the oldest command into {@code out} and removes it, waiting up to the given time
+     * for one to arrive.
+     *
+     * @return false if no command arrived in time
+     */
+    public boolean poll(Command out, long timeout, TimeUnit unit) throws InterruptedException;
+
+    public int size();
+
+    public void clear();
+}
@@ -0,0 +1,511 @@
+package microbit.movemini;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CommandWriter
+ *
+ * Single consumer of a {@link CommandQueue}: takes commands on its own thread, encodes them
+ * and hands them to a {@link PacketWriter}. Writes are paced by a {@link WriteFlowControl}
+ * window and a write the link refuses is retried, so commands are not silently dropped.
+ * A write is also kept until its completion arrives: if it reports a failure, its commands
+ * are written again before anything newer, except those a newer write in flight already
+ * replaces, so a failed stop still reaches the robot.
+ * Records the time each command spent queued, and the latency of every stage of the send
+ * path in a {@link LatencyTracker}.
+ *
+ * Batching is opt-in: with a batch window set, commands enqueued within that window after
+ * the first one are packed into the same write, up to the packet size of the link.
+ *
+ * With a minimum write interval set the writer thread waits that long after each write
+ * before it takes the next command; commands queued meanwhile are merged by the queue and
+ * sent together in the next write.
+ */
+
+public class CommandWriter implements Runnable {
+
+    private static final long COMPLETION_TIMEOUT_MS = 500;
+    private static final long WRITE_RETRY_DELAY_MS = 2;
+    // largest ATT MTU (517) minus the write header
+    private static final int MAX_BATCH_FRAMES = 514 / EventCodec.FRAME_SIZE;
+    private static final int MAX_TRACKED_WRITES = 16;
+
+    private final CommandQueue mQueue;
+    private final PacketWriter mPacketWriter;
+    private final Command mCommand = new Command();
+    private final byte[] mFrame = new byte[MAX_BATCH_FRAMES * EventCodec.FRAME_SIZE];
+    private final long[] mBatchEnqueuedAt = new long[MAX_BATCH_FRAMES];
+    private final long[] mBatchTouchedAt = new long[MAX_BATCH_FRAMES];
+    private final LatencyStats mQueueLatency = new LatencyStats();
+    private final LatencyTracker mLatency = new LatencyTracker();
+    private final WriteFlowControl mFlowControl = new WriteFlowControl(1, COMPLETION_TIMEOUT_MS);
+    private volatile long mRetries;
+    private volatile long mBatchWindowNanos;
+    private volatile long mMinWriteIntervalNanos;
+    private volatile long mLastWriteAt;
+    private volatile int mMaxFrames = (RobotTransport.DEFAULT_MTU - 3) / EventCodec.FRAME_SIZE;
+    private volatile long mWrites;
+    // encoded packet waiting to be written
+    private int mHeldLength;
+    private int mHeldFrames;
+    private long mHeldTouchedAt;
+
+    // writes waiting for their completion, oldest first; guarded by mTrackingLock
+    private final Object mTrackingLock = new Object();
+    private final byte[][] mTrackedFrames = new byte[MAX_TRACKED_WRITES][MAX_BATCH_FRAMES * EventCodec.FRAME_SIZE];
+    private final int[] mTrackedLength = new int[MAX_TRACKED_WRITES];
+    private int mTrackedHead;
+    private int mTrackedCount;
+    // writes in flight older than the tracked ones, whose frames did not fit
+    private int mUntracked;
+    // frames of failed writes, sent again before the held packet
+    private final byte[] mRetryFrame = new byte[MAX_BATCH_FRAMES * EventCodec.FRAME_SIZE];
+    private volatile int mRetryLength;
+    // copy of the retry frames being written, only used by the writing thread
+    private final byte[] mRetrySend = new byte[MAX_BATCH_FRAMES * EventCodec.FRAME_SIZE];
+    private volatile long mRedelivered;
+    private volatile long mRedeliveryLost;
+
+    private volatile Thread mThread;
+
+    public CommandWriter(CommandQueue queue, PacketWriter packetWriter) {
+        this.mQueue = queue;
+        this.mPacketWriter = packetWriter;
+    }
+
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mFlowControl.reset();
+        mLatency.clearInFlight();
+        clearTracking();
+        mThread = new Thread(this, "BleWriter");
+        mThread.setPriority(Thread.MAX_PRIORITY);
+        mThread.start();
+    }
+
+    public synchronized void stop() {
+        Thread thread = mThread;
+        mThread = null;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    public boolean isRunning() {
+        return mThread != null;
+    }
+
+    /**
+     * True if a command is queued, or a packet the link refused or a failed write waits to be
+     * written again. Call from the thread that calls {@link #tryWriteNext()}.
+     */
+    public boolean hasPending() {
+        return mHeldLength != 0 || mRetryLength != 0 || mQueue.size() > 0;
+    }
+
+    /**
+     * Drops a packet the link refused and the writes of the previous link, e.g. when a new
+     * link starts. Must not run concurrently with {@link #tryWriteNext()}.
+     */
+    public void discardHeldPacket() {
+        mHeldLength = 0;
+        mHeldFrames = 0;
+        mHeldTouchedAt = 0;
+        clearTracking();
+    }
+
+    /**
+     * Must be called when the link reports that a write finished. Completions arrive in the
+     * order of the writes; the commands of a failed write are written again.
+     */
+    public void onWriteComplete(boolean success) {
+        mLatency.onPacketComplete(System.nanoTime());
+        boolean redeliver;
+        synchronized (mTrackingLock) {
+            redeliver = completeTracked(success);
+        }
+        mFlowControl.complete(success);
+        Thread thread = mThread;
+        if (redeliver && thread != null) {
+            // the writer thread may be waiting for a command
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Sets how many writes may be outstanding at the same time.
+     */
+    public void setMaxWritesInFlight(int window) {
+        mFlowControl.setWindow(window);
+    }
+
+    /**
+     * Enables batching: commands arriving within this time after the first one of a write are
+     * sent with it. 0 disables batching.
+     */
+    public void setBatchWindow(long window, TimeUnit unit) {
+        mBatchWindowNanos = unit.toNanos(window);
+    }
+
+    /**
+     * Sets the minimum time between two writes of the writer thread, 0 for none. Does not
+     * apply to {@link #writeNext()} and {@link #tryWriteNext()}.
+     */
+    public void setMinWriteInterval(long interval, TimeUnit unit) {
+        mMinWriteIntervalNanos = unit.toNanos(interval);
+    }
+
+    public long getMinWriteInterval(TimeUnit unit) {
+        return unit.convert(mMinWriteIntervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets the largest number of bytes a single write may carry, usually the ATT MTU minus 3.
+     */
+    public void setMaxPacketSize(int bytes) {
+        mMaxFrames = Math.max(1, Math.min(MAX_BATCH_FRAMES, bytes / EventCodec.FRAME_SIZE));
+    }
+
+    /**
+     * Number of packets handed to the {@link PacketWriter}; lower than the number of commands when batching.
+     */
+    public long getWriteCount() {
+        return mWrites;
+    }
+
+    /**
+     * {@link System#nanoTime()} of the last packet handed to the {@link PacketWriter}, 0 before the first.
+     */
+    public long getLastWriteAt() {
+        return mLastWriteAt;
+    }
+
+    public WriteFlowControl getFlowControl() {
+        return mFlowControl;
+    }
+
+    /**
+     * Number of writes that were refused by the link and issued again.
+     */
+    public long getRetryCount() {
+        return mRetries;
+    }
+
+    /**
+     * Number of commands written again because their write completed with a failure.
+     */
+    public long getRedeliveredCount() {
+        return mRedelivered;
+    }
+
+    /**
+     * Number of commands of failed writes that could not be kept to be written again.
+     */
+    public long getRedeliveryLostCount() {
+        return mRedeliveryLost;
+    }
+
+    /**
+     * Time from {@link CommandQueue#offer} until the packet was handed to the {@link PacketWriter}.
+     */
+    public LatencyStats getQueueLatency() {
+        return mQueueLatency;
+    }
+
+    /**
+     * Latency histograms of the send path, from the user input up to the write completion.
+     */
+    public LatencyTracker getLatencyTracker() {
+        return mLatency;
+    }
+
+    @Override
+    public void run() {
+        Thread current = Thread.currentThread();
+        while (mThread == current) {
+            try {
+                if (mHeldLength == 0 && mRetryLength == 0) {
+                    long interval = mMinWriteIntervalNanos;
+                    long pause = mLastWriteAt + interval - System.nanoTime();
+                    if (interval > 0 && pause > 0) {
+                        TimeUnit.NANOSECONDS.sleep(pause);
+                    }
+                    mQueue.take(mCommand);
+                    encodeBatchWaiting(mCommand);
+                }
+                writePending();
+            } catch (InterruptedException e) {
+                // stopped, or a failed write is to be written again
+            }
+        }
+    }
+
+    /**
+     * Writes the oldest pending command on the calling thread, waiting for flow control credit
+     * if necessary. For callers that drive the writer without its own thread. Batching only
+     * picks up commands that are already queued.
+     *
+     * @return false if no command was pending
+     */
+    public boolean writeNext() throws InterruptedException {
+        if (mHeldLength == 0) {
+            if (mQueue.poll(mCommand)) {
+                encodeBatch(mCommand);
+            } else if (mRetryLength == 0) {
+                return false;
+            }
+        }
+        writePending();
+        return true;
+    }
+
+    /**
+     * Non-blocking variant of {@link #writeNext()} for a dispatcher serving several writers:
+     * writes only if a flow control credit is free. A packet the link refuses is kept and
+     * offered again on the next call.
+     *
+     * @return true if a packet was handed to the link
+     */
+    public boolean tryWriteNext() {
+        if (mHeldLength == 0 && mRetryLength == 0 && mQueue.size() == 0) {
+            return false;
+        }
+        if (!mFlowControl.tryAcquire()) {
+            return false;
+        }
+        if (mHeldLength == 0 && mRetryLength == 0) {
+            if (!mQueue.poll(mCommand)) {
+                mFlowControl.cancel();
+                return false;
+            }
+            encodeBatch(mCommand);
+        }
+        if (!issueWrite()) {
+            mFlowControl.cancel();
+            mRetries++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Writes the frames of failed writes and then the held packet, waiting for flow control
+     * credit for each write.
+     */
+    private void writePending() throws InterruptedException {
+        while (mHeldLength != 0 || mRetryLength != 0) {
+            mFlowControl.acquire();
+            if (!issueWrite()) {
+                // the stack is busy with another operation, keep the commands and try again
+                mFlowControl.cancel();
+                mRetries++;
+                Thread.sleep(WRITE_RETRY_DELAY_MS);
+            }
+        }
+    }
+
+    /**
+     * Writes the frames of failed writes if there are any, the held packet otherwise.
+     */
+    private boolean issueWrite() {
+        long now = System.nanoTime();
+        int window = mFlowControl.getWindow();
+        int retry = trackNextWrite(window);
+        byte[] data = retry > 0 ? mRetrySend : mFrame;
+        int length = retry > 0 ? retry : mHeldLength;
+        // announced before the write, its completion may arrive before writePacket returns
+        mLatency.onPacketWriting(retry > 0 ? 0 : mHeldTouchedAt, now, window);
+        if (!mPacketWriter.writePacket(data, length)) {
+            untrackRefusedWrite();
+            mLatency.onPacketRefused();
+            return false;
+        }
+        if (retry == 0) {
+            written(now);
+            return true;
+        }
+        mWrites++;
+        mLastWriteAt = now;
+        mRedelivered += retry / EventCodec.FRAME_SIZE;
+        synchronized (mTrackingLock) {
+            // failures reported meanwhile were appended behind the frames just written
+            System.arraycopy(mRetryFrame, retry, mRetryFrame, 0, mRetryLength - retry);
+            mRetryLength -= retry;
+        }
+        return true;
+    }
+
+    /**
+     * Picks the packet to write and keeps a copy of it until its completion arrives. The
+     * frames of failed writes go first, the held packet is newer. Picked under the same lock
+     * the completions take, so a failure reported later sees the held packet in flight.
+     *
+     * @return length of the failed frames copied for writing, 0 to write the held packet
+     */
+    private int trackNextWrite(int window) {
+        synchronized (mTrackingLock) {
+            int retry = Math.min(mRetryLength, mMaxFrames * EventCodec.FRAME_SIZE);
+            System.arraycopy(mRetryFrame, 0, mRetrySend, 0, retry);
+            // more writes than the window: the completions of the oldest got lost
+            while (mUntracked + mTrackedCount >= window) {
+                if (mUntracked > 0) {
+                    mUntracked--;
+                } else {
+                    dropOldestTracked();
+                }
+            }
+            if (mTrackedCount == MAX_TRACKED_WRITES) {
+                dropOldestTracked();
+                mUntracked++;
+            }
+            int slot = (mTrackedHead + mTrackedCount) % MAX_TRACKED_WRITES;
+            System.arraycopy(retry > 0 ? mRetrySend : mFrame, 0, mTrackedFrames[slot], 0,
+                    retry > 0 ? retry : mHeldLength);
+            mTrackedLength[slot] = retry > 0 ? retry : mHeldLength;
+            mTrackedCount++;
+            return retry;
+        }
+    }
+
+    private void untrackRefusedWrite() {
+        synchronized (mTrackingLock) {
+            if (mTrackedCount > 0) {
+                mTrackedCount--;
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest write and keeps its frames for writing again if it failed, except
+     * those replaced by a newer write of the same event code.
+     *
+     * @return true if frames were kept
+     */
+    private boolean completeTracked(boolean success) {
+        if (mUntracked > 0) {
+            mUntracked--;
+            return false;
+        }
+        if (mTrackedCount == 0) {
+            return false;
+        }
+        int slot = mTrackedHead;
+        dropOldestTracked();
+        if (success) {
+            return false;
+        }
+        byte[] frames = mTrackedFrames[slot];
+        boolean kept = false;
+        for (int offset = 0; offset < mTrackedLength[slot]; offset += EventCodec.FRAME_SIZE) {
+            if (isReplacedByNewerWrite(EventCodec.decodeEventCode(frames, offset))) {
+                continue;
+            }
+            if (mRetryLength + EventCodec.FRAME_SIZE > mRetryFrame.length) {
+                mRedeliveryLost++;
+                continue;
+            }
+            System.arraycopy(frames, offset, mRetryFrame, mRetryLength, EventCodec.FRAME_SIZE);
+            mRetryLength += EventCodec.FRAME_SIZE;
+            kept = true;
+        }
+        return kept;
+    }
+
+    private boolean isReplacedByNewerWrite(int eventCode) {
+        for (int i = 0; i < mTrackedCount; i++) {
+            int slot = (mTrackedHead + i) % MAX_TRACKED_WRITES;
+            byte[] frames = mTrackedFrames[slot];
+            for (int offset = 0; offset < mTrackedLength[slot]; offset += EventCodec.FRAME_SIZE) {
+                if (EventCodec.decodeEventCode(frames, offset) == eventCode) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void dropOldestTracked() {
+        mTrackedHead = (mTrackedHead + 1) % MAX_TRACKED_WRITES;
+        mTrackedCount--;
+    }
+
+    private void clearTracking() {
+        synchronized (mTrackingLock) {
+            mTrackedHead = 0;
+            mTrackedCount = 0;
+            mUntracked = 0;
+            mRetryLength = 0;
+        }
+    }
+
+    /**
+     * Encodes the command and, when batching, the commands already queued behind it.
+     */
+    private void encodeBatch(Command command) {
+        encodeFirst(command);
+        if (mBatchWindowNanos > 0) {
+            int maxFrames = mMaxFrames;
+            while (mHeldFrames < maxFrames && mQueue.poll(command)) {
+                encodeNext(command);
+            }
+        }
+    }
+
+    /**
+     * Like {@link #encodeBatch} but also waits for commands arriving within the batch window.
+     */
+    private void encodeBatchWaiting(Command command) throws InterruptedException {
+        encodeFirst(command);
+        long batchWindow = mBatchWindowNanos;
+        if (batchWindow == 0 && mMinWriteIntervalNanos > 0) {
+            // paced: send what was merged while waiting, without waiting for more
+            int maxFrames = mMaxFrames;
+            while (mHeldFrames < maxFrames && mQueue.poll(command)) {
+                encodeNext(command);
+            }
+        } else if (batchWindow > 0) {
+            long deadline = command.enqueuedAt + batchWindow;
+            int maxFrames = mMaxFrames;
+            while (mHeldFrames < maxFrames) {
+                long remaining = deadline - System.nanoTime();
+                boolean more = remaining > 0
+                        ? mQueue.poll(command, remaining, TimeUnit.NANOSECONDS)
+                        : mQueue.poll(command);
+                if (!more) {
+                    break;
+                }
+                encodeNext(command);
+            }
+        }
+    }
+
+    private void encodeFirst(Command command) {
+        mHeldLength = EventCodec.encode(command.eventCode, command.value, mFrame, 0);
+        mBatchEnqueuedAt[0] = command.enqueuedAt;
+        mBatchTouchedAt[0] = command.touchedAt;
+        mHeldTouchedAt = command.touchedAt;
+        mHeldFrames = 1;
+    }
+
+    private void encodeNext(Command command) {
+        mHeldLength = EventCodec.encode(command.eventCode, command.value, mFrame, mHeldLength);
+        mBatchEnqueuedAt[mHeldFrames] = command.enqueuedAt;
+        mBatchTouchedAt[mHeldFrames++] = command.touchedAt;
+        if (command.touchedAt != 0 && (mHeldTouchedAt == 0 || command.touchedAt < mHeldTouchedAt)) {
+            mHeldTouchedAt = command.touchedAt;
+        }
+    }
+
+    private void written(long now) {
+        mWrites++;
+        mLastWriteAt = now;
+        for (int i = 0; i < mHeldFrames; i++) {
+            mQueueLatency.record(now - mBatchEnqueuedAt[i]);
+            mLatency.onCommandWritten(mBatchTouchedAt[i], mBatchEnqueuedAt[i], now);
+        }
+        mHeldLength = 0;
+        mHeldFrames = 0;
+    }
+}
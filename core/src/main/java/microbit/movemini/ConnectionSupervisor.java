@@ -0,0 +1,257 @@
+package microbit.movemini;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ConnectionSupervisor
+ *
+ * State machine for the connection to one robot. When an established link drops it keeps
+ * retrying with jittered exponential backoff while sending is paused. After a successful
+ * reconnect only the safe command (stop, unless configured otherwise) is sent, commands
+ * issued during the outage are discarded.
+ *
+ * All events may arrive on any thread; retries run on the given scheduler.
+ */
+
+public class ConnectionSupervisor {
+
+    public enum State {IDLE, CONNECTING, CONNECTED, RECONNECTING}
+
+    /**
+     * Operations the supervisor drives. Called with the supervisor lock held.
+     */
+    public interface Link {
+
+        /**
+         * Starts a connection attempt, its outcome is reported through {@link #onLinkUp()}
+         * or {@link #onLinkDown()}.
+         *
+         * @param reconnect true for a retry after an established link was lost
+         */
+        public void openLink(boolean reconnect);
+
+        /**
+         * Aborts an attempt or closes the link, without reporting back. May be called again
+         * for a link already closed.
+         */
+        public void closeLink();
+
+        public void pauseSending();
+
+        /**
+         * Starts sending. After a reconnect the pending commands are to be dropped and only
+         * the given safe command sent.
+         */
+        public void resumeSending(boolean afterReconnect, int safeEventCode, int safeValue);
+
+        public void onStateChanged(State state);
+    }
+
+    private final Link mLink;
+    private final ScheduledExecutorService mScheduler;
+    private final Random mRandom;
+
+    private long mBaseDelayMs = 250;
+    private long mMaxDelayMs = 8000;
+    private long mAttemptTimeoutMs = 5000;
+    private int mMaxAttempts = 0;
+    private boolean mAutoReconnect = true;
+    private int mSafeEventCode = MicroBitEvents.MES_DPAD_CONTROLLER_ID;
+    private int mSafeValue = MicroBitEvents.MES_DPAD_BUTTON_1_UP;
+
+    private volatile State mState = State.IDLE;
+    private int mAttempt;
+    private ScheduledFuture<?> mPending;
+    private long mOutageStartedAt;
+    private long mReconnects;
+    private final LatencyStats mOutageTime = new LatencyStats();
+
+    private final Runnable mRetryTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ConnectionSupervisor.this) {
+                if (mState != State.RECONNECTING) {
+                    return;
+                }
+                mPending = mScheduler.schedule(mAttemptTimeoutTask, mAttemptTimeoutMs, TimeUnit.MILLISECONDS);
+                // every attempt opens a new link, release whatever is left of the last one
+                mLink.closeLink();
+                mLink.openLink(true);
+            }
+        }
+    };
+
+    private final Runnable mAttemptTimeoutTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ConnectionSupervisor.this) {
+                if (mState != State.RECONNECTING) {
+                    return;
+                }
+                mLink.closeLink();
+                scheduleRetry();
+            }
+        }
+    };
+
+    public ConnectionSupervisor(Link link, ScheduledExecutorService scheduler, long seed) {
+        this.mLink = link;
+        this.mScheduler = scheduler;
+        this.mRandom = new Random(seed);
+    }
+
+    /**
+     * Sets the backoff: the n-th retry waits between half and all of min(max, base * 2^n).
+     */
+    public synchronized void setBackoff(long baseDelayMs, long maxDelayMs) {
+        mBaseDelayMs = baseDelayMs;
+        mMaxDelayMs = maxDelayMs;
+    }
+
+    /**
+     * Time a reconnect attempt may take before it is aborted and the next one scheduled.
+     */
+    public synchronized void setAttemptTimeout(long timeoutMs) {
+        mAttemptTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Number of reconnect attempts before giving up, 0 retries forever.
+     */
+    public synchronized void setMaxAttempts(int maxAttempts) {
+        mMaxAttempts = maxAttempts;
+    }
+
+    public synchronized void setAutoReconnect(boolean autoReconnect) {
+        mAutoReconnect = autoReconnect;
+    }
+
+    /**
+     * Command sent right after a reconnect.
+     */
+    public synchronized void setSafeCommand(int eventCode, int value) {
+        mSafeEventCode = eventCode;
+        mSafeValue = value;
+    }
+
+    public State getState() {
+        return mState;
+    }
+
+    public synchronized void connect() {
+        if (mState != State.IDLE) {
+            return;
+        }
+        mAttempt = 0;
+        setState(State.CONNECTING);
+        mLink.openLink(false);
+    }
+
+    public synchronized void disconnect() {
+        cancelPending();
+        if (mState == State.IDLE) {
+            return;
+        }
+        mLink.pauseSending();
+        mLink.closeLink();
+        setState(State.IDLE);
+    }
+
+    public synchronized void onLinkUp() {
+        cancelPending();
+        if (mState == State.IDLE) {
+            // came up after a disconnect
+            mLink.closeLink();
+            return;
+        }
+        if (mState == State.CONNECTED) {
+            return;
+        }
+        boolean reconnect = mState == State.RECONNECTING;
+        if (reconnect) {
+            mReconnects++;
+            mOutageTime.record(System.nanoTime() - mOutageStartedAt);
+        }
+        mAttempt = 0;
+        setState(State.CONNECTED);
+        mLink.resumeSending(reconnect, mSafeEventCode, mSafeValue);
+    }
+
+    /**
+     * Reports a lost link or a failed connection attempt. The link is closed, a dropped link
+     * still holds resources such as a GATT client until then.
+     */
+    public synchronized void onLinkDown() {
+        switch (mState) {
+            case CONNECTED:
+                mLink.pauseSending();
+                mLink.closeLink();
+                if (!mAutoReconnect) {
+                    setState(State.IDLE);
+                    return;
+                }
+                mOutageStartedAt = System.nanoTime();
+                mAttempt = 0;
+                setState(State.RECONNECTING);
+                scheduleRetry();
+                break;
+            case RECONNECTING:
+                cancelPending();
+                mLink.closeLink();
+                scheduleRetry();
+                break;
+            case CONNECTING:
+                mLink.closeLink();
+                setState(State.IDLE);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Number of successful reconnects.
+     */
+    public synchronized long getReconnectCount() {
+        return mReconnects;
+    }
+
+    /**
+     * Time from losing the link until it was reestablished.
+     */
+    public LatencyStats getOutageTime() {
+        return mOutageTime;
+    }
+
+    private void scheduleRetry() {
+        if (mMaxAttempts > 0 && mAttempt >= mMaxAttempts) {
+            setState(State.IDLE);
+            return;
+        }
+        mPending = mScheduler.schedule(mRetryTask, backoffDelay(mAttempt++), TimeUnit.MILLISECONDS);
+    }
+
+    private long backoffDelay(int attempt) {
+        long delay = Math.min(mMaxDelayMs, mBaseDelayMs << Math.min(attempt, 20));
+        long half = delay / 2;
+        return half + (long) (mRandom.nextDouble() * (delay - half));
+    }
+
+    private void cancelPending() {
+        if (mPending != null) {
+            mPending.cancel(false);
+            mPending = null;
+        }
+    }
+
+    private void setState(State state) {
+        if (mState == state) {
+            return;
+        }
+        mState = state;
+        mLink.onStateChanged(state);
+    }
+}
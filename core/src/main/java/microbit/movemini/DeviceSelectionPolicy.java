@@ -0,0 +1,21 @@
+package microbit.movemini;
+
+import java.util.Collection;
+
+/**
+ * DeviceSelectionPolicy
+ *
+ * Decides which of the micro:bits found by a scan to connect to, and when.
+ */
+
+public interface DeviceSelectionPolicy {
+
+    /**
+     * Called on the scan thread after every advertisement of a micro:bit.
+     *
+     * @param robots        all micro:bits seen since the scan started
+     * @param scanStartedAt {@link System#nanoTime()} at the start of the scan
+     * @return the robot to connect to, or null to keep scanning
+     */
+    public RobotInfo select(Collection<RobotInfo> robots, long scanStartedAt, long now);
+}
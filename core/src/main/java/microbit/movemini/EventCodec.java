@@ -0,0 +1,38 @@
+package microbit.movemini;
+
+/**
+ * EventCodec
+ *
+ * Encodes MicroBit events (eventCode, value) into the 4 byte little-endian frame
+ * expected by the event characteristic. Frames are written into caller supplied
+ * buffers, so encoding does not allocate.
+ */
+
+public final class EventCodec {
+
+    public static final int FRAME_SIZE = 4;
+
+    private EventCodec() {
+    }
+
+    /**
+     * Writes one event frame to {@code dst} starting at {@code offset}.
+     *
+     * @return the offset following the written frame
+     */
+    public static int encode(int eventCode, int value, byte[] dst, int offset) {
+        dst[offset] = (byte) eventCode;
+        dst[offset + 1] = (byte) (eventCode >> 8);
+        dst[offset + 2] = (byte) value;
+        dst[offset + 3] = (byte) (value >> 8);
+        return offset + FRAME_SIZE;
+    }
+
+    public static int decodeEventCode(byte[] src, int offset) {
+        return (src[offset] & 0xFF) | ((src[offset + 1] & 0xFF) << 8);
+    }
+
+    public static int decodeValue(byte[] src, int offset) {
+        return (src[offset + 2] & 0xFF) | ((src[offset + 3] & 0xFF) << 8);
+    }
+}
@@ -0,0 +1,20 @@
+package microbit.movemini;
+
+/**
+ * EventRecord
+ *
+ * Mutable holder for an event received from the micro:bit, filled by
+ * {@link EventRingBuffer.Subscriber#poll}.
+ */
+
+public final class EventRecord {
+
+    public int eventCode;
+    public int value;
+    public long timestamp;
+
+    @Override
+    public String toString() {
+        return eventCode + "/" + value + " @" + timestamp;
+    }
+}
@@ -0,0 +1,139 @@
+package microbit.movemini;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * EventRingBuffer
+ *
+ * Preallocated single producer, multi consumer ring of (eventCode, value, timestamp) records.
+ * The producer never blocks and never allocates; every {@link Subscriber} reads all records
+ * at its own pace without locks. A subscriber that falls more than the capacity behind loses
+ * the oldest records and counts them.
+ */
+
+public class EventRingBuffer {
+
+    public static final int ANY_EVENT = -1;
+
+    private final int mMask;
+    // event code in the upper, value in the lower 16 bits
+    private final AtomicIntegerArray mEvents;
+    private final AtomicLongArray mTimestamps;
+    private final AtomicLong mPublished = new AtomicLong();
+
+    /**
+     * @param capacity number of records kept, rounded up to a power of two
+     */
+    public EventRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mMask = size - 1;
+        mEvents = new AtomicIntegerArray(size);
+        mTimestamps = new AtomicLongArray(size);
+    }
+
+    public int getCapacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * Appends a record. Must only be called from one thread at a time.
+     */
+    public void publish(int eventCode, int value, long timestamp) {
+        long sequence = mPublished.get();
+        int slot = (int) sequence & mMask;
+        mEvents.lazySet(slot, (eventCode << 16) | (value & 0xFFFF));
+        mTimestamps.lazySet(slot, timestamp);
+        mPublished.lazySet(sequence + 1);
+    }
+
+    /**
+     * Appends every event frame of a received packet, see {@link EventCodec}.
+     */
+    public void publishPacket(byte[] data, int length, long timestamp) {
+        for (int offset = 0; offset + EventCodec.FRAME_SIZE <= length; offset += EventCodec.FRAME_SIZE) {
+            publish(EventCodec.decodeEventCode(data, offset), EventCodec.decodeValue(data, offset), timestamp);
+        }
+    }
+
+    /**
+     * Number of records published so far.
+     */
+    public long getPublishedCount() {
+        return mPublished.get();
+    }
+
+    /**
+     * Creates a reader starting at the next published record.
+     *
+     * @param eventCode only records with this event code are returned, or {@link #ANY_EVENT}
+     */
+    public Subscriber subscribe(int eventCode) {
+        return new Subscriber(eventCode, mPublished.get());
+    }
+
+    /**
+     * Reader with its own position. A subscriber must only be used by one thread at a time.
+     */
+    public class Subscriber {
+
+        private final int mFilter;
+        private long mCursor;
+        private long mLost;
+
+        private Subscriber(int filter, long cursor) {
+            this.mFilter = filter;
+            this.mCursor = cursor;
+        }
+
+        /**
+         * Copies the next matching record into {@code out}.
+         *
+         * @return false if no matching record is available
+         */
+        public boolean poll(EventRecord out) {
+            int capacity = mMask + 1;
+            while (true) {
+                long published = mPublished.get();
+                if (mCursor >= published) {
+                    return false;
+                }
+                if (published - mCursor >= capacity) {
+                    // the oldest slot is the one the producer writes next, skip it as well
+                    mLost += published - mCursor - capacity + 1;
+                    mCursor = published - capacity + 1;
+                }
+                int slot = (int) mCursor & mMask;
+                int event = mEvents.get(slot);
+                long timestamp = mTimestamps.get(slot);
+                // the slot may have been reused while it was read
+                if (mPublished.get() - mCursor >= capacity) {
+                    continue;
+                }
+                mCursor++;
+                int eventCode = event >>> 16;
+                if (mFilter == ANY_EVENT || mFilter == eventCode) {
+                    out.eventCode = eventCode;
+                    out.value = event & 0xFFFF;
+                    out.timestamp = timestamp;
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Number of records not yet read, including ones that do not match the filter.
+         */
+        public long available() {
+            return Math.min(mPublished.get() - mCursor, mMask + 1);
+        }
+
+        /**
+         * Number of records overwritten before this subscriber could read them.
+         */
+        public long getLostCount() {
+            return mLost;
+        }
+    }
+}
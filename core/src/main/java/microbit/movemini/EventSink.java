@@ -0,0 +1,12 @@
+package microbit.movemini;
+
+/**
+ * EventSink
+ *
+ * Anything that accepts MicroBit events to be sent to the robot.
+ */
+
+public interface EventSink {
+
+    public void sendPacket(int eventCode, int value);
+}
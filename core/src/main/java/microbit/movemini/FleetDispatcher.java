@@ -0,0 +1,129 @@
+package microbit.movemini;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * FleetDispatcher
+ *
+ * Single thread writing for all {@link RobotSession}s of a fleet. Sessions are served round
+ * robin, one packet per session and round, so a busy robot cannot starve the others. The
+ * thread parks while no session has anything to write, until {@link #wakeUp()}; while
+ * commands are blocked it retries every few milliseconds, so a lost write completion
+ * cannot stall them.
+ */
+
+public class FleetDispatcher implements Runnable {
+
+    // retry interval while a session is blocked by its write window or a busy link
+    private static final long BLOCKED_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    // copy on write, read without locking by the dispatcher thread
+    private volatile RobotSession[] mSessions = new RobotSession[0];
+    private volatile Thread mThread;
+    private int mNext;
+
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new Thread(this, "FleetDispatcher");
+        mThread.setPriority(Thread.MAX_PRIORITY);
+        mThread.start();
+    }
+
+    public synchronized void stop() {
+        Thread thread = mThread;
+        mThread = null;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    public synchronized void add(RobotSession session) {
+        RobotSession[] sessions = mSessions;
+        for (RobotSession s : sessions) {
+            if (s == session) {
+                return;
+            }
+        }
+        RobotSession[] updated = new RobotSession[sessions.length + 1];
+        System.arraycopy(sessions, 0, updated, 0, sessions.length);
+        updated[sessions.length] = session;
+        mSessions = updated;
+        wakeUp();
+    }
+
+    public synchronized void remove(RobotSession session) {
+        RobotSession[] sessions = mSessions;
+        for (int i = 0; i < sessions.length; i++) {
+            if (sessions[i] == session) {
+                RobotSession[] updated = new RobotSession[sessions.length - 1];
+                System.arraycopy(sessions, 0, updated, 0, i);
+                System.arraycopy(sessions, i + 1, updated, i, sessions.length - i - 1);
+                mSessions = updated;
+                return;
+            }
+        }
+    }
+
+    public int getSessionCount() {
+        return mSessions.length;
+    }
+
+    /**
+     * Signals that a session got a command or a write credit.
+     */
+    public void wakeUp() {
+        Thread thread = mThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    @Override
+    public void run() {
+        Thread current = Thread.currentThread();
+        while (mThread == current) {
+            if (pumpRound()) {
+                continue;
+            }
+            if (hasPending()) {
+                LockSupport.parkNanos(this, BLOCKED_PARK_NANOS);
+            } else {
+                LockSupport.park(this);
+            }
+        }
+    }
+
+    private boolean hasPending() {
+        for (RobotSession session : mSessions) {
+            if (session.hasPending()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gives every session one chance to write, starting after the session served first last time.
+     *
+     * @return true if any packet was written
+     */
+    boolean pumpRound() {
+        RobotSession[] sessions = mSessions;
+        int count = sessions.length;
+        if (count == 0) {
+            return false;
+        }
+        boolean progress = false;
+        int start = mNext % count;
+        for (int i = 0; i < count; i++) {
+            if (sessions[(start + i) % count].pump()) {
+                progress = true;
+            }
+        }
+        mNext = start + 1;
+        return progress;
+    }
+}
@@ -0,0 +1,118 @@
+package microbit.movemini;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * FlightLog
+ *
+ * Records read from a {@link FlightRecorder}, oldest first, for inspection and replay.
+ * Timestamps of records from different runs of the app cannot be compared, see
+ * {@link #getRun}.
+ */
+
+public class FlightLog {
+
+    private int[] mRuns;
+    private long[] mTimestamps;
+    private long[] mWallClocks;
+    private FlightRecorder.Direction[] mDirections;
+    private int[] mEventCodes;
+    private int[] mValues;
+    private int[] mStates;
+    private int mSize;
+
+    public FlightLog(int initialCapacity) {
+        int capacity = Math.max(1, initialCapacity);
+        mRuns = new int[capacity];
+        mTimestamps = new long[capacity];
+        mWallClocks = new long[capacity];
+        mDirections = new FlightRecorder.Direction[capacity];
+        mEventCodes = new int[capacity];
+        mValues = new int[capacity];
+        mStates = new int[capacity];
+    }
+
+    /**
+     * @param timestamp       {@link System#nanoTime()} of the run
+     * @param wallClockMillis wall clock time in milliseconds since the epoch
+     */
+    public void add(int run, long timestamp, long wallClockMillis, FlightRecorder.Direction direction,
+                    int eventCode, int value, int state) {
+        if (mSize == mTimestamps.length) {
+            int capacity = mSize * 2;
+            mRuns = Arrays.copyOf(mRuns, capacity);
+            mTimestamps = Arrays.copyOf(mTimestamps, capacity);
+            mWallClocks = Arrays.copyOf(mWallClocks, capacity);
+            mDirections = Arrays.copyOf(mDirections, capacity);
+            mEventCodes = Arrays.copyOf(mEventCodes, capacity);
+            mValues = Arrays.copyOf(mValues, capacity);
+            mStates = Arrays.copyOf(mStates, capacity);
+        }
+        mRuns[mSize] = run;
+        mTimestamps[mSize] = timestamp;
+        mWallClocks[mSize] = wallClockMillis;
+        mDirections[mSize] = direction;
+        mEventCodes[mSize] = eventCode;
+        mValues[mSize] = value;
+        mStates[mSize] = state;
+        mSize++;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Run of the app that wrote the record. Consecutive records of the same run can be
+     * compared by {@link #getTimestamp}.
+     */
+    public int getRun(int index) {
+        return mRuns[index];
+    }
+
+    public long getTimestamp(int index) {
+        return mTimestamps[index];
+    }
+
+    public FlightRecorder.Direction getDirection(int index) {
+        return mDirections[index];
+    }
+
+    public int getEventCode(int index) {
+        return mEventCodes[index];
+    }
+
+    public int getValue(int index) {
+        return mValues[index];
+    }
+
+    public int getState(int index) {
+        return mStates[index];
+    }
+
+    /**
+     * Wall clock time of a record, in milliseconds since the epoch.
+     */
+    public long getWallClockMillis(int index) {
+        return mWallClocks[index];
+    }
+
+    /**
+     * Writes one line per record: milliseconds relative to the first record, direction,
+     * event code, value and connection state. Within a run the time comes from the
+     * timestamps, across runs from the wall clock.
+     */
+    public void dump(Appendable out) throws IOException {
+        double elapsedMillis = 0;
+        for (int i = 0; i < mSize; i++) {
+            if (i > 0) {
+                elapsedMillis = mRuns[i] == mRuns[i - 1]
+                        ? elapsedMillis + (mTimestamps[i] - mTimestamps[i - 1]) / 1e6
+                        : mWallClocks[i] - mWallClocks[0];
+            }
+            out.append(String.format("%10.3f %-8s %5d %5d %d%n",
+                    elapsedMillis, mDirections[i], mEventCodes[i], mValues[i], mStates[i]));
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package microbit.movemini;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * FlightRecorder
+ *
+ * Always-on log of the events sent to and received from the micro:bit and of connection
+ * state changes, kept in a memory-mapped ring file of fixed-size records. A record costs a
+ * few stores into the mapping, no allocation and no system call; the kernel writes the pages
+ * back, so the log survives a crash of the app. Once the file is full the oldest records are
+ * overwritten.
+ *
+ * Record layout (little-endian, {@link #RECORD_SIZE} bytes): sequence + 1 (8), timestamp
+ * from {@link System#nanoTime()} (8), event code (2), value (2), direction (1), connection
+ * state (1), run (2), wall clock time in ms (8). Slot {@code n % capacity} holds record
+ * {@code n}, a slot whose sequence does not match is empty or was torn by a crash.
+ *
+ * Every open starts a new run. {@link System#nanoTime()} has a different origin in every
+ * process, so timestamps are only comparable between records of the same run; the wall clock
+ * time places records of different runs.
+ *
+ * Any thread may record. Only one recorder may have the file open at a time; records arriving
+ * after {@link #close()} are dropped, so a recorder opened next on the same file is not
+ * overwritten.
+ */
+
+public class FlightRecorder {
+
+    public enum Direction {SENT, RECEIVED, STATE}
+
+    public static final int RECORD_SIZE = 32;
+    static final int HEADER_SIZE = 32;
+    private static final int MAGIC = 0x52464d4d; // "MMFR"
+    private static final int VERSION = 2;
+    private static final int OFFSET_RUN_COUNTER = 16;
+
+    private static final int OFFSET_SEQUENCE = 0;
+    private static final int OFFSET_TIMESTAMP = 8;
+    private static final int OFFSET_EVENT_CODE = 16;
+    private static final int OFFSET_VALUE = 18;
+    private static final int OFFSET_DIRECTION = 20;
+    private static final int OFFSET_STATE = 21;
+    private static final int OFFSET_RUN = 22;
+    private static final int OFFSET_WALL_CLOCK = 24;
+
+    private static final Direction[] DIRECTIONS = Direction.values();
+
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mBuffer;
+    private final int mCapacity;
+    private final short mRun;
+    private final AtomicLong mNext;
+    private volatile boolean mClosed;
+
+    /**
+     * Opens or creates the ring file. Records of previous runs are kept and appended to, a
+     * file of another format or capacity is cleared. Reads the whole file, so better not
+     * called on the main thread.
+     *
+     * @param capacity number of records the file holds
+     */
+    public FlightRecorder(File file, int capacity) throws IOException {
+        mCapacity = capacity;
+        mFile = new RandomAccessFile(file, "rw");
+        long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+        long previousSize;
+        try {
+            previousSize = mFile.length();
+            mFile.setLength(size);
+            mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (previousSize != size || mBuffer.getInt(0) != MAGIC || mBuffer.getInt(4) != VERSION
+                || mBuffer.getInt(8) != capacity || mBuffer.getInt(12) != RECORD_SIZE) {
+            if (previousSize > 0) {
+                // a new file is zero already
+                for (long i = 0; i < size; i += 8) {
+                    mBuffer.putLong((int) i, 0);
+                }
+            }
+            mBuffer.putInt(0, MAGIC);
+            mBuffer.putInt(4, VERSION);
+            mBuffer.putInt(8, capacity);
+            mBuffer.putInt(12, RECORD_SIZE);
+        }
+        mRun = (short) (mBuffer.getInt(OFFSET_RUN_COUNTER) + 1);
+        mBuffer.putInt(OFFSET_RUN_COUNTER, mRun & 0xFFFF);
+        mNext = new AtomicLong(lastSequence(mBuffer, capacity) + 1);
+    }
+
+    /**
+     * Records a single event.
+     *
+     * @param state connection state at the time, e.g. {@link ConnectionSupervisor.State#ordinal()}
+     */
+    public void record(Direction direction, int eventCode, int value, int state) {
+        if (mClosed) {
+            return;
+        }
+        write(mNext.getAndIncrement(), System.nanoTime(), System.currentTimeMillis(), direction, eventCode, value, state);
+    }
+
+    /**
+     * Records every event frame of a packet, see {@link EventCodec}.
+     */
+    public void recordPacket(Direction direction, byte[] data, int length, int state) {
+        int frames = length / EventCodec.FRAME_SIZE;
+        if (frames == 0 || mClosed) {
+            return;
+        }
+        long timestamp = System.nanoTime();
+        long wallClock = System.currentTimeMillis();
+        long sequence = mNext.getAndAdd(frames);
+        for (int i = 0; i < frames; i++) {
+            int offset = i * EventCodec.FRAME_SIZE;
+            write(sequence + i, timestamp, wallClock, direction,
+                    EventCodec.decodeEventCode(data, offset), EventCodec.decodeValue(data, offset), state);
+        }
+    }
+
+    /**
+     * Number of records written since the file was created, including overwritten ones.
+     */
+    public long getRecordCount() {
+        return mNext.get();
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Number of this run, the records written since the open carry it, see {@link FlightLog#getRun}.
+     */
+    public int getRun() {
+        return mRun & 0xFFFF;
+    }
+
+    /**
+     * Copies the records currently in the ring, oldest first.
+     */
+    public FlightLog snapshot() {
+        return readLog(mBuffer.duplicate().order(ByteOrder.LITTLE_ENDIAN), mCapacity);
+    }
+
+    /**
+     * Forces the records to storage. Not needed for crash safety of the app, only of the device.
+     */
+    public void flush() {
+        mBuffer.force();
+    }
+
+    /**
+     * Writes the records back and closes the file; later records are dropped.
+     */
+    public void close() throws IOException {
+        mClosed = true;
+        mBuffer.force();
+        mFile.close();
+    }
+
+    /**
+     * Reads a ring file, e.g. one pulled from a device.
+     */
+    public static FlightLog read(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (in.length() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+                    || buffer.getInt(12) != RECORD_SIZE) {
+                throw new IOException("Not a flight recorder file: " + file);
+            }
+            return readLog(buffer, buffer.getInt(8));
+        } finally {
+            in.close();
+        }
+    }
+
+    private void write(long sequence, long timestamp, long wallClock, Direction direction, int eventCode, int value, int state) {
+        int offset = HEADER_SIZE + (int) (sequence % mCapacity) * RECORD_SIZE;
+        mBuffer.putLong(offset + OFFSET_TIMESTAMP, timestamp);
+        mBuffer.putLong(offset + OFFSET_WALL_CLOCK, wallClock);
+        mBuffer.putShort(offset + OFFSET_RUN, mRun);
+        mBuffer.putShort(offset + OFFSET_EVENT_CODE, (short) eventCode);
+        mBuffer.putShort(offset + OFFSET_VALUE, (short) value);
+        mBuffer.put(offset + OFFSET_DIRECTION, (byte) direction.ordinal());
+        mBuffer.put(offset + OFFSET_STATE, (byte) state);
+        // written last, marks the slot as complete
+        mBuffer.putLong(offset + OFFSET_SEQUENCE, sequence + 1);
+    }
+
+    private static long lastSequence(ByteBuffer buffer, int capacity) {
+        long last = -1;
+        for (int i = 0; i < capacity; i++) {
+            last = Math.max(last, buffer.getLong(HEADER_SIZE + i * RECORD_SIZE + OFFSET_SEQUENCE) - 1);
+        }
+        return last;
+    }
+
+    private static FlightLog readLog(ByteBuffer buffer, int capacity) {
+        long last = lastSequence(buffer, capacity);
+        FlightLog log = new FlightLog(capacity);
+        for (long sequence = Math.max(0, last - capacity + 1); sequence <= last; sequence++) {
+            int offset = HEADER_SIZE + (int) (sequence % capacity) * RECORD_SIZE;
+            if (buffer.getLong(offset + OFFSET_SEQUENCE) != sequence + 1) {
+                continue;
+            }
+            int direction = buffer.get(offset + OFFSET_DIRECTION);
+            if (direction < 0 || direction >= DIRECTIONS.length) {
+                continue;
+            }
+            log.add(buffer.getShort(offset + OFFSET_RUN) & 0xFFFF,
+                    buffer.getLong(offset + OFFSET_TIMESTAMP),
+                    buffer.getLong(offset + OFFSET_WALL_CLOCK),
+                    DIRECTIONS[direction],
+                    buffer.getShort(offset + OFFSET_EVENT_CODE) & 0xFFFF,
+                    buffer.getShort(offset + OFFSET_VALUE) & 0xFFFF,
+                    buffer.get(offset + OFFSET_STATE));
+        }
+        return log;
+    }
+}
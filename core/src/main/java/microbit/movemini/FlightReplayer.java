@@ -0,0 +1,71 @@
+package microbit.movemini;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * FlightReplayer
+ *
+ * Sends the commands of a recorded {@link FlightLog} again, keeping their original spacing
+ * or compressing it by a speed factor. The target is any {@link EventSink}: a connected
+ * BleConnection to reproduce a session on a real robot, or a {@link RobotSession}
+ * around a {@link SimulatedMicroBit} to reproduce it on a JVM.
+ *
+ * Only {@link FlightRecorder.Direction#SENT} records are replayed; received events and state
+ * changes are the outcome to compare against. The gap between runs of the app is not
+ * replayed, the first command of a run follows the last one of the run before at once.
+ */
+
+public class FlightReplayer {
+
+    private final FlightLog mLog;
+
+    public FlightReplayer(FlightLog log) {
+        this.mLog = log;
+    }
+
+    /**
+     * Replays the log on the calling thread. Interrupt the thread to stop early.
+     *
+     * @param speed 1 for the original timing, 2 for twice as fast, 0 or less sends everything at once
+     * @return number of commands sent
+     */
+    public int replay(EventSink sink, double speed) throws InterruptedException {
+        return replay(sink, speed, 0, mLog.size());
+    }
+
+    /**
+     * Replays the records from {@code fromIndex} (inclusive) to {@code toIndex} (exclusive).
+     */
+    public int replay(EventSink sink, double speed, int fromIndex, int toIndex) throws InterruptedException {
+        long start = 0;
+        long firstTimestamp = 0;
+        int run = -1;
+        int sent = 0;
+        for (int i = fromIndex; i < toIndex; i++) {
+            if (mLog.getDirection(i) != FlightRecorder.Direction.SENT) {
+                continue;
+            }
+            if (mLog.getRun(i) != run) {
+                // timestamps of another run have a different origin, time this run from here
+                run = mLog.getRun(i);
+                start = System.nanoTime();
+                firstTimestamp = mLog.getTimestamp(i);
+            }
+            if (speed > 0) {
+                long due = start + (long) ((mLog.getTimestamp(i) - firstTimestamp) / speed);
+                long remaining;
+                while ((remaining = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(remaining);
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                }
+            } else if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            sink.sendPacket(mLog.getEventCode(i), mLog.getValue(i));
+            sent++;
+        }
+        return sent;
+    }
+}
@@ -0,0 +1,120 @@
+package microbit.movemini;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Heartbeat
+ *
+ * Keeps a moving robot alive: the micro:bit program stops the motors when no event arrived
+ * within a deadline, so a stop command lost on air or a stalled app cannot leave the robot
+ * driving. Every command written counts as a keep-alive, a heartbeat event is only sent when
+ * no command was written for a period while the robot moves, so it never adds to the traffic
+ * of active driving. The heartbeat carries the deadline, which arms the watchdog of the
+ * program; programs without the watchdog ignore it.
+ */
+
+public class Heartbeat implements Runnable {
+
+    public static final long DEFAULT_PERIOD_MS = 250;
+    public static final long DEFAULT_DEADLINE_MS = 750;
+    // the deadline is sent as a 16 bit value
+    private static final long MAX_DEADLINE_MS = 0xFFFF;
+
+    private final EventSink mSink;
+    private final CommandWriter mWriter;
+    private final MotionTracker mMotion;
+    private final ScheduledExecutorService mScheduler;
+
+    private long mPeriodNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_PERIOD_MS);
+    private int mDeadlineMs = (int) DEFAULT_DEADLINE_MS;
+    private ScheduledFuture<?> mNext;
+    private volatile long mSent;
+
+    /**
+     * @param sink      where heartbeats are sent
+     * @param writer    writer whose writes count as keep-alive
+     * @param motion    tells whether the robot moves
+     * @param scheduler runs the checks
+     */
+    public Heartbeat(EventSink sink, CommandWriter writer, MotionTracker motion, ScheduledExecutorService scheduler) {
+        this.mSink = sink;
+        this.mWriter = writer;
+        this.mMotion = motion;
+        this.mScheduler = scheduler;
+    }
+
+    /**
+     * @param period   longest time without a write while moving
+     * @param deadline time without events after which the program stops the robot, longer
+     *                 than the period to tolerate lost packets
+     */
+    public synchronized void setTiming(long period, long deadline, TimeUnit unit) {
+        long periodNanos = unit.toNanos(period);
+        long deadlineMs = unit.toMillis(deadline);
+        if (periodNanos <= 0 || unit.toNanos(deadline) <= periodNanos || deadlineMs > MAX_DEADLINE_MS) {
+            throw new IllegalArgumentException("need 0 < period < deadline <= 65535 ms: "
+                    + period + ", " + deadline + " " + unit);
+        }
+        mPeriodNanos = periodNanos;
+        mDeadlineMs = (int) deadlineMs;
+    }
+
+    public synchronized long getPeriod(TimeUnit unit) {
+        return unit.convert(mPeriodNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public synchronized long getDeadline(TimeUnit unit) {
+        return unit.convert(mDeadlineMs, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void start() {
+        if (mNext == null) {
+            schedule(mPeriodNanos);
+        }
+    }
+
+    public synchronized void stop() {
+        if (mNext != null) {
+            mNext.cancel(false);
+            mNext = null;
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return mNext != null;
+    }
+
+    /**
+     * Number of heartbeat events sent.
+     */
+    public long getSentCount() {
+        return mSent;
+    }
+
+    @Override
+    public synchronized void run() {
+        if (mNext == null) {
+            // stopped meanwhile
+            return;
+        }
+        long period = mPeriodNanos;
+        long next = period;
+        if (mMotion.isMoving()) {
+            long idle = System.nanoTime() - mWriter.getLastWriteAt();
+            if (idle >= period) {
+                mSink.sendPacket(MicroBitEvents.MOVEMINI_HEARTBEAT_ID, mDeadlineMs);
+                mSent++;
+            } else {
+                // a command was written meanwhile, check again one period after it
+                next = period - idle;
+            }
+        }
+        schedule(next);
+    }
+
+    private void schedule(long delayNanos) {
+        mNext = mScheduler.schedule(this, delayNanos, TimeUnit.NANOSECONDS);
+    }
+}
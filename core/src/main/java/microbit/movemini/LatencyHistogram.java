@@ -0,0 +1,142 @@
+package microbit.movemini;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram
+ *
+ * Fixed size histogram of latencies in nanoseconds with a relative error below 1/64 over the
+ * whole range, in the manner of HdrHistogram: values are bucketed by their highest bit and
+ * the next 6 bits below it. All buckets are allocated up front, recording never allocates.
+ *
+ * Samples are recorded by a single thread and may be read from any thread.
+ */
+
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+
+    private final long mHighestTrackableNanos;
+    private final AtomicLongArray mCounts;
+    private volatile long mCount;
+    private volatile long mTotalNanos;
+    private volatile long mMaxNanos;
+
+    /**
+     * @param highestTrackableNanos larger samples are counted as this value
+     */
+    public LatencyHistogram(long highestTrackableNanos) {
+        if (highestTrackableNanos < SUB_BUCKET_COUNT) {
+            throw new IllegalArgumentException("highest trackable value too small: " + highestTrackableNanos);
+        }
+        mHighestTrackableNanos = highestTrackableNanos;
+        mCounts = new AtomicLongArray(bucketIndex(highestTrackableNanos) + 1);
+    }
+
+    /**
+     * Histogram covering up to 60 seconds.
+     */
+    public LatencyHistogram() {
+        this(60000000000L);
+    }
+
+    public void record(long nanos) {
+        long value = Math.max(0, Math.min(nanos, mHighestTrackableNanos));
+        int index = bucketIndex(value);
+        mCounts.lazySet(index, mCounts.get(index) + 1);
+        mCount++;
+        mTotalNanos += value;
+        if (value > mMaxNanos) {
+            mMaxNanos = value;
+        }
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    public long getMeanNanos() {
+        long count = mCount;
+        return count == 0 ? 0 : mTotalNanos / count;
+    }
+
+    public long getMaxNanos() {
+        return mMaxNanos;
+    }
+
+    /**
+     * Sum of all samples, to compute the mean over an interval from two readings.
+     */
+    public long getTotalNanos() {
+        return mTotalNanos;
+    }
+
+    /**
+     * Smallest recorded value such that the given percentage of samples is at or below it,
+     * within the precision of the bucket.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = mCount;
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < mCounts.length(); i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestEquivalentValue(i), mMaxNanos);
+            }
+        }
+        return mMaxNanos;
+    }
+
+    public void reset() {
+        for (int i = 0; i < mCounts.length(); i++) {
+            mCounts.set(i, 0);
+        }
+        mCount = 0;
+        mTotalNanos = 0;
+        mMaxNanos = 0;
+    }
+
+    /**
+     * Appends the non-empty buckets as CSV lines "upper bound in nanoseconds,count".
+     */
+    public void exportTo(StringBuilder out) {
+        for (int i = 0; i < mCounts.length(); i++) {
+            long bucketCount = mCounts.get(i);
+            if (bucketCount > 0) {
+                out.append(highestEquivalentValue(i)).append(',').append(bucketCount).append('\n');
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "n=" + getCount()
+                + " p50=" + getValueAtPercentile(50) / 1000
+                + "us p90=" + getValueAtPercentile(90) / 1000
+                + "us p99=" + getValueAtPercentile(99) / 1000
+                + "us max=" + getMaxNanos() / 1000 + "us";
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return shift * SUB_BUCKET_HALF + (int) (value >>> shift);
+    }
+
+    private static long highestEquivalentValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_HALF - 1;
+        long subBucket = index - shift * SUB_BUCKET_HALF;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,47 @@
+package microbit.movemini;
+
+/**
+ * LatencyStats
+ *
+ * Running count, mean and maximum of latency samples in nanoseconds. Samples are recorded
+ * by a single thread and may be read from any thread.
+ */
+
+public class LatencyStats {
+
+    private volatile long mCount;
+    private volatile long mTotalNanos;
+    private volatile long mMaxNanos;
+
+    public void record(long nanos) {
+        mCount++;
+        mTotalNanos += nanos;
+        if (nanos > mMaxNanos) {
+            mMaxNanos = nanos;
+        }
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    public long getMeanNanos() {
+        long count = mCount;
+        return count == 0 ? 0 : mTotalNanos / count;
+    }
+
+    public long getMaxNanos() {
+        return mMaxNanos;
+    }
+
+    public void reset() {
+        mCount = 0;
+        mTotalNanos = 0;
+        mMaxNanos = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "n=" + getCount() + " mean=" + getMeanNanos() / 1000 + "us max=" + getMaxNanos() / 1000 + "us";
+    }
+}
@@ -0,0 +1,187 @@
+package microbit.movemini;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyTracker
+ *
+ * Latency of commands along the send path, one {@link LatencyHistogram} per {@link Stage}:
+ *
+ * <pre>
+ * touch --- enqueue --- writeCharacteristic --- onCharacteristicWrite
+ *   TOUCH_TO_ENQUEUE  ENQUEUE_TO_WRITE     WRITE_TO_COMPLETE
+ *   \------------------------ TOUCH_TO_COMPLETE ----------/
+ * </pre>
+ *
+ * ROUND_TRIP covers an echo request from the app to the micro:bit and the echo notification
+ * back, see {@link MicroBitEvents#MOVEMINI_ECHO_REQUEST_ID}.
+ *
+ * Each stage is recorded by one thread: the writer thread records up to the write, the thread
+ * reporting write completion records the completion stages and the thread receiving
+ * notifications records the round trip.
+ */
+
+public class LatencyTracker {
+
+    public enum Stage {TOUCH_TO_ENQUEUE, ENQUEUE_TO_WRITE, WRITE_TO_COMPLETE, TOUCH_TO_COMPLETE, ROUND_TRIP}
+
+    // more than any write window in use
+    private static final int IN_FLIGHT_CAPACITY = 64;
+    private static final int ECHO_SLOTS = 256;
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[Stage.values().length];
+
+    // write time and oldest touch time of each packet waiting for completion, oldest first
+    private final AtomicLongArray mInFlightWrittenAt = new AtomicLongArray(IN_FLIGHT_CAPACITY);
+    private final AtomicLongArray mInFlightTouchedAt = new AtomicLongArray(IN_FLIGHT_CAPACITY);
+    private final AtomicLong mInFlightHead = new AtomicLong();
+    private final AtomicLong mInFlightTail = new AtomicLong();
+
+    private final AtomicLongArray mEchoSentAt = new AtomicLongArray(ECHO_SLOTS);
+    private int mEchoSequence;
+
+    public LatencyTracker() {
+        for (int i = 0; i < mHistograms.length; i++) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    public LatencyHistogram getHistogram(Stage stage) {
+        return mHistograms[stage.ordinal()];
+    }
+
+    /**
+     * Called by the writer for every command of a packet just handed to the link.
+     *
+     * @param touchedAt time of the user input, or 0 if unknown
+     */
+    public void onCommandWritten(long touchedAt, long enqueuedAt, long writtenAt) {
+        if (touchedAt != 0) {
+            getHistogram(Stage.TOUCH_TO_ENQUEUE).record(enqueuedAt - touchedAt);
+        }
+        getHistogram(Stage.ENQUEUE_TO_WRITE).record(writtenAt - enqueuedAt);
+    }
+
+    /**
+     * Called by the writer right before a packet is handed to the link, as its completion may
+     * be reported before the write call returns.
+     *
+     * @param oldestTouchedAt earliest touch time of the commands in the packet, or 0 if unknown
+     * @param window          number of writes that may be in flight; older entries lost
+     *                        their completion and are discarded
+     */
+    public void onPacketWriting(long oldestTouchedAt, long writtenAt, int window) {
+        long tail = mInFlightTail.get();
+        while (tail - mInFlightHead.get() >= Math.min(window, IN_FLIGHT_CAPACITY)) {
+            pollInFlight();
+        }
+        int slot = (int) (tail % IN_FLIGHT_CAPACITY);
+        mInFlightWrittenAt.set(slot, writtenAt);
+        mInFlightTouchedAt.set(slot, oldestTouchedAt);
+        mInFlightTail.set(tail + 1);
+    }
+
+    /**
+     * Called by the writer when the link refused the packet announced last.
+     */
+    public void onPacketRefused() {
+        long tail = mInFlightTail.get();
+        if (tail > mInFlightHead.get()) {
+            mInFlightTail.set(tail - 1);
+        }
+    }
+
+    /**
+     * Called when the link reports a write as finished.
+     */
+    public void onPacketComplete(long completedAt) {
+        long head = pollInFlight();
+        if (head < 0) {
+            return;
+        }
+        int slot = (int) (head % IN_FLIGHT_CAPACITY);
+        getHistogram(Stage.WRITE_TO_COMPLETE).record(completedAt - mInFlightWrittenAt.get(slot));
+        long touchedAt = mInFlightTouchedAt.get(slot);
+        if (touchedAt != 0) {
+            getHistogram(Stage.TOUCH_TO_COMPLETE).record(completedAt - touchedAt);
+        }
+    }
+
+    /**
+     * Forgets the packets in flight, e.g. after the link was lost.
+     */
+    public void clearInFlight() {
+        mInFlightHead.set(mInFlightTail.get());
+    }
+
+    /**
+     * Reserves the sequence number for the next echo request and records its send time.
+     * Called from one thread at a time.
+     */
+    public int nextEcho(long sentAt) {
+        int sequence = mEchoSequence;
+        mEchoSequence = (sequence + 1) & 0xFFFF;
+        mEchoSentAt.set(sequence % ECHO_SLOTS, sentAt);
+        return sequence;
+    }
+
+    /**
+     * Called for every echo received from the micro:bit.
+     */
+    public void onEcho(int sequence, long receivedAt) {
+        long sentAt = mEchoSentAt.getAndSet(sequence % ECHO_SLOTS, 0);
+        if (sentAt != 0) {
+            getHistogram(Stage.ROUND_TRIP).record(receivedAt - sentAt);
+        }
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : mHistograms) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Writes a summary line per stage, for display.
+     */
+    public String summary() {
+        StringBuilder out = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            out.append(stage).append(": ").append(getHistogram(stage)).append('\n');
+        }
+        return out.toString();
+    }
+
+    /**
+     * Exports all histograms as CSV with the columns stage, upper bound in nanoseconds, count.
+     */
+    public String exportCsv() {
+        StringBuilder out = new StringBuilder("stage,nanos,count\n");
+        StringBuilder rows = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            rows.setLength(0);
+            getHistogram(stage).exportTo(rows);
+            int start = 0;
+            for (int i = 0; i < rows.length(); i++) {
+                if (rows.charAt(i) == '\n') {
+                    out.append(stage).append(',').append(rows, start, i + 1);
+                    start = i + 1;
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private long pollInFlight() {
+        while (true) {
+            long head = mInFlightHead.get();
+            if (head >= mInFlightTail.get()) {
+                return -1;
+            }
+            if (mInFlightHead.compareAndSet(head, head + 1)) {
+                return head;
+            }
+        }
+    }
+}
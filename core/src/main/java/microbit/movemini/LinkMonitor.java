@@ -0,0 +1,211 @@
+package microbit.movemini;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LinkMonitor
+ *
+ * Rates the link from the RSSI of the connection and the timing of the writes, and adapts
+ * the send rate of a {@link CommandWriter} to it. On a poor link the writer is paced to a
+ * minimum interval between writes; commands arriving meanwhile are merged in the coalescing
+ * queue and the ones left are sent together, so no backlog of stale commands builds up. On a
+ * good link writes go out as fast as the commands arrive.
+ *
+ * A worse rating takes effect with the next sample, a better one only after it held for
+ * several samples and one step at a time, so a marginal link does not flap between rates.
+ *
+ * {@link #sample} is called periodically from one thread, RSSI readings may arrive from any.
+ */
+
+public class LinkMonitor {
+
+    public enum Quality {GOOD, FAIR, POOR}
+
+    public interface Listener {
+
+        /**
+         * Called on the sampling thread when the rating changed.
+         */
+        public void onLinkQualityChanged(Quality quality, LinkMonitor monitor);
+    }
+
+    // weight of a new reading in the smoothed values
+    private static final double SMOOTHING = 0.3;
+    private static final int UPGRADE_SAMPLES = 3;
+    private static final int NO_RSSI = Integer.MIN_VALUE;
+
+    private final CommandWriter mWriter;
+    private final LinkStatsSampler mSampler;
+    private volatile Listener mListener;
+
+    private int mGoodRssi = -75;
+    private int mPoorRssi = -88;
+    private long mGoodLatencyNanos = TimeUnit.MILLISECONDS.toNanos(30);
+    private long mPoorLatencyNanos = TimeUnit.MILLISECONDS.toNanos(80);
+    private double mPoorFailureRate = 0.1;
+    private long mFairIntervalNanos = TimeUnit.MILLISECONDS.toNanos(50);
+    private long mPoorIntervalNanos = TimeUnit.MILLISECONDS.toNanos(150);
+
+    private volatile int mRssi = NO_RSSI;
+    private volatile double mSmoothedRssi;
+    private volatile double mSmoothedLatencyNanos;
+    private volatile LinkStats mLastStats;
+    private volatile Quality mQuality = Quality.GOOD;
+    private int mBetterSamples;
+
+    public LinkMonitor(CommandWriter writer) {
+        this.mWriter = writer;
+        this.mSampler = new LinkStatsSampler(writer);
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * RSSI at or above which the signal counts as good, and below which it is poor.
+     */
+    public synchronized void setRssiThresholds(int good, int poor) {
+        mGoodRssi = good;
+        mPoorRssi = poor;
+    }
+
+    /**
+     * Mean write completion time at or below which the link counts as good, and above
+     * which it is poor.
+     */
+    public synchronized void setLatencyThresholds(long good, long poor, TimeUnit unit) {
+        mGoodLatencyNanos = unit.toNanos(good);
+        mPoorLatencyNanos = unit.toNanos(poor);
+    }
+
+    /**
+     * Minimum time between writes on a fair and on a poor link.
+     */
+    public synchronized void setWriteIntervals(long fair, long poor, TimeUnit unit) {
+        mFairIntervalNanos = unit.toNanos(fair);
+        mPoorIntervalNanos = unit.toNanos(poor);
+        apply(mQuality);
+    }
+
+    /**
+     * Forgets the readings of a previous link and lets the writer run unpaced.
+     */
+    public synchronized void reset(long now) {
+        mRssi = NO_RSSI;
+        mSmoothedLatencyNanos = 0;
+        mLastStats = null;
+        mBetterSamples = 0;
+        mSampler.reset(now);
+        mQuality = Quality.GOOD;
+        apply(Quality.GOOD);
+    }
+
+    /**
+     * Called with each RSSI reading of the connection.
+     */
+    public synchronized void onRssi(int rssi) {
+        mSmoothedRssi = mRssi == NO_RSSI ? rssi : mSmoothedRssi + SMOOTHING * (rssi - mSmoothedRssi);
+        mRssi = rssi;
+    }
+
+    /**
+     * Takes the write statistics since the previous sample and adapts the rate.
+     */
+    public synchronized Quality sample(long now) {
+        LinkStats stats = mSampler.sample(now);
+        mLastStats = stats;
+        if (stats.getCompletedCount() > 0) {
+            long latency = stats.getMeanWriteLatencyNanos();
+            mSmoothedLatencyNanos = mSmoothedLatencyNanos == 0 ? latency
+                    : mSmoothedLatencyNanos + SMOOTHING * (latency - mSmoothedLatencyNanos);
+        }
+        Quality rated = rate(stats);
+        Quality quality = mQuality;
+        if (rated.ordinal() > quality.ordinal()) {
+            quality = rated;
+            mBetterSamples = 0;
+        } else if (rated.ordinal() < quality.ordinal()) {
+            if (++mBetterSamples >= UPGRADE_SAMPLES) {
+                quality = Quality.values()[quality.ordinal() - 1];
+                mBetterSamples = 0;
+            }
+        } else {
+            mBetterSamples = 0;
+        }
+        if (quality != mQuality) {
+            mQuality = quality;
+            apply(quality);
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onLinkQualityChanged(quality, this);
+            }
+        }
+        return quality;
+    }
+
+    private Quality rate(LinkStats stats) {
+        boolean hasRssi = mRssi != NO_RSSI;
+        double latency = mSmoothedLatencyNanos;
+        if ((hasRssi && mSmoothedRssi < mPoorRssi)
+                || latency > mPoorLatencyNanos
+                || stats.getFailureRate() > mPoorFailureRate) {
+            return Quality.POOR;
+        }
+        if ((!hasRssi || mSmoothedRssi >= mGoodRssi)
+                && latency <= mGoodLatencyNanos
+                && stats.getFailedCount() + stats.getTimedOutCount() == 0) {
+            return Quality.GOOD;
+        }
+        return Quality.FAIR;
+    }
+
+    private void apply(Quality quality) {
+        long interval = quality == Quality.POOR ? mPoorIntervalNanos
+                : quality == Quality.FAIR ? mFairIntervalNanos : 0;
+        mWriter.setMinWriteInterval(interval, TimeUnit.NANOSECONDS);
+    }
+
+    public Quality getQuality() {
+        return mQuality;
+    }
+
+    /**
+     * Last RSSI reading in dBm, {@link Integer#MIN_VALUE} if none arrived yet.
+     */
+    public int getRssi() {
+        return mRssi;
+    }
+
+    public double getSmoothedRssi() {
+        return mSmoothedRssi;
+    }
+
+    /**
+     * Smoothed time from issuing a write to its completion.
+     */
+    public long getWriteLatencyNanos() {
+        return (long) mSmoothedLatencyNanos;
+    }
+
+    /**
+     * Write statistics of the last sampling interval, null before the first sample.
+     */
+    public LinkStats getLastStats() {
+        return mLastStats;
+    }
+
+    /**
+     * Minimum time between writes currently applied to the writer.
+     */
+    public long getWriteIntervalNanos() {
+        return mWriter.getMinWriteInterval(TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return mQuality + " rssi=" + (mRssi == NO_RSSI ? "-" : Math.round(mSmoothedRssi) + "dBm")
+                + " write=" + getWriteLatencyNanos() / 1000 + "us interval="
+                + getWriteIntervalNanos() / 1000000 + "ms";
+    }
+}
@@ -0,0 +1,107 @@
+package microbit.movemini;
+
+/**
+ * LinkStats
+ *
+ * Throughput and quality of the link over one sampling interval, as reported to a
+ * LinkStatsListener of the app. Immutable.
+ */
+
+public final class LinkStats {
+
+    private final long mIntervalNanos;
+    private final long mCommands;
+    private final long mPackets;
+    private final long mCompleted;
+    private final long mFailed;
+    private final long mTimedOut;
+    private final long mMeanWriteLatencyNanos;
+    private final int mInFlight;
+
+    public LinkStats(long intervalNanos, long commands, long packets, long completed, long failed,
+                     long timedOut, long meanWriteLatencyNanos, int inFlight) {
+        this.mIntervalNanos = intervalNanos;
+        this.mCommands = commands;
+        this.mPackets = packets;
+        this.mCompleted = completed;
+        this.mFailed = failed;
+        this.mTimedOut = timedOut;
+        this.mMeanWriteLatencyNanos = meanWriteLatencyNanos;
+        this.mInFlight = inFlight;
+    }
+
+    public long getIntervalNanos() {
+        return mIntervalNanos;
+    }
+
+    /**
+     * Commands written, several of which may share a packet.
+     */
+    public long getCommandCount() {
+        return mCommands;
+    }
+
+    public long getPacketCount() {
+        return mPackets;
+    }
+
+    public double getCommandsPerSecond() {
+        return perSecond(mCommands);
+    }
+
+    public double getPacketsPerSecond() {
+        return perSecond(mPackets);
+    }
+
+    public double getBytesPerSecond() {
+        return perSecond(mCommands * EventCodec.FRAME_SIZE);
+    }
+
+    /**
+     * Writes that completed successfully.
+     */
+    public long getCompletedCount() {
+        return mCompleted;
+    }
+
+    public long getFailedCount() {
+        return mFailed;
+    }
+
+    public long getTimedOutCount() {
+        return mTimedOut;
+    }
+
+    /**
+     * Share of the finished writes that failed or timed out, 0 if none finished.
+     */
+    public double getFailureRate() {
+        long finished = mCompleted + mFailed + mTimedOut;
+        return finished == 0 ? 0 : (double) (mFailed + mTimedOut) / finished;
+    }
+
+    /**
+     * Mean time from issuing a write to its completion, 0 without completions.
+     */
+    public long getMeanWriteLatencyNanos() {
+        return mMeanWriteLatencyNanos;
+    }
+
+    /**
+     * Writes awaiting their completion at the end of the interval.
+     */
+    public int getInFlight() {
+        return mInFlight;
+    }
+
+    private double perSecond(long count) {
+        return mIntervalNanos == 0 ? 0 : count * 1e9 / mIntervalNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%.1f cmd/s %.1f pkt/s %.0f B/s write=%dus failed=%.1f%% inFlight=%d",
+                getCommandsPerSecond(), getPacketsPerSecond(), getBytesPerSecond(),
+                mMeanWriteLatencyNanos / 1000, getFailureRate() * 100, mInFlight);
+    }
+}
@@ -0,0 +1,67 @@
+package microbit.movemini;
+
+/**
+ * LinkStatsSampler
+ *
+ * Turns the running counters of a {@link CommandWriter} into {@link LinkStats} for the
+ * interval since the previous sample. Called from a single thread.
+ */
+
+public class LinkStatsSampler {
+
+    private final CommandWriter mWriter;
+    private long mSampledAt;
+    private long mCommands;
+    private long mPackets;
+    private long mCompleted;
+    private long mFailed;
+    private long mTimedOut;
+    private long mLatencyCount;
+    private long mLatencyTotal;
+
+    public LinkStatsSampler(CommandWriter writer) {
+        this.mWriter = writer;
+    }
+
+    /**
+     * Starts a new interval at the given time.
+     */
+    public void reset(long now) {
+        mSampledAt = now;
+        WriteFlowControl flowControl = mWriter.getFlowControl();
+        LatencyHistogram latency = mWriter.getLatencyTracker().getHistogram(LatencyTracker.Stage.WRITE_TO_COMPLETE);
+        mCommands = mWriter.getQueueLatency().getCount();
+        mPackets = mWriter.getWriteCount();
+        mCompleted = flowControl.getCompletedCount();
+        mFailed = flowControl.getFailedCount();
+        mTimedOut = flowControl.getTimedOutCount();
+        mLatencyCount = latency.getCount();
+        mLatencyTotal = latency.getTotalNanos();
+    }
+
+    /**
+     * Statistics since the previous sample or reset, which starts the next interval.
+     */
+    public LinkStats sample(long now) {
+        long sampledAt = mSampledAt;
+        long commands = mCommands;
+        long packets = mPackets;
+        long completed = mCompleted;
+        long failed = mFailed;
+        long timedOut = mTimedOut;
+        long latencyCount = mLatencyCount;
+        long latencyTotal = mLatencyTotal;
+        reset(now);
+        // counters may have been reset meanwhile, report such an interval as empty
+        long samples = Math.max(0, mLatencyCount - latencyCount);
+        long meanLatency = samples == 0 ? 0 : Math.max(0, mLatencyTotal - latencyTotal) / samples;
+        return new LinkStats(now - sampledAt,
+                Math.max(0, mCommands - commands),
+                Math.max(0, mPackets - packets),
+                Math.max(0, mCompleted - completed),
+                Math.max(0, mFailed - failed),
+                Math.max(0, mTimedOut - timedOut),
+                meanLatency,
+                mWriter.getFlowControl().getInFlight());
+    }
+}
@@ -0,0 +1,154 @@
+package microbit.movemini;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ListenerRegistry
+ *
+ * Set of listeners that are notified through a {@link Notifier}, so callers can keep one
+ * notifier instance around instead of creating a closure per notification.
+ *
+ * The registry is copy-on-write: listeners may be added and removed from any thread while
+ * notifications are running. A listener registered with an {@link Executor} is always called
+ * on it. Notifications for such a listener are coalesced per notifier: while a delivery is
+ * pending further notifications with the same notifier are merged into it, and the notifier
+ * runs once, at delivery time, so it should read the latest state there. Notifying does not
+ * allocate beyond what the executor needs to run a task.
+ */
+
+public class ListenerRegistry<L> {
+
+    public interface Notifier<L> {
+
+        public void notify(L listener);
+    }
+
+    // one pending bit per notifier
+    private static final int MAX_NOTIFIERS = 32;
+
+    @SuppressWarnings("unchecked")
+    private final Notifier<L>[] mNotifiers = (Notifier<L>[]) new Notifier<?>[MAX_NOTIFIERS];
+    private volatile int mNotifierCount;
+
+    @SuppressWarnings("unchecked")
+    private volatile Registration<L>[] mRegistrations = (Registration<L>[]) new Registration<?>[0];
+
+    /**
+     * Adds a listener that is called on the notifying thread.
+     */
+    public void add(L listener) {
+        add(listener, null);
+    }
+
+    /**
+     * Adds a listener that is called on the given executor, replacing an earlier registration
+     * of the same listener.
+     *
+     * @param executor null to call the listener on the notifying thread
+     */
+    public synchronized void add(L listener, Executor executor) {
+        Registration<L>[] registrations = without(listener);
+        registrations = Arrays.copyOf(registrations, registrations.length + 1);
+        registrations[registrations.length - 1] = new Registration<>(this, listener, executor);
+        mRegistrations = registrations;
+    }
+
+    public synchronized void remove(L listener) {
+        mRegistrations = without(listener);
+    }
+
+    public int size() {
+        return mRegistrations.length;
+    }
+
+    public void notifyListeners(Notifier<L> notifier) {
+        Registration<L>[] registrations = mRegistrations;
+        if (registrations.length == 0) {
+            return;
+        }
+        int index = indexOf(notifier);
+        for (Registration<L> registration : registrations) {
+            if (registration.mExecutor == null) {
+                notifier.notify(registration.mListener);
+            } else {
+                registration.post(index);
+            }
+        }
+    }
+
+    private int indexOf(Notifier<L> notifier) {
+        int count = mNotifierCount;
+        for (int i = 0; i < count; i++) {
+            if (mNotifiers[i] == notifier) {
+                return i;
+            }
+        }
+        synchronized (this) {
+            for (int i = count; i < mNotifierCount; i++) {
+                if (mNotifiers[i] == notifier) {
+                    return i;
+                }
+            }
+            if (mNotifierCount == MAX_NOTIFIERS) {
+                throw new IllegalStateException("Too many notifiers, keep them in fields");
+            }
+            mNotifiers[mNotifierCount] = notifier;
+            return mNotifierCount++;
+        }
+    }
+
+    private Registration<L>[] without(L listener) {
+        Registration<L>[] registrations = mRegistrations;
+        for (int i = 0; i < registrations.length; i++) {
+            if (registrations[i].mListener == listener) {
+                registrations[i].mRemoved = true;
+                Registration<L>[] copy = Arrays.copyOf(registrations, registrations.length - 1);
+                System.arraycopy(registrations, i + 1, copy, i, registrations.length - i - 1);
+                return copy;
+            }
+        }
+        return registrations;
+    }
+
+    private static final class Registration<L> implements Runnable {
+
+        private final ListenerRegistry<L> mRegistry;
+        private final L mListener;
+        private final Executor mExecutor;
+        private final AtomicInteger mPending = new AtomicInteger();
+        private volatile boolean mRemoved;
+
+        Registration(ListenerRegistry<L> registry, L listener, Executor executor) {
+            this.mRegistry = registry;
+            this.mListener = listener;
+            this.mExecutor = executor;
+        }
+
+        void post(int notifier) {
+            int bit = 1 << notifier;
+            int pending;
+            do {
+                pending = mPending.get();
+                if ((pending & bit) != 0) {
+                    // merged into the delivery already scheduled
+                    return;
+                }
+            } while (!mPending.compareAndSet(pending, pending | bit));
+            if (pending == 0) {
+                mExecutor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            int pending = mPending.getAndSet(0);
+            while (pending != 0 && !mRemoved) {
+                int notifier = Integer.numberOfTrailingZeros(pending);
+                pending &= pending - 1;
+                mRegistry.mNotifiers[notifier].notify(mListener);
+            }
+        }
+    }
+}
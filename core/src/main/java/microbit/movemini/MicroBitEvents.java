@@ -0,0 +1,37 @@
+package microbit.movemini;
+
+/**
+ * MicroBitEvents
+ *
+ * Event ids of the MicroBit message bus (MES) used to drive the :MOVE mini.
+ */
+
+public final class MicroBitEvents {
+
+    // value matching any event value, e.g. when registering with the Client Requirements characteristic
+    public static final int MICROBIT_EVT_ANY = 0;
+
+    public static final int MES_DPAD_CONTROLLER_ID = 1104;
+    public static final int MES_DPAD_BUTTON_1_DOWN = 9; // forward
+    public static final int MES_DPAD_BUTTON_1_UP = 10; // stop
+    public static final int MES_DPAD_BUTTON_2_DOWN = 11; // backward
+    public static final int MES_DPAD_BUTTON_2_UP = 12;
+    public static final int MES_DPAD_BUTTON_3_DOWN = 13; // left
+    public static final int MES_DPAD_BUTTON_3_UP = 14;
+    public static final int MES_DPAD_BUTTON_4_DOWN = 15; // right
+    public static final int MES_DPAD_BUTTON_4_UP = 16;
+
+    // custom events for analog driving, the value is a signed 16 bit percentage (-100..100)
+    public static final int MOVEMINI_SPEED_ID = 9010;
+    public static final int MOVEMINI_TURN_ID = 9011;
+
+    // latency probe: the program answers an echo request by raising an echo with the same value
+    public static final int MOVEMINI_ECHO_REQUEST_ID = 9012;
+    public static final int MOVEMINI_ECHO_ID = 9013;
+
+    // keep-alive while moving, the value is the deadline in ms after which the program stops the motors
+    public static final int MOVEMINI_HEARTBEAT_ID = 9014;
+
+    private MicroBitEvents() {
+    }
+}
@@ -0,0 +1,172 @@
+package microbit.movemini;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * MotionScheduler
+ *
+ * Plays a {@link MotionTimeline} into an {@link EventSink} on a dedicated high priority
+ * thread. Each event is due at the start time plus its offset; the thread parks until shortly
+ * before that and spins for the rest, which keeps the dispatch jitter in the microsecond
+ * range instead of the millisecond granularity of {@code Timer} or a {@code Handler}. The
+ * lateness of every event is recorded in {@link #getJitter()}.
+ *
+ * Offsets are relative to the planned start, so a late event does not delay the ones after it.
+ */
+
+public class MotionScheduler implements Runnable {
+
+    public interface Listener {
+
+        /**
+         * Called on the scheduler thread when a timeline has ended.
+         *
+         * @param completed false if it was stopped early
+         */
+        public void onTimelineFinished(MotionTimeline timeline, boolean completed);
+    }
+
+    private static final long DEFAULT_SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(500);
+
+    private final EventSink mSink;
+    private final LatencyHistogram mJitter = new LatencyHistogram();
+    private volatile long mSpinNanos = DEFAULT_SPIN_NANOS;
+    private volatile Listener mListener;
+
+    private volatile Thread mThread;
+    private volatile MotionTimeline mTimeline;
+
+    public MotionScheduler(EventSink sink) {
+        this.mSink = sink;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Time before an event during which the thread spins instead of parking. Longer is more
+     * precise and costs more CPU.
+     */
+    public void setSpinTime(long time, TimeUnit unit) {
+        mSpinNanos = unit.toNanos(time);
+    }
+
+    /**
+     * Starts playing the timeline, stopping the one playing before. May be called from the
+     * listener.
+     */
+    public void start(MotionTimeline timeline) {
+        while (true) {
+            stop();
+            synchronized (this) {
+                // another start may have come first, its timeline is stopped in the next round
+                if (mThread == null) {
+                    mTimeline = timeline;
+                    Thread thread = new Thread(this, "MotionScheduler");
+                    thread.setPriority(Thread.MAX_PRIORITY);
+                    mThread = thread;
+                    thread.start();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the timeline and waits until it has ended; the robot is stopped if it had been
+     * started. May be called from the listener and the sink.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+            mThread = null;
+        }
+        // joined without the lock, the ending thread and its listener may take it
+        if (thread != null && thread != Thread.currentThread()) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public boolean isRunning() {
+        return mThread != null;
+    }
+
+    /**
+     * Waits until the current timeline has ended.
+     *
+     * @return false if it was still running after the timeout
+     */
+    public boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException {
+        Thread thread = mThread;
+        if (thread != null) {
+            unit.timedJoin(thread, timeout);
+            return !thread.isAlive();
+        }
+        return true;
+    }
+
+    /**
+     * Lateness of each dispatched event against its planned time.
+     */
+    public LatencyHistogram getJitter() {
+        return mJitter;
+    }
+
+    @Override
+    public void run() {
+        Thread current = Thread.currentThread();
+        MotionTimeline timeline = mTimeline;
+        long start = System.nanoTime();
+        int sent = 0;
+        boolean completed = true;
+        for (int i = 0; i < timeline.size(); i++) {
+            if (!waitUntil(start + timeline.getOffsetNanos(i), current)) {
+                completed = false;
+                break;
+            }
+            mJitter.record(System.nanoTime() - start - timeline.getOffsetNanos(i));
+            mSink.sendPacket(timeline.getEventCode(i), timeline.getValue(i));
+            sent++;
+        }
+        if (!completed && sent > 0) {
+            mSink.sendPacket(MicroBitEvents.MES_DPAD_CONTROLLER_ID, MicroBitEvents.MES_DPAD_BUTTON_1_UP);
+        }
+        synchronized (this) {
+            // stop() and a new start() have replaced it already otherwise
+            if (mThread == current) {
+                mThread = null;
+            }
+        }
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onTimelineFinished(timeline, completed);
+        }
+    }
+
+    /**
+     * @return false if the thread was stopped while waiting
+     */
+    private boolean waitUntil(long due, Thread current) {
+        long spin = mSpinNanos;
+        while (true) {
+            if (mThread != current || current.isInterrupted()) {
+                return false;
+            }
+            long remaining = due - System.nanoTime();
+            if (remaining <= 0) {
+                return true;
+            }
+            if (remaining > spin) {
+                LockSupport.parkNanos(remaining - spin);
+            }
+        }
+    }
+}
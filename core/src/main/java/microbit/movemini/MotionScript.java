@@ -0,0 +1,135 @@
+package microbit.movemini;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * MotionScript
+ *
+ * Compiles a motion script into a {@link MotionTimeline} of MES D-pad events. A script is a
+ * list of steps separated by ';' or new lines, '#' starts a comment:
+ *
+ * <pre>
+ * forward 2s; left 0.5s; stop
+ * backward 750ms
+ * wait 1s        # keeps the current motion
+ * </pre>
+ *
+ * A step is a command (forward, backward, left, right, stop, wait) followed by an optional
+ * duration in s or ms; without one the next step follows immediately. A script that ends
+ * while the robot moves gets a final stop.
+ */
+
+public final class MotionScript {
+
+    private MotionScript() {
+    }
+
+    /**
+     * @throws IllegalArgumentException if the script has a syntax error, with the step in the message
+     */
+    public static MotionTimeline compile(String script) {
+        Builder builder = new Builder();
+        long offset = 0;
+        boolean moving = false;
+        for (String line : script.split("\n")) {
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            for (String step : line.split(";")) {
+                String[] words = step.trim().toLowerCase(Locale.US).split("\\s+");
+                if (words.length == 1 && words[0].isEmpty()) {
+                    continue;
+                }
+                if (words.length > 2) {
+                    throw new IllegalArgumentException("Unexpected text in step: " + step.trim());
+                }
+                String command = words[0];
+                long duration = words.length == 2 ? parseDuration(words[1], step) : 0;
+                if (command.equals("wait")) {
+                    if (words.length == 1) {
+                        throw new IllegalArgumentException("wait needs a duration: " + step.trim());
+                    }
+                } else if (command.equals("stop")) {
+                    builder.add(offset, MicroBitEvents.MES_DPAD_BUTTON_1_UP);
+                    moving = false;
+                } else {
+                    builder.add(offset, direction(command, step));
+                    moving = true;
+                }
+                offset += duration;
+            }
+        }
+        if (moving) {
+            builder.add(offset, MicroBitEvents.MES_DPAD_BUTTON_1_UP);
+        }
+        return builder.build(offset);
+    }
+
+    private static int direction(String command, String step) {
+        switch (command) {
+            case "forward":
+                return MicroBitEvents.MES_DPAD_BUTTON_1_DOWN;
+            case "backward":
+                return MicroBitEvents.MES_DPAD_BUTTON_2_DOWN;
+            case "left":
+                return MicroBitEvents.MES_DPAD_BUTTON_3_DOWN;
+            case "right":
+                return MicroBitEvents.MES_DPAD_BUTTON_4_DOWN;
+            default:
+                throw new IllegalArgumentException("Unknown command: " + step.trim());
+        }
+    }
+
+    private static long parseDuration(String text, String step) {
+        double scale;
+        String number;
+        if (text.endsWith("ms")) {
+            scale = 1e6;
+            number = text.substring(0, text.length() - 2);
+        } else if (text.endsWith("s")) {
+            scale = 1e9;
+            number = text.substring(0, text.length() - 1);
+        } else {
+            throw new IllegalArgumentException("Duration needs a unit (s or ms): " + step.trim());
+        }
+        try {
+            double value = Double.parseDouble(number);
+            if (value < 0 || Double.isNaN(value) || Double.isInfinite(value)) {
+                throw new IllegalArgumentException("Invalid duration: " + step.trim());
+            }
+            return Math.round(value * scale);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid duration: " + step.trim());
+        }
+    }
+
+    private static class Builder {
+
+        private long[] mOffsets = new long[16];
+        private int[] mValues = new int[16];
+        private int mSize;
+
+        void add(long offset, int value) {
+            if (mSize > 0 && mOffsets[mSize - 1] == offset) {
+                // a step without duration is replaced by the one following it
+                mValues[mSize - 1] = value;
+                return;
+            }
+            if (mSize == mOffsets.length) {
+                mOffsets = Arrays.copyOf(mOffsets, mSize * 2);
+                mValues = Arrays.copyOf(mValues, mSize * 2);
+            }
+            mOffsets[mSize] = offset;
+            mValues[mSize] = value;
+            mSize++;
+        }
+
+        MotionTimeline build(long duration) {
+            int[] eventCodes = new int[mSize];
+            Arrays.fill(eventCodes, MicroBitEvents.MES_DPAD_CONTROLLER_ID);
+            return new MotionTimeline(mOffsets, eventCodes, mValues, mSize, duration);
+        }
+    }
+}
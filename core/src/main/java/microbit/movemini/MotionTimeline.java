@@ -0,0 +1,61 @@
+package microbit.movemini;
+
+import java.util.Arrays;
+
+/**
+ * MotionTimeline
+ *
+ * Precomputed list of events with their offset from the start, as compiled by
+ * {@link MotionScript}. Immutable once built.
+ */
+
+public final class MotionTimeline {
+
+    private final long[] mOffsetsNanos;
+    private final int[] mEventCodes;
+    private final int[] mValues;
+    private final long mDurationNanos;
+
+    MotionTimeline(long[] offsetsNanos, int[] eventCodes, int[] values, int size, long durationNanos) {
+        this.mOffsetsNanos = Arrays.copyOf(offsetsNanos, size);
+        this.mEventCodes = Arrays.copyOf(eventCodes, size);
+        this.mValues = Arrays.copyOf(values, size);
+        this.mDurationNanos = durationNanos;
+    }
+
+    public int size() {
+        return mOffsetsNanos.length;
+    }
+
+    /**
+     * Time of the event relative to the start of the script.
+     */
+    public long getOffsetNanos(int index) {
+        return mOffsetsNanos[index];
+    }
+
+    public int getEventCode(int index) {
+        return mEventCodes[index];
+    }
+
+    public int getValue(int index) {
+        return mValues[index];
+    }
+
+    /**
+     * Time from the start until the last step has ended.
+     */
+    public long getDurationNanos() {
+        return mDurationNanos;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < size(); i++) {
+            out.append(mOffsetsNanos[i] / 1000000).append("ms ")
+                    .append(mEventCodes[i]).append('/').append(mValues[i]).append('\n');
+        }
+        return out.toString();
+    }
+}
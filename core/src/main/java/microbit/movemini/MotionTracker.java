@@ -0,0 +1,79 @@
+package microbit.movemini;
+
+/**
+ * MotionTracker
+ *
+ * Follows the commands sent to a robot to tell whether it is moving: a pressed D-pad
+ * direction or a non-zero analog speed or turn moves it, a released direction or zero speed
+ * and turn stop it. Commands may be reported from any thread.
+ */
+
+public class MotionTracker {
+
+    private volatile boolean mDpadMoving;
+    private volatile int mSpeed;
+    private volatile int mTurn;
+    private volatile boolean mMoving;
+    private volatile long mLastMovingAt;
+
+    /**
+     * @return true if the robot was stopped and this command starts it
+     */
+    public boolean onCommand(int eventCode, int value, long now) {
+        if (eventCode == MicroBitEvents.MES_DPAD_CONTROLLER_ID) {
+            switch (value) {
+                case MicroBitEvents.MES_DPAD_BUTTON_1_DOWN:
+                case MicroBitEvents.MES_DPAD_BUTTON_2_DOWN:
+                case MicroBitEvents.MES_DPAD_BUTTON_3_DOWN:
+                case MicroBitEvents.MES_DPAD_BUTTON_4_DOWN:
+                    mDpadMoving = true;
+                    break;
+                case MicroBitEvents.MES_DPAD_BUTTON_1_UP:
+                case MicroBitEvents.MES_DPAD_BUTTON_2_UP:
+                case MicroBitEvents.MES_DPAD_BUTTON_3_UP:
+                case MicroBitEvents.MES_DPAD_BUTTON_4_UP:
+                    // the :MOVE mini program stops on any release
+                    mDpadMoving = false;
+                    mSpeed = 0;
+                    mTurn = 0;
+                    break;
+                default:
+                    return false;
+            }
+        } else if (eventCode == MicroBitEvents.MOVEMINI_SPEED_ID) {
+            mSpeed = value;
+        } else if (eventCode == MicroBitEvents.MOVEMINI_TURN_ID) {
+            mTurn = value;
+        } else {
+            return false;
+        }
+        boolean wasMoving = mMoving;
+        boolean moving = mDpadMoving || mSpeed != 0 || mTurn != 0;
+        mMoving = moving;
+        if (moving || wasMoving) {
+            mLastMovingAt = now;
+        }
+        return moving && !wasMoving;
+    }
+
+    public boolean isMoving() {
+        return mMoving;
+    }
+
+    /**
+     * @return true while moving and for the given time after the robot stopped
+     */
+    public boolean isActive(long now, long holdNanos) {
+        return mMoving || now - mLastMovingAt < holdNanos;
+    }
+
+    /**
+     * Forgets the motion, e.g. when the link was lost and the robot stopped itself.
+     */
+    public void reset() {
+        mDpadMoving = false;
+        mSpeed = 0;
+        mTurn = 0;
+        mMoving = false;
+    }
+}
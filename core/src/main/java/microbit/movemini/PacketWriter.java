@@ -0,0 +1,18 @@
+package microbit.movemini;
+
+/**
+ * PacketWriter
+ *
+ * Destination of encoded event frames.
+ */
+
+public interface PacketWriter {
+
+    /**
+     * Writes the first {@code length} bytes of {@code data}. The buffer is reused by the caller
+     * once this method returns.
+     *
+     * @return false if the packet could not be handed to the link
+     */
+    public boolean writePacket(byte[] data, int length);
+}
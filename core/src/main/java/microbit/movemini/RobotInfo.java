@@ -0,0 +1,68 @@
+package microbit.movemini;
+
+/**
+ * RobotInfo
+ *
+ * A micro:bit seen during a scan. Besides the last RSSI it keeps an exponentially smoothed
+ * estimate, as single advertisements vary by several dB. Updated by the scan thread only.
+ */
+
+public class RobotInfo {
+
+    private final String mAddress;
+    private final String mName;
+    // weight of a new sample in the smoothed RSSI
+    private static final float RSSI_SMOOTHING = 0.25f;
+
+    private volatile int mRssi;
+    private volatile float mSmoothedRssi;
+    private volatile int mSamples;
+    private volatile long mLastSeenAt;
+
+    public RobotInfo(String address, String name) {
+        this.mAddress = address;
+        this.mName = name;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getRssi() {
+        return mRssi;
+    }
+
+    public float getSmoothedRssi() {
+        return mSmoothedRssi;
+    }
+
+    /**
+     * Number of advertisements received.
+     */
+    public int getSampleCount() {
+        return mSamples;
+    }
+
+    /**
+     * {@link System#nanoTime()} of the last advertisement.
+     */
+    public long getLastSeenAt() {
+        return mLastSeenAt;
+    }
+
+    public void seen(int rssi, long now) {
+        mRssi = rssi;
+        mSmoothedRssi = mSamples == 0 ? rssi : mSmoothedRssi + RSSI_SMOOTHING * (rssi - mSmoothedRssi);
+        mSamples++;
+        mLastSeenAt = now;
+    }
+
+    @Override
+    public String toString() {
+        return mName + " (" + mAddress + ") RSSI: " + mRssi + " (" + Math.round(mSmoothedRssi) + ")";
+    }
+}
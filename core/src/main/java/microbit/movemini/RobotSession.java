@@ -0,0 +1,140 @@
+package microbit.movemini;
+
+/**
+ * RobotSession
+ *
+ * One robot of a fleet: its transport, its own coalescing command queue and writer. The
+ * writer has no thread of its own, a {@link FleetDispatcher} drives all sessions.
+ *
+ * A session lives for one link: when the link drops the transport is closed, and the robot
+ * is connected again with a new session.
+ */
+
+public class RobotSession implements EventSink, RobotTransport.Callback {
+
+    public interface Listener {
+
+        public void onSessionStateChanged(RobotSession session, boolean connected);
+    }
+
+    private static final int COMMAND_QUEUE_CAPACITY = 16;
+    private static final int INBOUND_EVENT_CAPACITY = 64;
+
+    private final String mAddress;
+    private final RobotTransport mTransport;
+    private final FleetDispatcher mDispatcher;
+    private final CoalescingCommandQueue mCommandQueue = new CoalescingCommandQueue(COMMAND_QUEUE_CAPACITY);
+    private final CommandWriter mCommandWriter;
+    private final EventRingBuffer mInboundEvents = new EventRingBuffer(INBOUND_EVENT_CAPACITY);
+    private volatile Listener mListener;
+    private volatile boolean mConnected;
+
+    public RobotSession(String address, RobotTransport transport, FleetDispatcher dispatcher) {
+        this.mAddress = address;
+        this.mTransport = transport;
+        this.mDispatcher = dispatcher;
+        this.mCommandWriter = new CommandWriter(mCommandQueue, new PacketWriter() {
+            @Override
+            public boolean writePacket(byte[] data, int length) {
+                return mConnected && mTransport.writePacket(data, length);
+            }
+        });
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public void open() {
+        mTransport.setCallback(this);
+        mTransport.open();
+    }
+
+    public void close() {
+        mConnected = false;
+        mDispatcher.remove(this);
+        mTransport.setCallback(null);
+        mTransport.close();
+    }
+
+    @Override
+    public void sendPacket(int eventCode, int value) {
+        mCommandQueue.offer(eventCode, value);
+        mDispatcher.wakeUp();
+    }
+
+    /**
+     * Reads the events received from this robot, see BleConnection.subscribeEvents().
+     */
+    public EventRingBuffer.Subscriber subscribeEvents(int eventCode) {
+        return mInboundEvents.subscribe(eventCode);
+    }
+
+    public CommandWriter getCommandWriter() {
+        return mCommandWriter;
+    }
+
+    /**
+     * Called by the {@link FleetDispatcher}, writes at most one packet without blocking.
+     */
+    boolean pump() {
+        return mConnected && mCommandWriter.tryWriteNext();
+    }
+
+    /**
+     * Called by the {@link FleetDispatcher}: true if commands wait for a write credit or for
+     * the link to accept them.
+     */
+    boolean hasPending() {
+        return mConnected && mCommandWriter.hasPending();
+    }
+
+    @Override
+    public void onLinkUp() {
+        mCommandQueue.clear();
+        mCommandWriter.discardHeldPacket();
+        mCommandWriter.getFlowControl().reset();
+        mCommandWriter.setMaxPacketSize(mTransport.getMtu() - 3);
+        mConnected = true;
+        mDispatcher.add(this);
+        notifyState();
+    }
+
+    @Override
+    public void onLinkDown() {
+        // releases the GATT client of the dropped link
+        close();
+        notifyState();
+    }
+
+    @Override
+    public void onWriteComplete(boolean success) {
+        mCommandWriter.onWriteComplete(success);
+        mDispatcher.wakeUp();
+    }
+
+    @Override
+    public void onPacketReceived(byte[] data, int length) {
+        mInboundEvents.publishPacket(data, length, System.nanoTime());
+    }
+
+    @Override
+    public void onRssiRead(int rssi) {
+        // fleet sessions do not poll the RSSI
+    }
+
+    private void notifyState() {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onSessionStateChanged(this, mConnected);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package microbit.movemini;
+
+/**
+ * RobotTransport
+ *
+ * Link to a single robot as seen by BleConnection. Implementations report link,
+ * write completion, incoming event packets and RSSI readings through the {@link Callback},
+ * from any thread.
+ */
+
+public interface RobotTransport extends PacketWriter {
+
+    /**
+     * Default ATT MTU of a BLE link, 3 bytes of it are the write header.
+     */
+    public static final int DEFAULT_MTU = 23;
+
+    public interface Callback {
+
+        /**
+         * The link is established and writes may be issued.
+         */
+        public void onLinkUp();
+
+        /**
+         * The link was lost or closed.
+         */
+        public void onLinkDown();
+
+        /**
+         * A write accepted by {@link #writePacket} has finished.
+         */
+        public void onWriteComplete(boolean success);
+
+        /**
+         * The robot sent event frames. {@code data} is only valid during the call.
+         */
+        public void onPacketReceived(byte[] data, int length);
+
+        /**
+         * Result of {@link #readRssi()}, in dBm.
+         */
+        public void onRssiRead(int rssi);
+    }
+
+    public void setCallback(Callback callback);
+
+    public void open();
+
+    public void close();
+
+    /**
+     * ATT MTU of the link; after the link is up this is the MTU negotiated for it.
+     */
+    public int getMtu();
+
+    /**
+     * Asks for connection parameters favouring latency while the robot is driven, or power
+     * while it is parked. Ignored where not supported.
+     */
+    public void setLowLatency(boolean lowLatency);
+
+    /**
+     * Requests the RSSI of the link, reported through {@link Callback#onRssiRead}.
+     *
+     * @return false if the request could not be issued
+     */
+    public boolean readRssi();
+}
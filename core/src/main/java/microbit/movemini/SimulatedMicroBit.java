@@ -0,0 +1,374 @@
+package microbit.movemini;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SimulatedMicroBit
+ *
+ * In-process {@link RobotTransport} standing in for a micro:bit running the :MOVE mini program.
+ * Decodes the MES D-pad events it receives into a {@link Motion} and models link latency,
+ * MTU, signal strength and packet loss, so the send path can be load tested on a plain JVM.
+ * Echo requests are answered like the micro:bit program does, and like its watchdog the
+ * robot stops when it moves and no event arrived within the deadline of the last heartbeat.
+ *
+ * Like the Android GATT stack it accepts only one write at a time: {@link #writePacket} returns
+ * false until the previous write has completed.
+ */
+
+public class SimulatedMicroBit implements RobotTransport {
+
+    public enum Motion {STOPPED, FORWARD, BACKWARD, LEFT, RIGHT}
+
+    public interface Listener {
+
+        /**
+         * Called on the simulator thread for every event that reached the micro:bit.
+         */
+        public void onEvent(int eventCode, int value, long receivedAt);
+    }
+
+    private volatile long mLatencyNanos;
+    private final int mMtu;
+    private final double mDropRate;
+    private final Random mRandom;
+
+    private final ScheduledExecutorService mExecutor;
+    private volatile Callback mCallback;
+    private volatile Listener mListener;
+
+    private volatile int mRssi = -60;
+    private volatile boolean mLowLatency;
+    private volatile boolean mInRange = true;
+    private volatile boolean mLinkUp;
+    private volatile boolean mBusy;
+    private volatile int mWritesToFail;
+    private volatile Motion mMotion = Motion.STOPPED;
+
+    // 0 until the first heartbeat arms the watchdog
+    private volatile long mDeadlineNanos;
+    private volatile long mLastReceivedAt;
+    private volatile long mAutoStops;
+    private final Runnable mWatchdog = new Runnable() {
+        @Override
+        public void run() {
+            long deadline = mDeadlineNanos;
+            if (deadline > 0 && mMotion != Motion.STOPPED && System.nanoTime() - mLastReceivedAt >= deadline) {
+                mMotion = Motion.STOPPED;
+                mAutoStops++;
+            }
+        }
+    };
+
+    private volatile long mReceived;
+    private volatile long mDropped;
+    private volatile long mRejected;
+
+    /**
+     * @param latencyMicros time from a write until the micro:bit sees the event and the write completes
+     * @param mtu           ATT MTU of the simulated link
+     * @param dropRate      probability in [0, 1) that a packet gets lost on air
+     * @param seed          seed for the loss model, to make runs repeatable
+     */
+    public SimulatedMicroBit(long latencyMicros, int mtu, double dropRate, long seed) {
+        this.mLatencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+        this.mMtu = mtu;
+        this.mDropRate = dropRate;
+        this.mRandom = new Random(seed);
+        this.mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "SimulatedMicroBit");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public SimulatedMicroBit() {
+        this(0, DEFAULT_MTU, 0, 0);
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    @Override
+    public void open() {
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                Callback callback = mCallback;
+                if (!mInRange) {
+                    // connection attempt failed
+                    if (callback != null) {
+                        callback.onLinkDown();
+                    }
+                    return;
+                }
+                mLinkUp = true;
+                mBusy = false;
+                if (callback != null) {
+                    callback.onLinkUp();
+                }
+            }
+        }, mLatencyNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void close() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                dropLink();
+            }
+        });
+    }
+
+    /**
+     * Moves the robot out of or back into range. Out of range the link drops and connection
+     * attempts fail.
+     */
+    public void setInRange(boolean inRange) {
+        mInRange = inRange;
+        if (!inRange) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    dropLink();
+                }
+            });
+        }
+    }
+
+    /**
+     * Changes the link latency and the RSSI reported, e.g. to simulate moving towards the
+     * edge of range.
+     */
+    public void setLinkConditions(long latencyMicros, int rssi) {
+        mLatencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+        mRssi = rssi;
+    }
+
+    /**
+     * Makes the next writes complete with a failure, like a GATT error, without the micro:bit
+     * receiving them.
+     */
+    public void failNextWrites(int count) {
+        mWritesToFail = count;
+    }
+
+    /**
+     * Simulates the robot going out of range or being switched off.
+     */
+    public void dropLink() {
+        if (!mLinkUp) {
+            return;
+        }
+        mLinkUp = false;
+        mMotion = Motion.STOPPED;
+        mDeadlineNanos = 0;
+        Callback callback = mCallback;
+        if (callback != null) {
+            callback.onLinkDown();
+        }
+    }
+
+    /**
+     * Stops the simulator thread.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Override
+    public int getMtu() {
+        return mMtu;
+    }
+
+    /**
+     * Only recorded, the simulated latency does not depend on it.
+     */
+    @Override
+    public void setLowLatency(boolean lowLatency) {
+        mLowLatency = lowLatency;
+    }
+
+    public boolean isLowLatency() {
+        return mLowLatency;
+    }
+
+    @Override
+    public boolean readRssi() {
+        if (!mLinkUp) {
+            return false;
+        }
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                Callback callback = mCallback;
+                if (mLinkUp && callback != null) {
+                    callback.onRssiRead(mRssi);
+                }
+            }
+        }, mLatencyNanos, TimeUnit.NANOSECONDS);
+        return true;
+    }
+
+    @Override
+    public boolean writePacket(byte[] data, int length) {
+        if (!mLinkUp || mBusy) {
+            mRejected++;
+            return false;
+        }
+        mBusy = true;
+        final boolean fits = length <= mMtu - 3;
+        final boolean lost = mDropRate > 0 && mRandom.nextDouble() < mDropRate;
+        int writesToFail = mWritesToFail;
+        final boolean failed = writesToFail > 0;
+        if (failed) {
+            mWritesToFail = writesToFail - 1;
+        }
+        // the caller reuses its buffer, decode before handing over to the simulator thread
+        final int frames = fits && !lost && !failed ? length / EventCodec.FRAME_SIZE : 0;
+        final long packed = frames > 0 ? pack(data, 0) : 0;
+        final long[] rest = frames > 1 ? packRest(data, frames) : null;
+        if (lost) {
+            mDropped++;
+        }
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (frames > 0) {
+                    deliver(packed);
+                    for (int i = 0; rest != null && i < rest.length; i++) {
+                        deliver(rest[i]);
+                    }
+                }
+                mBusy = false;
+                Callback callback = mCallback;
+                if (callback != null) {
+                    callback.onWriteComplete(fits && !failed);
+                }
+            }
+        }, mLatencyNanos, TimeUnit.NANOSECONDS);
+        return true;
+    }
+
+    /**
+     * Sends an event from the micro:bit to the app, as a notification of the MicroBit Event
+     * characteristic would.
+     */
+    public void emitEvent(final int eventCode, final int value) {
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                Callback callback = mCallback;
+                if (!mLinkUp || callback == null) {
+                    return;
+                }
+                byte[] frame = new byte[EventCodec.FRAME_SIZE];
+                EventCodec.encode(eventCode, value, frame, 0);
+                callback.onPacketReceived(frame, frame.length);
+            }
+        }, mLatencyNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public Motion getMotion() {
+        return mMotion;
+    }
+
+    public boolean isLinkUp() {
+        return mLinkUp;
+    }
+
+    /**
+     * Number of events that reached the micro:bit.
+     */
+    public long getReceivedCount() {
+        return mReceived;
+    }
+
+    /**
+     * Number of times the watchdog stopped the robot because the heartbeats stopped.
+     */
+    public long getAutoStopCount() {
+        return mAutoStops;
+    }
+
+    /**
+     * Number of packets lost by the loss model.
+     */
+    public long getDroppedCount() {
+        return mDropped;
+    }
+
+    /**
+     * Number of writes refused because the link was down or busy.
+     */
+    public long getRejectedCount() {
+        return mRejected;
+    }
+
+    private static long pack(byte[] data, int offset) {
+        return ((long) EventCodec.decodeEventCode(data, offset) << 32) | EventCodec.decodeValue(data, offset);
+    }
+
+    private static long[] packRest(byte[] data, int frames) {
+        long[] rest = new long[frames - 1];
+        for (int i = 1; i < frames; i++) {
+            rest[i - 1] = pack(data, i * EventCodec.FRAME_SIZE);
+        }
+        return rest;
+    }
+
+    private void deliver(long packed) {
+        int eventCode = (int) (packed >>> 32);
+        int value = (int) packed;
+        mReceived++;
+        mLastReceivedAt = System.nanoTime();
+        if (eventCode == MicroBitEvents.MES_DPAD_CONTROLLER_ID) {
+            mMotion = decodeMotion(value, mMotion);
+        } else if (eventCode == MicroBitEvents.MOVEMINI_ECHO_REQUEST_ID) {
+            emitEvent(MicroBitEvents.MOVEMINI_ECHO_ID, value);
+        } else if (eventCode == MicroBitEvents.MOVEMINI_HEARTBEAT_ID) {
+            mDeadlineNanos = TimeUnit.MILLISECONDS.toNanos(value);
+        }
+        long deadline = mDeadlineNanos;
+        if (deadline > 0 && mMotion != Motion.STOPPED) {
+            mExecutor.schedule(mWatchdog, deadline, TimeUnit.NANOSECONDS);
+        }
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onEvent(eventCode, value, System.nanoTime());
+        }
+    }
+
+    private static Motion decodeMotion(int value, Motion current) {
+        switch (value) {
+            case MicroBitEvents.MES_DPAD_BUTTON_1_DOWN:
+                return Motion.FORWARD;
+            case MicroBitEvents.MES_DPAD_BUTTON_2_DOWN:
+                return Motion.BACKWARD;
+            case MicroBitEvents.MES_DPAD_BUTTON_3_DOWN:
+                return Motion.LEFT;
+            case MicroBitEvents.MES_DPAD_BUTTON_4_DOWN:
+                return Motion.RIGHT;
+            case MicroBitEvents.MES_DPAD_BUTTON_1_UP:
+            case MicroBitEvents.MES_DPAD_BUTTON_2_UP:
+            case MicroBitEvents.MES_DPAD_BUTTON_3_UP:
+            case MicroBitEvents.MES_DPAD_BUTTON_4_UP:
+                return Motion.STOPPED;
+            default:
+                return current;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package microbit.movemini;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * StrongestSignalPolicy
+ *
+ * Picks the micro:bit with the strongest smoothed RSSI, usually the one closest to the phone.
+ * Scans for a settle time first so that every robot in range has been heard a few times;
+ * a settle time of 0 connects to the first micro:bit above the RSSI floor.
+ */
+
+public class StrongestSignalPolicy implements DeviceSelectionPolicy {
+
+    private final long mSettleNanos;
+    private final int mMinRssi;
+
+    /**
+     * @param minRssi robots received weaker than this are ignored
+     */
+    public StrongestSignalPolicy(long settleTime, TimeUnit unit, int minRssi) {
+        this.mSettleNanos = unit.toNanos(settleTime);
+        this.mMinRssi = minRssi;
+    }
+
+    @Override
+    public RobotInfo select(Collection<RobotInfo> robots, long scanStartedAt, long now) {
+        if (now - scanStartedAt < mSettleNanos) {
+            return null;
+        }
+        RobotInfo best = null;
+        for (RobotInfo robot : robots) {
+            float rssi = robot.getSmoothedRssi();
+            if (rssi >= mMinRssi && (best == null || rssi > best.getSmoothedRssi())) {
+                best = robot;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,159 @@
+package microbit.movemini;
+
+/**
+ * TiltDrive
+ *
+ * Steers the robot by tilting the phone. Meant to be ticked at a fixed control rate, so the
+ * commands sent do not depend on how often the sensors deliver: each tick maps the tilt of a
+ * {@link TiltFilter}, relative to the neutral position taken by {@link #calibrate()}, to
+ * speed and turn. Tilting the far edge down drives forward, tilting the right edge down
+ * turns right, for a phone in landscape with its top on the left.
+ *
+ * In {@link Mode#DPAD} mode the dominant axis selects a D-pad direction, sent when it
+ * changes, which works with the plain :MOVE mini program. In {@link Mode#ANALOG} mode speed
+ * and turn go to an {@link AnalogDrive}. Ticks do not allocate.
+ */
+
+public class TiltDrive {
+
+    public enum Mode {DPAD, ANALOG}
+
+    private static final float DEFAULT_DEAD_ZONE = (float) Math.toRadians(8);
+    private static final float DEFAULT_FULL_TILT = (float) Math.toRadians(30);
+
+    private final TiltFilter mFilter;
+    private final EventSink mSink;
+    private final AnalogDrive mAnalogDrive;
+
+    private volatile Mode mMode = Mode.DPAD;
+    private volatile float mDeadZone = DEFAULT_DEAD_ZONE;
+    private volatile float mFullTilt = DEFAULT_FULL_TILT;
+    private volatile float mNeutralPitch;
+    private volatile float mNeutralRoll;
+
+    private int mSentDirection = MicroBitEvents.MES_DPAD_BUTTON_1_UP;
+    private float mSpeed;
+    private float mTurn;
+
+    /**
+     * @param sink        receives the D-pad events
+     * @param analogDrive receives speed and turn in analog mode
+     */
+    public TiltDrive(TiltFilter filter, EventSink sink, AnalogDrive analogDrive) {
+        this.mFilter = filter;
+        this.mSink = sink;
+        this.mAnalogDrive = analogDrive;
+    }
+
+    /**
+     * Switching stops the robot first.
+     */
+    public synchronized void setMode(Mode mode) {
+        if (mode != mMode) {
+            stop(System.nanoTime());
+            mMode = mode;
+        }
+    }
+
+    public Mode getMode() {
+        return mMode;
+    }
+
+    /**
+     * @param deadZone tilt in radians that is ignored around the neutral position
+     * @param fullTilt tilt in radians that gives full speed or turn
+     */
+    public void setRange(float deadZone, float fullTilt) {
+        if (deadZone < 0 || fullTilt <= deadZone) {
+            throw new IllegalArgumentException("need 0 <= dead zone < full tilt: " + deadZone + ", " + fullTilt);
+        }
+        mDeadZone = deadZone;
+        mFullTilt = fullTilt;
+    }
+
+    /**
+     * Takes the current tilt as the neutral position.
+     */
+    public void calibrate() {
+        mNeutralPitch = mFilter.getPitch();
+        mNeutralRoll = mFilter.getRoll();
+    }
+
+    /**
+     * Sends the command for the current tilt.
+     */
+    public synchronized void tick(long now) {
+        if (!mFilter.hasEstimate()) {
+            return;
+        }
+        float deadZone = mDeadZone;
+        float fullTilt = mFullTilt;
+        mSpeed = axis(mFilter.getRoll() - mNeutralRoll, deadZone, fullTilt);
+        mTurn = axis(mFilter.getPitch() - mNeutralPitch, deadZone, fullTilt);
+        if (mMode == Mode.ANALOG) {
+            // a held back update is sent by one of the next ticks
+            mAnalogDrive.update(mSpeed, mTurn, now);
+        } else {
+            sendDirection(direction(mSpeed, mTurn));
+        }
+    }
+
+    /**
+     * Stops the robot, e.g. when tilt steering is switched off.
+     */
+    public synchronized void stop(long now) {
+        mSpeed = 0;
+        mTurn = 0;
+        if (mMode == Mode.ANALOG) {
+            mAnalogDrive.update(0, 0, now);
+        } else {
+            sendDirection(MicroBitEvents.MES_DPAD_BUTTON_1_UP);
+        }
+    }
+
+    /**
+     * Speed of the last tick in [-1, 1].
+     */
+    public synchronized float getSpeed() {
+        return mSpeed;
+    }
+
+    /**
+     * Turn of the last tick in [-1, 1], positive turns right.
+     */
+    public synchronized float getTurn() {
+        return mTurn;
+    }
+
+    private void sendDirection(int direction) {
+        if (direction != mSentDirection) {
+            mSink.sendPacket(MicroBitEvents.MES_DPAD_CONTROLLER_ID, direction);
+            mSentDirection = direction;
+        }
+    }
+
+    /**
+     * Maps a tilt to [-1, 1], linear from the edge of the dead zone to the full tilt.
+     */
+    static float axis(float tilt, float deadZone, float fullTilt) {
+        float magnitude = Math.abs(tilt);
+        if (magnitude <= deadZone) {
+            return 0;
+        }
+        float value = Math.min(1, (magnitude - deadZone) / (fullTilt - deadZone));
+        return tilt < 0 ? -value : value;
+    }
+
+    /**
+     * D-pad direction of the dominant axis, or stop.
+     */
+    static int direction(float speed, float turn) {
+        if (speed == 0 && turn == 0) {
+            return MicroBitEvents.MES_DPAD_BUTTON_1_UP;
+        }
+        if (Math.abs(speed) >= Math.abs(turn)) {
+            return speed > 0 ? MicroBitEvents.MES_DPAD_BUTTON_1_DOWN : MicroBitEvents.MES_DPAD_BUTTON_2_DOWN;
+        }
+        return turn > 0 ? MicroBitEvents.MES_DPAD_BUTTON_4_DOWN : MicroBitEvents.MES_DPAD_BUTTON_3_DOWN;
+    }
+}
@@ -0,0 +1,140 @@
+package microbit.movemini;
+
+/**
+ * TiltFilter
+ *
+ * Complementary filter estimating how the phone is tilted from accelerometer and gyroscope
+ * samples. The gyroscope is integrated for fast response, and the angles are pulled towards
+ * the ones of the measured gravity with a time constant, which removes the gyroscope drift
+ * while ignoring the short accelerations of a shaking hand. Without gyroscope samples the
+ * accelerometer angles are low-pass filtered with the same time constant.
+ *
+ * Angles are in radians in the device frame: pitch turns about the x axis and is positive
+ * when the top (+y) edge rises, roll turns about the y axis and is positive when the right
+ * (+x) edge goes down.
+ *
+ * Samples are fed from a single thread, which also resets the filter; the angles may be read
+ * from any. Nothing allocates.
+ */
+
+public class TiltFilter {
+
+    private static final float DEFAULT_TIME_CONSTANT = 0.3f;
+    // longer gaps between samples are not integrated
+    private static final long MAX_STEP_NANOS = 100000000L;
+
+    private final float mTimeConstant;
+
+    private float mAccelPitch;
+    private float mAccelRoll;
+    private boolean mHasAccel;
+    private boolean mHasGyro;
+    private long mLastAt;
+    private volatile float mPitch;
+    private volatile float mRoll;
+    private volatile long mSamples;
+
+    /**
+     * @param timeConstant seconds after which the measured gravity outweighs the gyroscope
+     */
+    public TiltFilter(float timeConstant) {
+        if (timeConstant <= 0) {
+            throw new IllegalArgumentException("time constant must be positive: " + timeConstant);
+        }
+        this.mTimeConstant = timeConstant;
+    }
+
+    public TiltFilter() {
+        this(DEFAULT_TIME_CONSTANT);
+    }
+
+    /**
+     * @param x         acceleration along x in m/s^2, including gravity
+     * @param timestamp time of the sample in nanoseconds
+     */
+    public void onAccelerometer(float x, float y, float z, long timestamp) {
+        mAccelPitch = (float) Math.atan2(y, Math.sqrt(x * x + z * z));
+        mAccelRoll = (float) Math.atan2(-x, Math.sqrt(y * y + z * z));
+        if (!mHasAccel) {
+            mHasAccel = true;
+            mPitch = mAccelPitch;
+            mRoll = mAccelRoll;
+            mLastAt = timestamp;
+            mSamples++;
+            return;
+        }
+        if (!mHasGyro) {
+            float weight = weight(timestamp);
+            mPitch = mAccelPitch + weight * (mPitch - mAccelPitch);
+            mRoll = mAccelRoll + weight * (mRoll - mAccelRoll);
+            mSamples++;
+        }
+    }
+
+    /**
+     * @param x         angular rate about x in rad/s, counter-clockwise positive
+     * @param timestamp time of the sample in nanoseconds
+     */
+    public void onGyroscope(float x, float y, float z, long timestamp) {
+        if (!mHasAccel) {
+            // nothing to anchor the angles to yet
+            return;
+        }
+        if (!mHasGyro) {
+            mHasGyro = true;
+            mLastAt = timestamp;
+            return;
+        }
+        long step = timestamp - mLastAt;
+        float weight = weight(timestamp);
+        float dt = step > 0 && step <= MAX_STEP_NANOS ? step * 1e-9f : 0;
+        mPitch = mAccelPitch + weight * (mPitch + x * dt - mAccelPitch);
+        mRoll = mAccelRoll + weight * (mRoll + y * dt - mAccelRoll);
+        mSamples++;
+    }
+
+    /**
+     * Share kept of the previous estimate for the time since the last sample.
+     */
+    private float weight(long timestamp) {
+        long step = timestamp - mLastAt;
+        mLastAt = timestamp;
+        if (step <= 0) {
+            return 1;
+        }
+        if (step > MAX_STEP_NANOS) {
+            step = MAX_STEP_NANOS;
+        }
+        return mTimeConstant / (mTimeConstant + step * 1e-9f);
+    }
+
+    /**
+     * Forgets all samples, e.g. when the sensors were stopped.
+     */
+    public void reset() {
+        mHasAccel = false;
+        mHasGyro = false;
+        mPitch = 0;
+        mRoll = 0;
+        mSamples = 0;
+    }
+
+    public boolean hasEstimate() {
+        return mSamples > 0;
+    }
+
+    public float getPitch() {
+        return mPitch;
+    }
+
+    public float getRoll() {
+        return mRoll;
+    }
+
+    /**
+     * Number of samples that updated the estimate.
+     */
+    public long getSampleCount() {
+        return mSamples;
+    }
+}
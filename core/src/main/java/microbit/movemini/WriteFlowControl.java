@@ -0,0 +1,131 @@
+package microbit.movemini;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * WriteFlowControl
+ *
+ * Credit based window for characteristic writes. A credit is taken before a write is issued
+ * and returned by the write completion callback, so no more than {@link #getWindow()} writes
+ * are outstanding in the GATT stack. A completion that never arrives is reclaimed after the
+ * completion timeout, so a lost callback cannot stall the writer forever.
+ */
+
+public class WriteFlowControl {
+
+    private int mWindow;
+    private final long mCompletionTimeoutNanos;
+    private int mInFlight;
+    private long mLastProgressAt;
+
+    private long mCompleted;
+    private long mFailed;
+    private long mTimedOut;
+
+    public WriteFlowControl(int window, long completionTimeoutMillis) {
+        setWindow(window);
+        this.mCompletionTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(completionTimeoutMillis);
+    }
+
+    public synchronized void setWindow(int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("window must be positive: " + window);
+        }
+        mWindow = window;
+        notifyAll();
+    }
+
+    public synchronized int getWindow() {
+        return mWindow;
+    }
+
+    /**
+     * Waits until a write may be issued and takes its credit.
+     */
+    public synchronized void acquire() throws InterruptedException {
+        long deadline = System.nanoTime() + mCompletionTimeoutNanos;
+        while (mInFlight >= mWindow) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                // the completion of the oldest write got lost, take over its credit
+                mInFlight--;
+                mTimedOut++;
+                break;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        mInFlight++;
+        mLastProgressAt = System.nanoTime();
+    }
+
+    /**
+     * Takes a credit if one is free, without waiting. Reclaims a credit if no write has
+     * completed within the completion timeout.
+     *
+     * @return false if the window is full
+     */
+    public synchronized boolean tryAcquire() {
+        long now = System.nanoTime();
+        if (mInFlight >= mWindow) {
+            if (now - mLastProgressAt < mCompletionTimeoutNanos) {
+                return false;
+            }
+            mInFlight--;
+            mTimedOut++;
+        }
+        mInFlight++;
+        mLastProgressAt = now;
+        return true;
+    }
+
+    /**
+     * Returns a credit taken by {@link #acquire()} for a write that was never issued.
+     */
+    public synchronized void cancel() {
+        if (mInFlight > 0) {
+            mInFlight--;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Called from the write completion callback. A failed write returns its credit too, the
+     * {@link CommandWriter} takes a new one to write its commands again.
+     */
+    public synchronized void complete(boolean success) {
+        if (mInFlight > 0) {
+            mInFlight--;
+        }
+        mLastProgressAt = System.nanoTime();
+        if (success) {
+            mCompleted++;
+        } else {
+            mFailed++;
+        }
+        notifyAll();
+    }
+
+    public synchronized void reset() {
+        mInFlight = 0;
+        notifyAll();
+    }
+
+    public synchronized int getInFlight() {
+        return mInFlight;
+    }
+
+    public synchronized long getCompletedCount() {
+        return mCompleted;
+    }
+
+    public synchronized long getFailedCount() {
+        return mFailed;
+    }
+
+    /**
+     * Number of writes whose completion never arrived within the timeout.
+     */
+    public synchronized long getTimedOutCount() {
+        return mTimedOut;
+    }
+}
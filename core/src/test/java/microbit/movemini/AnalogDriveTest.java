@@ -0,0 +1,136 @@
+package microbit.movemini;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class AnalogDriveTest {
+
+    private static final int SPEED = MicroBitEvents.MOVEMINI_SPEED_ID;
+    private static final int TURN = MicroBitEvents.MOVEMINI_TURN_ID;
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * Fake transport: records the events in the order they were sent.
+     */
+    private static class RecordingSink implements EventSink {
+
+        final List<int[]> events = new ArrayList<>();
+
+        @Override
+        public void sendPacket(int eventCode, int value) {
+            events.add(new int[]{eventCode, value});
+        }
+    }
+
+    private RecordingSink mSink;
+    private AnalogDrive mDrive;
+
+    @Before
+    public void setUp() {
+        mSink = new RecordingSink();
+        // at most one update per 50 ms, changes below 5 % are ignored
+        mDrive = new AnalogDrive(mSink, 20, 5);
+    }
+
+    private void assertEvent(int index, int eventCode, int value) {
+        assertEquals(eventCode, mSink.events.get(index)[0]);
+        assertEquals(value, mSink.events.get(index)[1]);
+    }
+
+    @Test
+    public void sendsOnlyTheAxisThatChanged() {
+        assertEquals(-1, mDrive.update(0.5f, 0, 0));
+        assertEquals(1, mSink.events.size());
+        assertEvent(0, SPEED, 50);
+
+        assertEquals(-1, mDrive.update(0.5f, 0.25f, 100 * MS));
+        assertEquals(2, mSink.events.size());
+        assertEvent(1, TURN, 25);
+        assertEquals(2, mDrive.getUpdateCount());
+        assertEquals(2, mDrive.getPacketCount());
+    }
+
+    @Test
+    public void ignoresChangesWithinTheDeadband() {
+        mDrive.update(0.5f, 0, 0);
+
+        assertEquals(-1, mDrive.update(0.54f, 0.04f, 100 * MS));
+        assertEquals(-1, mDrive.update(0.46f, -0.04f, 200 * MS));
+        assertEquals(1, mSink.events.size());
+
+        mDrive.update(0.55f, 0, 300 * MS);
+        assertEquals(2, mSink.events.size());
+        assertEvent(1, SPEED, 55);
+    }
+
+    @Test
+    public void clampsToFullScale() {
+        mDrive.update(1.7f, -3, 0);
+
+        assertEvent(0, SPEED, 100);
+        assertEvent(1, TURN, -100);
+        // still full scale, nothing to send
+        assertEquals(-1, mDrive.update(2, -2, 100 * MS));
+        assertEquals(2, mSink.events.size());
+    }
+
+    @Test
+    public void rateLimitHoldsBackTheLatestUpdate() {
+        mDrive.update(0.5f, 0, 0);
+
+        assertEquals(40 * MS, mDrive.update(0.7f, 0, 10 * MS));
+        assertEquals(30 * MS, mDrive.update(0.8f, 0, 20 * MS));
+        assertEquals(10 * MS, mDrive.flush(40 * MS));
+        assertEquals(1, mSink.events.size());
+
+        assertEquals(-1, mDrive.flush(50 * MS));
+        assertEquals(2, mSink.events.size());
+        assertEvent(1, SPEED, 80);
+        assertEquals(-1, mDrive.flush(60 * MS));
+    }
+
+    @Test
+    public void updateBackWithinTheDeadbandCancelsTheHeldOne() {
+        mDrive.update(0.5f, 0, 0);
+        mDrive.update(0.8f, 0, 10 * MS);
+
+        assertEquals(-1, mDrive.update(0.52f, 0, 20 * MS));
+        assertEquals(-1, mDrive.flush(60 * MS));
+        assertEquals(1, mSink.events.size());
+    }
+
+    @Test
+    public void neutralIsSentAtOnce() {
+        mDrive.update(0.5f, -0.5f, 0);
+
+        assertEquals(-1, mDrive.update(0.004f, 0, MS));
+        assertEquals(4, mSink.events.size());
+        assertEvent(2, SPEED, 0);
+        assertEvent(3, TURN, 0);
+
+        // already stopped
+        assertEquals(-1, mDrive.update(0, 0, 2 * MS));
+        assertEquals(4, mSink.events.size());
+    }
+
+    @Test
+    public void resetSendsTheNextUpdateAgain() {
+        mDrive.update(0.5f, 0, 0);
+        mDrive.reset();
+
+        assertEquals(-1, mDrive.update(0.5f, 0, MS));
+        assertEquals(2, mSink.events.size());
+        assertEvent(1, SPEED, 50);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rateMustBePositive() {
+        new AnalogDrive(mSink, 0, 5);
+    }
+}
@@ -0,0 +1,162 @@
+package microbit.movemini;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CoalescingCommandQueueTest {
+
+    private static final int SPEED = MicroBitEvents.MOVEMINI_SPEED_ID;
+    private static final int TURN = MicroBitEvents.MOVEMINI_TURN_ID;
+    private static final int DPAD = MicroBitEvents.MES_DPAD_CONTROLLER_ID;
+    // distinct event codes without a meaning
+    private static final int FIRST_CODE = 9100;
+
+    private static void assertCommand(Command command, int eventCode, int value) {
+        assertEquals(eventCode, command.eventCode);
+        assertEquals(value, command.value);
+    }
+
+    @Test
+    public void keepsOneCommandPerEventCode() {
+        CoalescingCommandQueue queue = new CoalescingCommandQueue(8);
+        queue.offer(SPEED, 10);
+        queue.offer(TURN, 20);
+        queue.offer(SPEED, 11);
+        queue.offer(SPEED, 12);
+
+        assertEquals(2, queue.size());
+        assertEquals(2, queue.getCoalescedCount());
+        Command command = new Command();
+        assertTrue(queue.poll(command));
+        assertCommand(command, TURN, 20);
+        assertTrue(queue.poll(command));
+        assertCommand(command, SPEED, 12);
+        assertFalse(queue.poll(command));
+    }
+
+    @Test
+    public void newerCommandMovesToTheTail() throws InterruptedException {
+        CoalescingCommandQueue queue = new CoalescingCommandQueue(8);
+        queue.offer(DPAD, MicroBitEvents.MES_DPAD_BUTTON_1_DOWN, 100);
+        long firstOfferAt = System.nanoTime();
+        queue.offer(SPEED, 50);
+        Thread.sleep(2);
+        long replacedAt = System.nanoTime();
+        queue.offer(DPAD, MicroBitEvents.MES_DPAD_BUTTON_1_UP, 200);
+
+        Command command = new Command();
+        assertTrue(queue.poll(command));
+        assertCommand(command, SPEED, 50);
+        assertTrue(command.enqueuedAt >= firstOfferAt);
+        assertTrue(queue.poll(command));
+        assertCommand(command, DPAD, MicroBitEvents.MES_DPAD_BUTTON_1_UP);
+        assertEquals(200, command.touchedAt);
+        // the time spent queued counts from the newer command
+        assertTrue(command.enqueuedAt >= replacedAt);
+    }
+
+    @Test
+    public void overflowDropsTheOldestCommand() {
+        CoalescingCommandQueue queue = new CoalescingCommandQueue(3);
+        for (int i = 0; i < 5; i++) {
+            queue.offer(FIRST_CODE + i, i);
+        }
+
+        assertEquals(3, queue.size());
+        assertEquals(2, queue.getOverflowCount());
+        assertEquals(0, queue.getCoalescedCount());
+        Command command = new Command();
+        for (int i = 2; i < 5; i++) {
+            assertTrue(queue.poll(command));
+            assertCommand(command, FIRST_CODE + i, i);
+        }
+    }
+
+    @Test
+    public void coalescingAFullQueueDropsNothing() {
+        CoalescingCommandQueue queue = new CoalescingCommandQueue(2);
+        queue.offer(SPEED, 1);
+        queue.offer(TURN, 2);
+        queue.offer(SPEED, 3);
+
+        assertEquals(2, queue.size());
+        assertEquals(0, queue.getOverflowCount());
+        Command command = new Command();
+        assertTrue(queue.poll(command));
+        assertCommand(command, TURN, 2);
+        assertTrue(queue.poll(command));
+        assertCommand(command, SPEED, 3);
+    }
+
+    @Test
+    public void takeWaitsForACommand() throws InterruptedException {
+        final CoalescingCommandQueue queue = new CoalescingCommandQueue(4);
+        final Command command = new Command();
+        final CountDownLatch taken = new CountDownLatch(1);
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    queue.take(command);
+                    taken.countDown();
+                } catch (InterruptedException e) {
+                    // test ended
+                }
+            }
+        });
+        consumer.start();
+
+        assertFalse(taken.await(50, TimeUnit.MILLISECONDS));
+        queue.offer(DPAD, MicroBitEvents.MES_DPAD_BUTTON_2_DOWN);
+        assertTrue(taken.await(1, TimeUnit.SECONDS));
+        consumer.join();
+        assertCommand(command, DPAD, MicroBitEvents.MES_DPAD_BUTTON_2_DOWN);
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void timedPollGivesUpAfterTheTimeout() throws InterruptedException {
+        CoalescingCommandQueue queue = new CoalescingCommandQueue(4);
+        Command command = new Command();
+
+        long start = System.nanoTime();
+        assertFalse(queue.poll(command, 30, TimeUnit.MILLISECONDS));
+        long waited = System.nanoTime() - start;
+        assertTrue("waited " + waited + " ns", waited >= TimeUnit.MILLISECONDS.toNanos(30));
+
+        queue.offer(SPEED, 7);
+        assertTrue(queue.poll(command, 30, TimeUnit.MILLISECONDS));
+        assertCommand(command, SPEED, 7);
+    }
+
+    @Test
+    public void timedPollReturnsACommandArrivingMeanwhile() throws InterruptedException {
+        final CoalescingCommandQueue queue = new CoalescingCommandQueue(4);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                queue.offer(TURN, 3);
+            }
+        });
+        producer.start();
+
+        Command command = new Command();
+        long start = System.nanoTime();
+        assertTrue(queue.poll(command, 1, TimeUnit.SECONDS));
+        long waited = System.nanoTime() - start;
+        producer.join();
+        assertCommand(command, TURN, 3);
+        assertTrue("waited " + waited + " ns", waited < TimeUnit.MILLISECONDS.toNanos(500));
+    }
+}
@@ -0,0 +1,142 @@
+package microbit.movemini;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CommandWriterTest {
+
+    private static final int FRAMES_PER_PACKET = 3;
+    // write header plus three frames
+    private static final int MTU = 3 + FRAMES_PER_PACKET * EventCodec.FRAME_SIZE;
+    // distinct event codes, so the queue does not merge them
+    private static final int FIRST_CODE = 9100;
+
+    private SimulatedMicroBit mRobot;
+    private CoalescingCommandQueue mQueue;
+    private CommandWriter mWriter;
+    private final AtomicInteger mFailedWrites = new AtomicInteger();
+
+    @Before
+    public void setUp() throws InterruptedException {
+        mRobot = new SimulatedMicroBit(0, MTU, 0, 1);
+        mQueue = new CoalescingCommandQueue(16);
+        mWriter = new CommandWriter(mQueue, mRobot);
+        mWriter.setMaxPacketSize(mRobot.getMtu() - 3);
+        final CountDownLatch linkUp = new CountDownLatch(1);
+        mRobot.setCallback(new RobotTransport.Callback() {
+            @Override
+            public void onLinkUp() {
+                linkUp.countDown();
+            }
+
+            @Override
+            public void onLinkDown() {
+            }
+
+            @Override
+            public void onWriteComplete(boolean success) {
+                if (!success) {
+                    mFailedWrites.incrementAndGet();
+                }
+                mWriter.onWriteComplete(success);
+            }
+
+            @Override
+            public void onPacketReceived(byte[] data, int length) {
+            }
+
+            @Override
+            public void onRssiRead(int rssi) {
+            }
+        });
+        mRobot.open();
+        assertTrue("link did not come up", linkUp.await(1, TimeUnit.SECONDS));
+    }
+
+    @After
+    public void tearDown() {
+        mRobot.dropLink();
+        mWriter.stop();
+        mRobot.shutdown();
+    }
+
+    private void awaitReceived(long count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (mRobot.getReceivedCount() < count && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(count, mRobot.getReceivedCount());
+    }
+
+    @Test
+    public void withoutBatchingEveryCommandIsAWrite() throws InterruptedException {
+        for (int i = 0; i < 5; i++) {
+            mQueue.offer(FIRST_CODE + i, i);
+        }
+        while (mWriter.writeNext()) {
+            // one command per write
+        }
+        awaitReceived(5);
+
+        assertEquals(5, mWriter.getWriteCount());
+    }
+
+    @Test
+    public void packetSizeSplitsABatch() throws InterruptedException {
+        mWriter.setBatchWindow(10, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 7; i++) {
+            mQueue.offer(FIRST_CODE + i, i);
+        }
+        while (mWriter.writeNext()) {
+            // up to three commands per write
+        }
+        awaitReceived(7);
+
+        // 3 + 3 + 1
+        assertEquals(3, mWriter.getWriteCount());
+        assertEquals(0, mFailedWrites.get());
+        assertEquals(7, mWriter.getQueueLatency().getCount());
+    }
+
+    @Test
+    public void commandsWithinTheWindowShareAWrite() throws InterruptedException {
+        final long window = TimeUnit.MILLISECONDS.toNanos(50);
+        mWriter.setBatchWindow(window, TimeUnit.NANOSECONDS);
+        final int[] packets = new int[1];
+        final long[] lastEventAt = new long[1];
+        mRobot.setListener(new SimulatedMicroBit.Listener() {
+            @Override
+            public void onEvent(int eventCode, int value, long receivedAt) {
+                // frames of one packet arrive together
+                if (receivedAt - lastEventAt[0] > TimeUnit.MILLISECONDS.toNanos(5)) {
+                    packets[0]++;
+                }
+                lastEventAt[0] = receivedAt;
+            }
+        });
+        mWriter.start();
+
+        mQueue.offer(FIRST_CODE, 1);
+        Thread.sleep(5);
+        mQueue.offer(FIRST_CODE + 1, 2);
+        awaitReceived(2);
+        assertEquals(1, mWriter.getWriteCount());
+
+        // after the window a command gets a write of its own
+        Thread.sleep(TimeUnit.NANOSECONDS.toMillis(window) + 20);
+        mQueue.offer(FIRST_CODE + 2, 3);
+        awaitReceived(3);
+        assertEquals(2, mWriter.getWriteCount());
+        assertEquals(2, packets[0]);
+        assertTrue(mWriter.getWriteCount() < mRobot.getReceivedCount());
+        assertEquals(0, mFailedWrites.get());
+    }
+}
@@ -0,0 +1,139 @@
+package microbit.movemini;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class ConnectionSupervisorTest {
+
+    /**
+     * Records the operations the supervisor drives, in order.
+     */
+    private static class RecordingLink implements ConnectionSupervisor.Link {
+
+        final List<String> calls = new ArrayList<>();
+
+        @Override
+        public synchronized void openLink(boolean reconnect) {
+            calls.add(reconnect ? "reopen" : "open");
+        }
+
+        @Override
+        public synchronized void closeLink() {
+            calls.add("close");
+        }
+
+        @Override
+        public synchronized void pauseSending() {
+            calls.add("pause");
+        }
+
+        @Override
+        public synchronized void resumeSending(boolean afterReconnect, int safeEventCode, int safeValue) {
+            calls.add(afterReconnect ? "resume safe" : "resume");
+        }
+
+        @Override
+        public void onStateChanged(ConnectionSupervisor.State state) {
+        }
+
+        synchronized List<String> take() {
+            List<String> taken = new ArrayList<>(calls);
+            calls.clear();
+            return taken;
+        }
+
+        synchronized int count(String call) {
+            int count = 0;
+            for (String c : calls) {
+                if (c.equals(call)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    private ScheduledExecutorService mScheduler;
+    private RecordingLink mLink;
+    private ConnectionSupervisor mSupervisor;
+
+    @Before
+    public void setUp() {
+        mScheduler = Executors.newSingleThreadScheduledExecutor();
+        mLink = new RecordingLink();
+        mSupervisor = new ConnectionSupervisor(mLink, mScheduler, 1);
+        mSupervisor.setBackoff(1, 2);
+    }
+
+    @After
+    public void tearDown() {
+        mSupervisor.disconnect();
+        mScheduler.shutdownNow();
+    }
+
+    private void awaitCalls(String call, int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (mLink.count(call) < count && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(count, mLink.count(call));
+    }
+
+    private static List<String> calls(String... calls) {
+        List<String> list = new ArrayList<>();
+        for (String call : calls) {
+            list.add(call);
+        }
+        return list;
+    }
+
+    @Test
+    public void closesADroppedLinkBeforeReconnecting() throws InterruptedException {
+        mSupervisor.connect();
+        mSupervisor.onLinkUp();
+        assertEquals(calls("open", "resume"), mLink.take());
+
+        mSupervisor.onLinkDown();
+        assertEquals(ConnectionSupervisor.State.RECONNECTING, mSupervisor.getState());
+        awaitCalls("reopen", 1);
+        assertEquals(calls("pause", "close", "close", "reopen"), mLink.take());
+
+        mSupervisor.onLinkUp();
+        assertEquals(ConnectionSupervisor.State.CONNECTED, mSupervisor.getState());
+        assertEquals(calls("resume safe"), mLink.take());
+    }
+
+    @Test
+    public void closesEveryFailedAttempt() throws InterruptedException {
+        mSupervisor.setMaxAttempts(3);
+        mSupervisor.connect();
+        mSupervisor.onLinkUp();
+        mSupervisor.onLinkDown();
+        for (int attempt = 1; attempt <= 3; attempt++) {
+            awaitCalls("reopen", attempt);
+            mSupervisor.onLinkDown();
+        }
+
+        assertEquals(ConnectionSupervisor.State.IDLE, mSupervisor.getState());
+        // after the drop, before each of the 3 attempts and after each failed one
+        assertEquals(1 + 3 + 3, mLink.count("close"));
+    }
+
+    @Test
+    public void closesAFailedFirstAttempt() {
+        mSupervisor.connect();
+        mSupervisor.onLinkDown();
+
+        assertEquals(ConnectionSupervisor.State.IDLE, mSupervisor.getState());
+        assertEquals(calls("open", "close"), mLink.take());
+    }
+}
@@ -0,0 +1,101 @@
+package microbit.movemini;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EventCodecTest {
+
+    private static final int WARMUP = 200000;
+    private static final int ITERATIONS = 100000;
+
+    @Test
+    public void encodesLittleEndianFrame() {
+        byte[] frame = new byte[6];
+        int end = EventCodec.encode(MicroBitEvents.MES_DPAD_CONTROLLER_ID,
+                MicroBitEvents.MES_DPAD_BUTTON_1_DOWN, frame, 2);
+
+        assertEquals(6, end);
+        // 1104 = 0x0450
+        assertArrayEquals(new byte[]{0, 0, 0x50, 0x04, 9, 0}, frame);
+    }
+
+    @Test
+    public void decodesWhatItEncodes() {
+        byte[] frame = new byte[EventCodec.FRAME_SIZE];
+        EventCodec.encode(0xFFFF, 0xABCD, frame, 0);
+
+        assertEquals(0xFFFF, EventCodec.decodeEventCode(frame, 0));
+        assertEquals(0xABCD, EventCodec.decodeValue(frame, 0));
+    }
+
+    @Test
+    public void encodeDoesNotAllocate() {
+        final byte[] frame = new byte[EventCodec.FRAME_SIZE];
+        long allocated = measureAllocation(new Runnable() {
+            @Override
+            public void run() {
+                EventCodec.encode(MicroBitEvents.MES_DPAD_CONTROLLER_ID, MicroBitEvents.MES_DPAD_BUTTON_1_DOWN, frame, 0);
+            }
+        });
+        // any allocation per event costs at least 16 bytes
+        assertTrue("allocated " + allocated + " bytes for " + ITERATIONS + " events", allocated < ITERATIONS);
+    }
+
+    @Test
+    public void sendPathDoesNotAllocate() {
+        CoalescingCommandQueue queue = new CoalescingCommandQueue(16);
+        final int[] written = new int[1];
+        final CommandWriter writer = new CommandWriter(queue, new PacketWriter() {
+            @Override
+            public boolean writePacket(byte[] data, int length) {
+                written[0]++;
+                return true;
+            }
+        });
+        final CommandQueue commands = queue;
+        long allocated = measureAllocation(new Runnable() {
+            @Override
+            public void run() {
+                commands.offer(MicroBitEvents.MES_DPAD_CONTROLLER_ID, MicroBitEvents.MES_DPAD_BUTTON_1_DOWN, System.nanoTime());
+                try {
+                    writer.writeNext();
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                writer.onWriteComplete(true);
+            }
+        });
+
+        assertEquals(WARMUP + ITERATIONS, written[0]);
+        assertTrue("allocated " + allocated + " bytes for " + ITERATIONS + " commands", allocated < ITERATIONS);
+    }
+
+    /**
+     * Bytes allocated by the calling thread for {@link #ITERATIONS} runs, after a warm-up that
+     * lets the JIT compile the code.
+     */
+    private static long measureAllocation(Runnable task) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) threads;
+        Assume.assumeTrue(allocation.isThreadAllocatedMemorySupported());
+        allocation.setThreadAllocatedMemoryEnabled(true);
+        long thread = Thread.currentThread().getId();
+
+        for (int i = 0; i < WARMUP; i++) {
+            task.run();
+        }
+        long before = allocation.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < ITERATIONS; i++) {
+            task.run();
+        }
+        return allocation.getThreadAllocatedBytes(thread) - before;
+    }
+}
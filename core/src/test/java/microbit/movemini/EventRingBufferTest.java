@@ -0,0 +1,132 @@
+package microbit.movemini;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EventRingBufferTest {
+
+    private static final int ECHO = MicroBitEvents.MOVEMINI_ECHO_ID;
+    private static final int HEARTBEAT = MicroBitEvents.MOVEMINI_HEARTBEAT_ID;
+
+    @Test
+    public void roundsTheCapacityUpToAPowerOfTwo() {
+        assertEquals(2, new EventRingBuffer(1).getCapacity());
+        assertEquals(8, new EventRingBuffer(5).getCapacity());
+        assertEquals(8, new EventRingBuffer(8).getCapacity());
+        assertEquals(256, new EventRingBuffer(129).getCapacity());
+    }
+
+    @Test
+    public void subscriberStartsWithTheNextRecord() {
+        EventRingBuffer buffer = new EventRingBuffer(8);
+        buffer.publish(ECHO, 1, 100);
+        EventRingBuffer.Subscriber subscriber = buffer.subscribe(EventRingBuffer.ANY_EVENT);
+        buffer.publish(ECHO, 2, 200);
+
+        EventRecord record = new EventRecord();
+        assertTrue(subscriber.poll(record));
+        assertEquals(ECHO, record.eventCode);
+        assertEquals(2, record.value);
+        assertEquals(200, record.timestamp);
+        assertFalse(subscriber.poll(record));
+    }
+
+    @Test
+    public void subscribersFilterAndReadIndependently() {
+        EventRingBuffer buffer = new EventRingBuffer(8);
+        EventRingBuffer.Subscriber all = buffer.subscribe(EventRingBuffer.ANY_EVENT);
+        EventRingBuffer.Subscriber echoes = buffer.subscribe(ECHO);
+        buffer.publish(HEARTBEAT, 750, 1);
+        buffer.publish(ECHO, 7, 2);
+        buffer.publish(HEARTBEAT, 750, 3);
+
+        EventRecord record = new EventRecord();
+        assertEquals(3, all.available());
+        for (int i = 0; i < 3; i++) {
+            assertTrue(all.poll(record));
+            assertEquals(i + 1, record.timestamp);
+        }
+        assertFalse(all.poll(record));
+
+        assertTrue(echoes.poll(record));
+        assertEquals(7, record.value);
+        assertFalse(echoes.poll(record));
+        assertEquals(0, echoes.available());
+    }
+
+    @Test
+    public void overrunLosesTheOldestRecords() {
+        EventRingBuffer buffer = new EventRingBuffer(8);
+        EventRingBuffer.Subscriber subscriber = buffer.subscribe(EventRingBuffer.ANY_EVENT);
+        for (int i = 0; i < 20; i++) {
+            buffer.publish(ECHO, i, i);
+        }
+
+        assertEquals(8, subscriber.available());
+        EventRecord record = new EventRecord();
+        // the slot the producer writes next is skipped too
+        for (int i = 13; i < 20; i++) {
+            assertTrue(subscriber.poll(record));
+            assertEquals(i, record.value);
+        }
+        assertFalse(subscriber.poll(record));
+        assertEquals(13, subscriber.getLostCount());
+        assertEquals(20, buffer.getPublishedCount());
+    }
+
+    @Test
+    public void publishesEveryFrameOfAPacket() {
+        EventRingBuffer buffer = new EventRingBuffer(8);
+        EventRingBuffer.Subscriber subscriber = buffer.subscribe(EventRingBuffer.ANY_EVENT);
+        byte[] packet = new byte[2 * EventCodec.FRAME_SIZE + 1];
+        EventCodec.encode(ECHO, 1, packet, 0);
+        EventCodec.encode(HEARTBEAT, 0xFFFF, packet, EventCodec.FRAME_SIZE);
+
+        buffer.publishPacket(packet, packet.length, 42);
+
+        EventRecord record = new EventRecord();
+        assertTrue(subscriber.poll(record));
+        assertEquals(ECHO, record.eventCode);
+        assertTrue(subscriber.poll(record));
+        assertEquals(HEARTBEAT, record.eventCode);
+        assertEquals(0xFFFF, record.value);
+        assertEquals(42, record.timestamp);
+        // the trailing byte is not a frame
+        assertFalse(subscriber.poll(record));
+    }
+
+    @Test
+    public void concurrentReaderSeesEveryRecordOrCountsItLost() throws InterruptedException {
+        final EventRingBuffer buffer = new EventRingBuffer(64);
+        final int total = 200000;
+        EventRingBuffer.Subscriber subscriber = buffer.subscribe(EventRingBuffer.ANY_EVENT);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < total; i++) {
+                    buffer.publish(ECHO, i, i);
+                }
+            }
+        });
+        producer.start();
+
+        EventRecord record = new EventRecord();
+        long read = 0;
+        long last = -1;
+        while (producer.isAlive() || subscriber.available() > 0) {
+            while (subscriber.poll(record)) {
+                assertTrue("out of order: " + record.timestamp + " after " + last, record.timestamp > last);
+                assertEquals(record.timestamp & 0xFFFF, record.value);
+                last = record.timestamp;
+                read++;
+            }
+        }
+        producer.join();
+
+        assertEquals(total - 1, last);
+        assertEquals(total, read + subscriber.getLostCount());
+    }
+}
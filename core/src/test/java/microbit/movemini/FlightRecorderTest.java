@@ -0,0 +1,136 @@
+package microbit.movemini;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FlightRecorderTest {
+
+    private static final int CAPACITY = 64;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("flight", ".rec");
+        assertTrue(mFile.delete());
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    private static class RecordingSink implements EventSink {
+
+        int count;
+
+        @Override
+        public void sendPacket(int eventCode, int value) {
+            count++;
+        }
+    }
+
+    @Test
+    public void recordsOfEarlierRunsKeepTheirTime() throws IOException, InterruptedException {
+        long firstRunAt = System.currentTimeMillis();
+        FlightRecorder recorder = new FlightRecorder(mFile, CAPACITY);
+        recorder.record(FlightRecorder.Direction.SENT, MicroBitEvents.MES_DPAD_CONTROLLER_ID,
+                MicroBitEvents.MES_DPAD_BUTTON_1_DOWN, 2);
+        int firstRun = recorder.getRun();
+        recorder.close();
+
+        Thread.sleep(50);
+        long secondRunAt = System.currentTimeMillis();
+        recorder = new FlightRecorder(mFile, CAPACITY);
+        recorder.record(FlightRecorder.Direction.SENT, MicroBitEvents.MES_DPAD_CONTROLLER_ID,
+                MicroBitEvents.MES_DPAD_BUTTON_1_UP, 2);
+        FlightLog log = recorder.snapshot();
+        recorder.close();
+
+        assertEquals(2, log.size());
+        assertEquals(firstRun, log.getRun(0));
+        assertEquals(firstRun + 1, log.getRun(1));
+        assertTrue(log.getWallClockMillis(0) >= firstRunAt && log.getWallClockMillis(0) < secondRunAt);
+        assertTrue(log.getWallClockMillis(1) >= secondRunAt);
+        assertEquals(MicroBitEvents.MES_DPAD_BUTTON_1_UP, FlightRecorder.read(mFile).getValue(1));
+    }
+
+    @Test
+    public void reopeningAfterCloseContinuesTheRun() throws IOException {
+        FlightRecorder first = new FlightRecorder(mFile, CAPACITY);
+        for (int i = 0; i < 3; i++) {
+            first.record(FlightRecorder.Direction.SENT, MicroBitEvents.MES_DPAD_CONTROLLER_ID, i, 2);
+        }
+        first.close();
+        // a late record of a thread still holding the closed recorder
+        first.record(FlightRecorder.Direction.SENT, MicroBitEvents.MES_DPAD_CONTROLLER_ID, 99, 2);
+
+        FlightRecorder second = new FlightRecorder(mFile, CAPACITY);
+        try {
+            assertEquals(first.getRun() + 1, second.getRun());
+            assertEquals(3, second.getRecordCount());
+            for (int i = 3; i < 5; i++) {
+                second.record(FlightRecorder.Direction.SENT, MicroBitEvents.MES_DPAD_CONTROLLER_ID, i, 2);
+            }
+            first.record(FlightRecorder.Direction.SENT, MicroBitEvents.MES_DPAD_CONTROLLER_ID, 99, 2);
+
+            FlightLog log = second.snapshot();
+            assertEquals(5, log.size());
+            for (int i = 0; i < 5; i++) {
+                assertEquals(i, log.getValue(i));
+                assertEquals(i < 3 ? first.getRun() : second.getRun(), log.getRun(i));
+            }
+        } finally {
+            second.close();
+        }
+    }
+
+    @Test
+    public void clearsAFileOfAnotherFormat() throws IOException {
+        FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            out.write(new byte[FlightRecorder.HEADER_SIZE + 24 * CAPACITY]);
+        } finally {
+            out.close();
+        }
+
+        FlightRecorder recorder = new FlightRecorder(mFile, CAPACITY);
+        try {
+            assertEquals(0, recorder.getRecordCount());
+            assertEquals(0, recorder.snapshot().size());
+        } finally {
+            recorder.close();
+        }
+    }
+
+    @Test
+    public void replaySkipsTheGapBetweenRuns() throws InterruptedException {
+        FlightLog log = new FlightLog(4);
+        long gap = TimeUnit.MILLISECONDS.toNanos(20);
+        long wallClock = System.currentTimeMillis();
+        log.add(1, TimeUnit.HOURS.toNanos(5), wallClock, FlightRecorder.Direction.SENT, 1104, 9, 2);
+        log.add(1, TimeUnit.HOURS.toNanos(5) + gap, wallClock, FlightRecorder.Direction.SENT, 1104, 10, 2);
+        // the app restarted, its nanoTime origin is unrelated to the one before
+        log.add(2, 1000, wallClock + 60000, FlightRecorder.Direction.SENT, 1104, 9, 2);
+        log.add(2, 1000 + gap, wallClock + 60000, FlightRecorder.Direction.SENT, 1104, 10, 2);
+        RecordingSink sink = new RecordingSink();
+
+        long start = System.nanoTime();
+        int sent = new FlightReplayer(log).replay(sink, 1);
+        long elapsed = System.nanoTime() - start;
+
+        assertEquals(4, sent);
+        assertEquals(4, sink.count);
+        assertTrue("took " + elapsed + " ns", elapsed >= 2 * gap);
+        assertTrue("took " + elapsed + " ns", elapsed < TimeUnit.SECONDS.toNanos(1));
+    }
+}
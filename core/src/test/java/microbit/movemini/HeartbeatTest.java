@@ -0,0 +1,154 @@
+package microbit.movemini;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HeartbeatTest {
+
+    private static final long PERIOD_MS = 20;
+    private static final long DEADLINE_MS = 60;
+
+    private ScheduledExecutorService mScheduler;
+    private SimulatedMicroBit mRobot;
+    private CoalescingCommandQueue mQueue;
+    private CommandWriter mWriter;
+    private MotionTracker mMotion;
+    private Heartbeat mHeartbeat;
+
+    /**
+     * Sends like BleConnection: every command, heartbeats included, passes the motion tracker.
+     */
+    private final EventSink mSink = new EventSink() {
+        @Override
+        public void sendPacket(int eventCode, int value) {
+            mQueue.offer(eventCode, value);
+            mMotion.onCommand(eventCode, value, System.nanoTime());
+        }
+    };
+
+    @Before
+    public void setUp() throws InterruptedException {
+        mScheduler = Executors.newSingleThreadScheduledExecutor();
+        mRobot = new SimulatedMicroBit(100, RobotTransport.DEFAULT_MTU, 0, 1);
+        mQueue = new CoalescingCommandQueue(16);
+        mWriter = new CommandWriter(mQueue, mRobot);
+        mMotion = new MotionTracker();
+        mHeartbeat = new Heartbeat(mSink, mWriter, mMotion, mScheduler);
+        mHeartbeat.setTiming(PERIOD_MS, DEADLINE_MS, TimeUnit.MILLISECONDS);
+
+        final CountDownLatch linkUp = new CountDownLatch(1);
+        mRobot.setCallback(new RobotTransport.Callback() {
+            @Override
+            public void onLinkUp() {
+                linkUp.countDown();
+            }
+
+            @Override
+            public void onLinkDown() {
+            }
+
+            @Override
+            public void onWriteComplete(boolean success) {
+                mWriter.onWriteComplete(success);
+            }
+
+            @Override
+            public void onPacketReceived(byte[] data, int length) {
+            }
+
+            @Override
+            public void onRssiRead(int rssi) {
+            }
+        });
+        mRobot.open();
+        assertTrue(linkUp.await(1, TimeUnit.SECONDS));
+        mWriter.start();
+        mHeartbeat.start();
+    }
+
+    @After
+    public void tearDown() {
+        mHeartbeat.stop();
+        // refuses further writes, so the writer cannot reach the simulator after its shutdown
+        mRobot.dropLink();
+        mWriter.stop();
+        mScheduler.shutdownNow();
+        mRobot.shutdown();
+    }
+
+    private void awaitMotion(SimulatedMicroBit.Motion motion, long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (mRobot.getMotion() != motion && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(motion, mRobot.getMotion());
+    }
+
+    @Test
+    public void keepsAHeldButtonAlive() throws InterruptedException {
+        mSink.sendPacket(MicroBitEvents.MES_DPAD_CONTROLLER_ID, MicroBitEvents.MES_DPAD_BUTTON_1_DOWN);
+        awaitMotion(SimulatedMicroBit.Motion.FORWARD, 1000);
+
+        Thread.sleep(10 * DEADLINE_MS);
+
+        assertEquals(SimulatedMicroBit.Motion.FORWARD, mRobot.getMotion());
+        assertEquals(0, mRobot.getAutoStopCount());
+        assertTrue("sent " + mHeartbeat.getSentCount(), mHeartbeat.getSentCount() >= 10);
+    }
+
+    @Test
+    public void robotStopsItselfWhenTheHeartbeatsStop() throws InterruptedException {
+        mSink.sendPacket(MicroBitEvents.MES_DPAD_CONTROLLER_ID, MicroBitEvents.MES_DPAD_BUTTON_1_DOWN);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (mHeartbeat.getSentCount() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue("no heartbeat sent", mHeartbeat.getSentCount() > 0);
+        awaitMotion(SimulatedMicroBit.Motion.FORWARD, 1000);
+
+        // the app stalls while the button is held
+        mHeartbeat.stop();
+        long stalledAt = System.nanoTime();
+        awaitMotion(SimulatedMicroBit.Motion.STOPPED, 10 * DEADLINE_MS);
+        long stoppedAfter = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stalledAt);
+
+        assertEquals(1, mRobot.getAutoStopCount());
+        assertTrue("stopped after " + stoppedAfter + " ms", stoppedAfter <= 5 * DEADLINE_MS);
+    }
+
+    @Test
+    public void activeDrivingNeedsNoHeartbeats() throws InterruptedException {
+        for (int i = 0; i < 20; i++) {
+            mSink.sendPacket(MicroBitEvents.MOVEMINI_SPEED_ID, 50 + i);
+            Thread.sleep(PERIOD_MS / 4);
+        }
+        mSink.sendPacket(MicroBitEvents.MOVEMINI_SPEED_ID, 0);
+
+        assertEquals(0, mHeartbeat.getSentCount());
+    }
+
+    @Test
+    public void sendsNothingWhileParked() throws InterruptedException {
+        mSink.sendPacket(MicroBitEvents.MES_DPAD_CONTROLLER_ID, MicroBitEvents.MES_DPAD_BUTTON_1_DOWN);
+        mSink.sendPacket(MicroBitEvents.MES_DPAD_CONTROLLER_ID, MicroBitEvents.MES_DPAD_BUTTON_1_UP);
+
+        Thread.sleep(5 * PERIOD_MS);
+
+        assertEquals(0, mHeartbeat.getSentCount());
+        assertEquals(0, mRobot.getAutoStopCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void deadlineMustExceedThePeriod() {
+        mHeartbeat.setTiming(100, 100, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,182 @@
+package microbit.movemini;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LinkMonitorTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+    // distinct event codes, so the queue does not merge them
+    private static final int FIRST_CODE = 9100;
+
+    private CoalescingCommandQueue mQueue;
+    private CommandWriter mWriter;
+    private LinkMonitor mMonitor;
+    private final List<LinkMonitor.Quality> mChanges = new ArrayList<>();
+    private long mNow;
+
+    @Before
+    public void setUp() {
+        mQueue = new CoalescingCommandQueue(16);
+        // a link that takes every write, completions are reported by the test
+        mWriter = new CommandWriter(mQueue, new PacketWriter() {
+            @Override
+            public boolean writePacket(byte[] data, int length) {
+                return true;
+            }
+        });
+        mMonitor = new LinkMonitor(mWriter);
+        mMonitor.setListener(new LinkMonitor.Listener() {
+            @Override
+            public void onLinkQualityChanged(LinkMonitor.Quality quality, LinkMonitor monitor) {
+                mChanges.add(quality);
+            }
+        });
+        mMonitor.reset(mNow);
+    }
+
+    private LinkMonitor.Quality sample() {
+        mNow += SECOND;
+        return mMonitor.sample(mNow);
+    }
+
+    /**
+     * Writes one command and completes the write after the given time.
+     */
+    private void writeAndComplete(int index, boolean success, long latencyMs) throws InterruptedException {
+        mQueue.offer(FIRST_CODE + index, index);
+        assertTrue(mWriter.tryWriteNext());
+        if (latencyMs > 0) {
+            Thread.sleep(latencyMs);
+        }
+        mWriter.onWriteComplete(success);
+    }
+
+    @Test
+    public void smoothsTheRssi() {
+        mMonitor.onRssi(-60);
+        mMonitor.onRssi(-90);
+
+        assertEquals(-90, mMonitor.getRssi());
+        // -60 + 0.3 * (-90 - -60)
+        assertEquals(-69, mMonitor.getSmoothedRssi(), 0.001);
+        assertEquals(LinkMonitor.Quality.GOOD, sample());
+    }
+
+    @Test
+    public void weakSignalPacesTheWriterAtOnce() {
+        mMonitor.onRssi(-95);
+
+        assertEquals(LinkMonitor.Quality.POOR, sample());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(150), mMonitor.getWriteIntervalNanos());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(150), mWriter.getMinWriteInterval(TimeUnit.NANOSECONDS));
+        assertEquals(1, mChanges.size());
+    }
+
+    @Test
+    public void strongSignalRecoversOneStepAtATime() {
+        mMonitor.onRssi(-95);
+        sample();
+        for (int i = 0; i < 20; i++) {
+            mMonitor.onRssi(-60);
+        }
+
+        // each better rating has to hold for three samples
+        assertEquals(LinkMonitor.Quality.POOR, sample());
+        assertEquals(LinkMonitor.Quality.POOR, sample());
+        assertEquals(LinkMonitor.Quality.FAIR, sample());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(50), mMonitor.getWriteIntervalNanos());
+        assertEquals(LinkMonitor.Quality.FAIR, sample());
+        assertEquals(LinkMonitor.Quality.FAIR, sample());
+        assertEquals(LinkMonitor.Quality.GOOD, sample());
+        assertEquals(0, mMonitor.getWriteIntervalNanos());
+        assertEquals(3, mChanges.size());
+    }
+
+    @Test
+    public void marginalSignalDoesNotFlap() {
+        mMonitor.onRssi(-95);
+        sample();
+        for (int i = 0; i < 20; i++) {
+            mMonitor.onRssi(-60);
+        }
+        sample();
+        sample();
+        // a weak signal again before the third sample starts over
+        for (int i = 0; i < 20; i++) {
+            mMonitor.onRssi(-95);
+        }
+        assertEquals(LinkMonitor.Quality.POOR, sample());
+        for (int i = 0; i < 20; i++) {
+            mMonitor.onRssi(-60);
+        }
+
+        assertEquals(LinkMonitor.Quality.POOR, sample());
+        assertEquals(LinkMonitor.Quality.POOR, sample());
+        assertEquals(LinkMonitor.Quality.FAIR, sample());
+        assertEquals(2, mChanges.size());
+    }
+
+    @Test
+    public void statsCoverOnlyTheLastInterval() throws InterruptedException {
+        for (int i = 0; i < 4; i++) {
+            writeAndComplete(i, true, 0);
+        }
+
+        sample();
+        LinkStats stats = mMonitor.getLastStats();
+        assertEquals(SECOND, stats.getIntervalNanos());
+        assertEquals(4, stats.getPacketCount());
+        assertEquals(4, stats.getCommandCount());
+        assertEquals(4, stats.getCompletedCount());
+        assertEquals(4.0, stats.getPacketsPerSecond(), 0.001);
+        assertEquals(4.0 * EventCodec.FRAME_SIZE, stats.getBytesPerSecond(), 0.001);
+
+        writeAndComplete(4, true, 0);
+        mNow += 2 * SECOND;
+        mMonitor.sample(mNow);
+        stats = mMonitor.getLastStats();
+        assertEquals(2 * SECOND, stats.getIntervalNanos());
+        assertEquals(1, stats.getPacketCount());
+        assertEquals(0.5, stats.getPacketsPerSecond(), 0.001);
+    }
+
+    @Test
+    public void slowCompletionsRateTheLinkPoor() throws InterruptedException {
+        mMonitor.setLatencyThresholds(5, 20, TimeUnit.MILLISECONDS);
+        writeAndComplete(0, true, 40);
+
+        assertEquals(LinkMonitor.Quality.POOR, sample());
+        assertTrue(mMonitor.getWriteLatencyNanos() >= TimeUnit.MILLISECONDS.toNanos(40));
+    }
+
+    @Test
+    public void failedWritesRateTheLinkPoor() throws InterruptedException {
+        writeAndComplete(0, false, 0);
+
+        assertEquals(LinkMonitor.Quality.POOR, sample());
+        assertEquals(1.0, mMonitor.getLastStats().getFailureRate(), 0.001);
+    }
+
+    @Test
+    public void resetForgetsThePreviousLink() {
+        mMonitor.onRssi(-95);
+        sample();
+
+        mMonitor.reset(mNow);
+
+        assertEquals(LinkMonitor.Quality.GOOD, mMonitor.getQuality());
+        assertEquals(Integer.MIN_VALUE, mMonitor.getRssi());
+        assertEquals(0, mMonitor.getWriteIntervalNanos());
+        assertNull(mMonitor.getLastStats());
+        assertEquals(LinkMonitor.Quality.GOOD, sample());
+    }
+}
@@ -0,0 +1,175 @@
+package microbit.movemini;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ListenerRegistryTest {
+
+    private interface Listener {
+
+        public void onChanged(String what);
+    }
+
+    /**
+     * Listener that records what it was told.
+     */
+    private static class RecordingListener implements Listener {
+
+        final List<String> calls = new ArrayList<>();
+
+        @Override
+        public void onChanged(String what) {
+            calls.add(what);
+        }
+    }
+
+    /**
+     * Executor that holds the tasks until the test runs them.
+     */
+    private static class QueuedExecutor implements Executor {
+
+        final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            List<Runnable> tasks = new ArrayList<>(this.tasks);
+            this.tasks.clear();
+            for (Runnable task : tasks) {
+                task.run();
+            }
+        }
+    }
+
+    private static class NamedNotifier implements ListenerRegistry.Notifier<Listener> {
+
+        private final String mName;
+
+        NamedNotifier(String name) {
+            this.mName = name;
+        }
+
+        @Override
+        public void notify(Listener listener) {
+            listener.onChanged(mName);
+        }
+    }
+
+    private final NamedNotifier mState = new NamedNotifier("state");
+    private final NamedNotifier mStats = new NamedNotifier("stats");
+
+    private ListenerRegistry<Listener> mRegistry;
+    private QueuedExecutor mExecutor;
+
+    @Before
+    public void setUp() {
+        mRegistry = new ListenerRegistry<>();
+        mExecutor = new QueuedExecutor();
+    }
+
+    @Test
+    public void listenerWithoutExecutorIsCalledEveryTime() {
+        RecordingListener listener = new RecordingListener();
+        mRegistry.add(listener);
+
+        mRegistry.notifyListeners(mState);
+        mRegistry.notifyListeners(mState);
+
+        assertEquals(2, listener.calls.size());
+    }
+
+    @Test
+    public void pendingNotificationsAreCoalescedPerNotifier() {
+        RecordingListener listener = new RecordingListener();
+        mRegistry.add(listener, mExecutor);
+
+        mRegistry.notifyListeners(mState);
+        mRegistry.notifyListeners(mStats);
+        mRegistry.notifyListeners(mState);
+        mRegistry.notifyListeners(mStats);
+
+        // one task delivers both notifiers, each once
+        assertEquals(1, mExecutor.tasks.size());
+        assertEquals(0, listener.calls.size());
+        mExecutor.runAll();
+        assertEquals(2, listener.calls.size());
+        assertTrue(listener.calls.contains("state"));
+        assertTrue(listener.calls.contains("stats"));
+
+        // a notification after the delivery needs a new one
+        mRegistry.notifyListeners(mState);
+        assertEquals(1, mExecutor.tasks.size());
+        mExecutor.runAll();
+        assertEquals(3, listener.calls.size());
+    }
+
+    @Test
+    public void eachExecutorCoalescesOnItsOwn() {
+        QueuedExecutor other = new QueuedExecutor();
+        RecordingListener first = new RecordingListener();
+        RecordingListener second = new RecordingListener();
+        RecordingListener direct = new RecordingListener();
+        mRegistry.add(first, mExecutor);
+        mRegistry.add(second, other);
+        mRegistry.add(direct);
+
+        mRegistry.notifyListeners(mState);
+        mRegistry.notifyListeners(mState);
+        mExecutor.runAll();
+        mRegistry.notifyListeners(mState);
+
+        // the first delivered, so its next notification is a new task
+        assertEquals(1, first.calls.size());
+        assertEquals(1, mExecutor.tasks.size());
+        // the second still has the first one pending
+        assertEquals(1, other.tasks.size());
+        assertEquals(3, direct.calls.size());
+        other.runAll();
+        assertEquals(1, second.calls.size());
+    }
+
+    @Test
+    public void removedListenerMissesItsPendingDelivery() {
+        RecordingListener listener = new RecordingListener();
+        mRegistry.add(listener, mExecutor);
+
+        mRegistry.notifyListeners(mState);
+        mRegistry.remove(listener);
+        mExecutor.runAll();
+
+        assertEquals(0, listener.calls.size());
+        assertEquals(0, mRegistry.size());
+    }
+
+    @Test
+    public void addingAgainReplacesTheRegistration() {
+        QueuedExecutor other = new QueuedExecutor();
+        RecordingListener listener = new RecordingListener();
+        mRegistry.add(listener, mExecutor);
+        mRegistry.add(listener, other);
+
+        mRegistry.notifyListeners(mState);
+
+        assertEquals(1, mRegistry.size());
+        assertEquals(0, mExecutor.tasks.size());
+        assertEquals(1, other.tasks.size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void notifiersAreLimited() {
+        mRegistry.add(new RecordingListener(), mExecutor);
+        for (int i = 0; i <= 32; i++) {
+            mRegistry.notifyListeners(new NamedNotifier("n" + i));
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package microbit.movemini;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MotionSchedulerTest {
+
+    // generous, the scheduler usually stays within microseconds
+    private static final long TOLERANCE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /**
+     * Fake transport side of the scheduler: records the events with their arrival time.
+     */
+    private static class RecordingSink implements EventSink {
+
+        final List<long[]> events = new ArrayList<>();
+
+        @Override
+        public synchronized void sendPacket(int eventCode, int value) {
+            events.add(new long[]{System.nanoTime(), eventCode, value});
+        }
+
+        synchronized int size() {
+            return events.size();
+        }
+
+        synchronized long[] get(int index) {
+            return events.get(index);
+        }
+    }
+
+    private MotionScheduler mScheduler;
+    private SimulatedMicroBit mRobot;
+    private FleetDispatcher mDispatcher;
+
+    @After
+    public void tearDown() {
+        if (mScheduler != null) {
+            mScheduler.stop();
+        }
+        if (mDispatcher != null) {
+            mDispatcher.stop();
+        }
+        if (mRobot != null) {
+            mRobot.shutdown();
+        }
+    }
+
+    @Test
+    public void dispatchesEventsAtTheirOffsets() throws InterruptedException {
+        MotionTimeline timeline = MotionScript.compile("forward 50ms; left 30ms; right 20ms");
+        RecordingSink sink = new RecordingSink();
+        mScheduler = new MotionScheduler(sink);
+
+        mScheduler.start(timeline);
+        assertTrue(mScheduler.awaitCompletion(1, TimeUnit.SECONDS));
+
+        assertEquals(timeline.size(), sink.size());
+        long start = sink.get(0)[0];
+        for (int i = 0; i < timeline.size(); i++) {
+            long[] event = sink.get(i);
+            assertEquals(timeline.getEventCode(i), event[1]);
+            assertEquals(timeline.getValue(i), event[2]);
+            long lateness = event[0] - start - timeline.getOffsetNanos(i);
+            assertTrue("event " + i + " off by " + lateness + " ns", Math.abs(lateness) < TOLERANCE_NANOS);
+        }
+        LatencyHistogram jitter = mScheduler.getJitter();
+        assertEquals(timeline.size(), jitter.getCount());
+        assertTrue("max jitter " + jitter.getMaxNanos() + " ns", jitter.getMaxNanos() < TOLERANCE_NANOS);
+        assertFalse(mScheduler.isRunning());
+    }
+
+    @Test
+    public void stoppingEarlyStopsTheRobot() throws InterruptedException {
+        RecordingSink sink = new RecordingSink();
+        mScheduler = new MotionScheduler(sink);
+        final boolean[] completed = {true};
+        final CountDownLatch finished = new CountDownLatch(1);
+        mScheduler.setListener(new MotionScheduler.Listener() {
+            @Override
+            public void onTimelineFinished(MotionTimeline timeline, boolean done) {
+                completed[0] = done;
+                finished.countDown();
+            }
+        });
+
+        mScheduler.start(MotionScript.compile("forward 10s"));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (sink.size() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        mScheduler.stop();
+
+        assertTrue(finished.await(1, TimeUnit.SECONDS));
+        assertFalse(completed[0]);
+        assertEquals(2, sink.size());
+        assertEquals(MicroBitEvents.MES_DPAD_BUTTON_1_DOWN, sink.get(0)[2]);
+        assertEquals(MicroBitEvents.MES_DPAD_BUTTON_1_UP, sink.get(1)[2]);
+    }
+
+    @Test
+    public void listenerMayStartTheNextTimelineWhileStopping() throws InterruptedException {
+        RecordingSink sink = new RecordingSink();
+        mScheduler = new MotionScheduler(sink);
+        final MotionTimeline next = MotionScript.compile("backward 10ms");
+        final CountDownLatch nextFinished = new CountDownLatch(1);
+        mScheduler.setListener(new MotionScheduler.Listener() {
+            @Override
+            public void onTimelineFinished(MotionTimeline timeline, boolean done) {
+                if (timeline == next) {
+                    nextFinished.countDown();
+                } else {
+                    mScheduler.start(next);
+                }
+            }
+        });
+
+        mScheduler.start(MotionScript.compile("forward 10s"));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (sink.size() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        Thread stopper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mScheduler.stop();
+            }
+        });
+        stopper.start();
+        stopper.join(TimeUnit.SECONDS.toMillis(1));
+
+        assertFalse("stop() deadlocked", stopper.isAlive());
+        assertTrue(nextFinished.await(1, TimeUnit.SECONDS));
+        // forward, the stop of the early end, backward and its stop
+        assertEquals(4, sink.size());
+        assertEquals(MicroBitEvents.MES_DPAD_BUTTON_2_DOWN, sink.get(2)[2]);
+    }
+
+    @Test
+    public void sinkMayStopThePlayback() throws InterruptedException {
+        final CountDownLatch finished = new CountDownLatch(1);
+        final RecordingSink sink = new RecordingSink() {
+            @Override
+            public synchronized void sendPacket(int eventCode, int value) {
+                super.sendPacket(eventCode, value);
+                // e.g. a session that gives up after its first event
+                mScheduler.stop();
+            }
+        };
+        mScheduler = new MotionScheduler(sink);
+        mScheduler.setListener(new MotionScheduler.Listener() {
+            @Override
+            public void onTimelineFinished(MotionTimeline timeline, boolean done) {
+                finished.countDown();
+            }
+        });
+
+        mScheduler.start(MotionScript.compile("forward 50ms; left 50ms"));
+
+        assertTrue(finished.await(1, TimeUnit.SECONDS));
+        assertFalse(mScheduler.isRunning());
+        // the first event and the stop of the early end
+        assertEquals(2, sink.size());
+    }
+
+    @Test
+    public void drivesTheSimulatedRobot() throws InterruptedException {
+        mRobot = new SimulatedMicroBit(100, RobotTransport.DEFAULT_MTU, 0, 1);
+        final List<SimulatedMicroBit.Motion> motions = new ArrayList<>();
+        final CountDownLatch stopped = new CountDownLatch(1);
+        final SimulatedMicroBit robot = mRobot;
+        robot.setListener(new SimulatedMicroBit.Listener() {
+            @Override
+            public void onEvent(int eventCode, int value, long receivedAt) {
+                synchronized (motions) {
+                    motions.add(robot.getMotion());
+                }
+                if (robot.getMotion() == SimulatedMicroBit.Motion.STOPPED) {
+                    stopped.countDown();
+                }
+            }
+        });
+        mDispatcher = new FleetDispatcher();
+        mDispatcher.start();
+        final CountDownLatch connected = new CountDownLatch(1);
+        RobotSession session = new RobotSession("sim", robot, mDispatcher);
+        session.setListener(new RobotSession.Listener() {
+            @Override
+            public void onSessionStateChanged(RobotSession session, boolean up) {
+                if (up) {
+                    connected.countDown();
+                }
+            }
+        });
+        session.open();
+        assertTrue(connected.await(1, TimeUnit.SECONDS));
+
+        mScheduler = new MotionScheduler(session);
+        mScheduler.start(MotionScript.compile("forward 20ms; backward 20ms; left 20ms"));
+
+        assertTrue(stopped.await(1, TimeUnit.SECONDS));
+        synchronized (motions) {
+            assertEquals(4, motions.size());
+            assertEquals(SimulatedMicroBit.Motion.FORWARD, motions.get(0));
+            assertEquals(SimulatedMicroBit.Motion.BACKWARD, motions.get(1));
+            assertEquals(SimulatedMicroBit.Motion.LEFT, motions.get(2));
+            assertEquals(SimulatedMicroBit.Motion.STOPPED, motions.get(3));
+        }
+    }
+}
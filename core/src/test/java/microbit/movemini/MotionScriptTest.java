@@ -0,0 +1,74 @@
+package microbit.movemini;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class MotionScriptTest {
+
+    private static void assertEvent(MotionTimeline timeline, int index, long offsetMillis, int value) {
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(offsetMillis), timeline.getOffsetNanos(index));
+        assertEquals(MicroBitEvents.MES_DPAD_CONTROLLER_ID, timeline.getEventCode(index));
+        assertEquals(value, timeline.getValue(index));
+    }
+
+    private static void assertRejected(String script) {
+        try {
+            MotionScript.compile(script);
+            fail("compiled: " + script);
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void compilesStepsToTimedEvents() {
+        MotionTimeline timeline = MotionScript.compile("forward 2s; left 0.5s; stop");
+
+        assertEquals(3, timeline.size());
+        assertEvent(timeline, 0, 0, MicroBitEvents.MES_DPAD_BUTTON_1_DOWN);
+        assertEvent(timeline, 1, 2000, MicroBitEvents.MES_DPAD_BUTTON_3_DOWN);
+        assertEvent(timeline, 2, 2500, MicroBitEvents.MES_DPAD_BUTTON_1_UP);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(2500), timeline.getDurationNanos());
+    }
+
+    @Test
+    public void stopsAtTheEndWhileMoving() {
+        MotionTimeline timeline = MotionScript.compile("backward 750ms\nright 250ms");
+
+        assertEquals(3, timeline.size());
+        assertEvent(timeline, 0, 0, MicroBitEvents.MES_DPAD_BUTTON_2_DOWN);
+        assertEvent(timeline, 1, 750, MicroBitEvents.MES_DPAD_BUTTON_4_DOWN);
+        assertEvent(timeline, 2, 1000, MicroBitEvents.MES_DPAD_BUTTON_1_UP);
+    }
+
+    @Test
+    public void waitKeepsTheMotionAndCommentsAreIgnored() {
+        MotionTimeline timeline = MotionScript.compile("# square\nFORWARD 1s\nwait 1s   # coast\n\nstop");
+
+        assertEquals(2, timeline.size());
+        assertEvent(timeline, 0, 0, MicroBitEvents.MES_DPAD_BUTTON_1_DOWN);
+        assertEvent(timeline, 1, 2000, MicroBitEvents.MES_DPAD_BUTTON_1_UP);
+    }
+
+    @Test
+    public void stepWithoutDurationIsReplacedByTheNext() {
+        MotionTimeline timeline = MotionScript.compile("left; forward 100ms");
+
+        assertEquals(2, timeline.size());
+        assertEvent(timeline, 0, 0, MicroBitEvents.MES_DPAD_BUTTON_1_DOWN);
+        assertEvent(timeline, 1, 100, MicroBitEvents.MES_DPAD_BUTTON_1_UP);
+    }
+
+    @Test
+    public void rejectsSyntaxErrors() {
+        assertRejected("jump 1s");
+        assertRejected("forward 1");
+        assertRejected("forward -1s");
+        assertRejected("forward 1s now");
+        assertRejected("wait");
+    }
+}
@@ -0,0 +1,108 @@
+package microbit.movemini;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class RobotSessionTest {
+
+    /**
+     * Simulated robot that counts how often its link was closed.
+     */
+    private static class CountingMicroBit extends SimulatedMicroBit {
+
+        final AtomicInteger closed = new AtomicInteger();
+
+        @Override
+        public void close() {
+            closed.incrementAndGet();
+            super.close();
+        }
+    }
+
+    private CountingMicroBit mRobot;
+    private FleetDispatcher mDispatcher;
+    private RobotSession mSession;
+    private CountDownLatch mConnected;
+    private CountDownLatch mDisconnected;
+
+    @Before
+    public void setUp() throws InterruptedException {
+        mRobot = new CountingMicroBit();
+        mDispatcher = new FleetDispatcher();
+        mDispatcher.start();
+        mSession = new RobotSession("sim", mRobot, mDispatcher);
+        mConnected = new CountDownLatch(1);
+        mDisconnected = new CountDownLatch(1);
+        mSession.setListener(new RobotSession.Listener() {
+            @Override
+            public void onSessionStateChanged(RobotSession session, boolean connected) {
+                (connected ? mConnected : mDisconnected).countDown();
+            }
+        });
+        mSession.open();
+        assertTrue(mConnected.await(1, TimeUnit.SECONDS));
+    }
+
+    @After
+    public void tearDown() {
+        mDispatcher.stop();
+        mRobot.shutdown();
+    }
+
+    private static Thread findThread(String name) {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals(name)) {
+                return thread;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void closesTheLinkWhenItDrops() throws InterruptedException {
+        assertEquals(1, mDispatcher.getSessionCount());
+
+        mRobot.setInRange(false);
+
+        assertTrue(mDisconnected.await(1, TimeUnit.SECONDS));
+        assertFalse(mSession.isConnected());
+        assertEquals(0, mDispatcher.getSessionCount());
+        assertEquals(1, mRobot.closed.get());
+    }
+
+    @Test
+    public void idleDispatcherWaitsForWork() throws InterruptedException {
+        mSession.sendPacket(MicroBitEvents.MES_DPAD_CONTROLLER_ID, MicroBitEvents.MES_DPAD_BUTTON_1_DOWN);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (mRobot.getReceivedCount() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(SimulatedMicroBit.Motion.FORWARD, mRobot.getMotion());
+
+        Thread dispatcher = findThread("FleetDispatcher");
+        assertNotNull(dispatcher);
+        deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (dispatcher.getState() != Thread.State.WAITING && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        // parked without a timeout, not polling
+        assertEquals(Thread.State.WAITING, dispatcher.getState());
+
+        mSession.sendPacket(MicroBitEvents.MES_DPAD_CONTROLLER_ID, MicroBitEvents.MES_DPAD_BUTTON_1_UP);
+        deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (mRobot.getReceivedCount() < 2 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(SimulatedMicroBit.Motion.STOPPED, mRobot.getMotion());
+    }
+}
@@ -0,0 +1,176 @@
+package microbit.movemini;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SimulatedMicroBitTest {
+
+    private static final long LATENCY_MICROS = 200;
+    private static final int COMMANDS = 500;
+
+    private SimulatedMicroBit mRobot;
+    private CoalescingCommandQueue mQueue;
+    private CommandWriter mWriter;
+    private CountDownLatch mLinkUp;
+    private final AtomicInteger mFailedWrites = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        connect(new SimulatedMicroBit(LATENCY_MICROS, RobotTransport.DEFAULT_MTU, 0, 1));
+    }
+
+    @After
+    public void tearDown() {
+        mRobot.dropLink();
+        mWriter.stop();
+        mRobot.shutdown();
+    }
+
+    private void connect(SimulatedMicroBit robot) {
+        if (mRobot != null) {
+            mRobot.shutdown();
+        }
+        mRobot = robot;
+        mQueue = new CoalescingCommandQueue(16);
+        mWriter = new CommandWriter(mQueue, robot);
+        mLinkUp = new CountDownLatch(1);
+        robot.setCallback(new RobotTransport.Callback() {
+            @Override
+            public void onLinkUp() {
+                mLinkUp.countDown();
+            }
+
+            @Override
+            public void onLinkDown() {
+            }
+
+            @Override
+            public void onWriteComplete(boolean success) {
+                if (!success) {
+                    mFailedWrites.incrementAndGet();
+                }
+                mWriter.onWriteComplete(success);
+            }
+
+            @Override
+            public void onPacketReceived(byte[] data, int length) {
+            }
+
+            @Override
+            public void onRssiRead(int rssi) {
+            }
+        });
+        robot.open();
+    }
+
+    private void awaitLinkUp() throws InterruptedException {
+        assertTrue("link did not come up", mLinkUp.await(1, TimeUnit.SECONDS));
+    }
+
+    private void awaitReceived(long count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (mRobot.getReceivedCount() < count && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(count, mRobot.getReceivedCount());
+    }
+
+    @Test
+    public void decodesDpadEventsIntoMotion() throws InterruptedException {
+        awaitLinkUp();
+        mWriter.start();
+
+        mQueue.offer(MicroBitEvents.MES_DPAD_CONTROLLER_ID, MicroBitEvents.MES_DPAD_BUTTON_3_DOWN);
+        awaitReceived(1);
+        assertEquals(SimulatedMicroBit.Motion.LEFT, mRobot.getMotion());
+
+        mQueue.offer(MicroBitEvents.MES_DPAD_CONTROLLER_ID, MicroBitEvents.MES_DPAD_BUTTON_3_UP);
+        awaitReceived(2);
+        assertEquals(SimulatedMicroBit.Motion.STOPPED, mRobot.getMotion());
+    }
+
+    @Test
+    public void deliversEveryCommandAtTheLinkRate() throws InterruptedException {
+        final LatencyStats delivery = new LatencyStats();
+        final long[] sentAt = new long[1];
+        mRobot.setListener(new SimulatedMicroBit.Listener() {
+            @Override
+            public void onEvent(int eventCode, int value, long receivedAt) {
+                delivery.record(receivedAt - sentAt[0]);
+            }
+        });
+        awaitLinkUp();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < COMMANDS; i++) {
+            mQueue.offer(MicroBitEvents.MOVEMINI_SPEED_ID, i);
+            sentAt[0] = System.nanoTime();
+            // one write in flight: waits for the completion of the previous one
+            assertTrue(mWriter.writeNext());
+        }
+        awaitReceived(COMMANDS);
+        long elapsed = System.nanoTime() - start;
+
+        assertEquals(0, mRobot.getRejectedCount());
+        assertEquals(COMMANDS, mWriter.getWriteCount());
+        assertEquals(COMMANDS, mWriter.getQueueLatency().getCount());
+        // each write waits for the completion of the one before
+        long minimum = TimeUnit.MICROSECONDS.toNanos(LATENCY_MICROS);
+        assertTrue("took " + elapsed + " ns", elapsed >= (COMMANDS - 1) * minimum);
+        assertTrue("mean latency " + delivery.getMeanNanos() + " ns", delivery.getMeanNanos() >= minimum);
+        assertTrue("mean latency " + delivery.getMeanNanos() + " ns",
+                delivery.getMeanNanos() < minimum + TimeUnit.MILLISECONDS.toNanos(20));
+    }
+
+    @Test
+    public void losesPacketsAtTheDropRate() throws InterruptedException {
+        connect(new SimulatedMicroBit(0, RobotTransport.DEFAULT_MTU, 0.25, 42));
+        awaitLinkUp();
+
+        for (int i = 0; i < COMMANDS; i++) {
+            mQueue.offer(MicroBitEvents.MOVEMINI_SPEED_ID, i);
+            assertTrue(mWriter.writeNext());
+        }
+        awaitReceived(COMMANDS - mRobot.getDroppedCount());
+
+        // a lost write-without-response still completes
+        assertEquals(COMMANDS, mWriter.getWriteCount());
+        long dropped = mRobot.getDroppedCount();
+        assertTrue("dropped " + dropped, dropped > COMMANDS / 8 && dropped < COMMANDS * 3 / 8);
+    }
+
+    @Test
+    public void refusesASecondWriteWhileOneIsInFlight() throws InterruptedException {
+        connect(new SimulatedMicroBit(TimeUnit.MILLISECONDS.toMicros(50), RobotTransport.DEFAULT_MTU, 0, 1));
+        awaitLinkUp();
+        byte[] frame = new byte[EventCodec.FRAME_SIZE];
+        EventCodec.encode(MicroBitEvents.MOVEMINI_SPEED_ID, 1, frame, 0);
+
+        assertTrue(mRobot.writePacket(frame, frame.length));
+        assertFalse(mRobot.writePacket(frame, frame.length));
+        assertEquals(1, mRobot.getRejectedCount());
+    }
+
+    @Test
+    public void failsWritesLargerThanTheMtu() throws InterruptedException {
+        awaitLinkUp();
+        byte[] packet = new byte[RobotTransport.DEFAULT_MTU];
+
+        assertTrue(mRobot.writePacket(packet, packet.length));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (mFailedWrites.get() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(1, mFailedWrites.get());
+        assertEquals(0, mRobot.getReceivedCount());
+    }
+}
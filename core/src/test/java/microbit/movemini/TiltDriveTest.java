@@ -0,0 +1,151 @@
+package microbit.movemini;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class TiltDriveTest {
+
+    private static final float G = 9.81f;
+    private static final float DEAD_ZONE = (float) Math.toRadians(8);
+    private static final float FULL_TILT = (float) Math.toRadians(30);
+    private static final int DPAD = MicroBitEvents.MES_DPAD_CONTROLLER_ID;
+
+    /**
+     * Fake transport: records the events in the order they were sent.
+     */
+    private static class RecordingSink implements EventSink {
+
+        final List<int[]> events = new ArrayList<>();
+
+        @Override
+        public void sendPacket(int eventCode, int value) {
+            events.add(new int[]{eventCode, value});
+        }
+    }
+
+    private TiltFilter mFilter;
+    private RecordingSink mSink;
+    private TiltDrive mDrive;
+    private long mNow;
+
+    @Before
+    public void setUp() {
+        mFilter = new TiltFilter();
+        mSink = new RecordingSink();
+        mDrive = new TiltDrive(mFilter, mSink, new AnalogDrive(mSink, 20, 2));
+    }
+
+    /**
+     * Holds the phone still at the given angles, the filter takes them at once.
+     */
+    private void tilt(float pitchDegrees, float rollDegrees) {
+        double pitch = Math.toRadians(pitchDegrees);
+        double roll = Math.toRadians(rollDegrees);
+        mFilter.reset();
+        mFilter.onAccelerometer((float) (-G * Math.sin(roll)), (float) (G * Math.sin(pitch) * Math.cos(roll)),
+                (float) (G * Math.cos(pitch) * Math.cos(roll)), mNow);
+    }
+
+    private void tick() {
+        mNow += 50000000L;
+        mDrive.tick(mNow);
+    }
+
+    private void assertEvent(int index, int eventCode, int value) {
+        assertEquals(eventCode, mSink.events.get(index)[0]);
+        assertEquals(value, mSink.events.get(index)[1]);
+    }
+
+    @Test
+    public void axisIgnoresTheDeadZoneAndClamps() {
+        assertEquals(0, TiltDrive.axis(DEAD_ZONE, DEAD_ZONE, FULL_TILT), 0);
+        assertEquals(0, TiltDrive.axis(-DEAD_ZONE / 2, DEAD_ZONE, FULL_TILT), 0);
+        // linear from the edge of the dead zone
+        assertEquals(0.5, TiltDrive.axis((DEAD_ZONE + FULL_TILT) / 2, DEAD_ZONE, FULL_TILT), 1e-5);
+        assertEquals(-0.5, TiltDrive.axis(-(DEAD_ZONE + FULL_TILT) / 2, DEAD_ZONE, FULL_TILT), 1e-5);
+        assertEquals(1, TiltDrive.axis(FULL_TILT, DEAD_ZONE, FULL_TILT), 1e-5);
+        assertEquals(1, TiltDrive.axis(2 * FULL_TILT, DEAD_ZONE, FULL_TILT), 0);
+        assertEquals(-1, TiltDrive.axis(-2 * FULL_TILT, DEAD_ZONE, FULL_TILT), 0);
+    }
+
+    @Test
+    public void dominantAxisSelectsTheDirection() {
+        assertEquals(MicroBitEvents.MES_DPAD_BUTTON_1_UP, TiltDrive.direction(0, 0));
+        assertEquals(MicroBitEvents.MES_DPAD_BUTTON_1_DOWN, TiltDrive.direction(0.5f, 0.4f));
+        assertEquals(MicroBitEvents.MES_DPAD_BUTTON_2_DOWN, TiltDrive.direction(-0.5f, -0.5f));
+        assertEquals(MicroBitEvents.MES_DPAD_BUTTON_4_DOWN, TiltDrive.direction(0.1f, 0.3f));
+        assertEquals(MicroBitEvents.MES_DPAD_BUTTON_3_DOWN, TiltDrive.direction(-0.1f, -0.3f));
+    }
+
+    @Test
+    public void sendsADirectionOnlyWhenItChanges() {
+        tilt(0, 5);
+        tick();
+        assertEquals(0, mSink.events.size());
+
+        tilt(0, 20);
+        tick();
+        tick();
+        tilt(3, 40);
+        tick();
+        assertEquals(1, mSink.events.size());
+        assertEvent(0, DPAD, MicroBitEvents.MES_DPAD_BUTTON_1_DOWN);
+        assertEquals(1, mDrive.getSpeed(), 1e-5);
+
+        tilt(-25, 10);
+        tick();
+        tilt(0, 0);
+        tick();
+        assertEquals(3, mSink.events.size());
+        assertEvent(1, DPAD, MicroBitEvents.MES_DPAD_BUTTON_3_DOWN);
+        assertEvent(2, DPAD, MicroBitEvents.MES_DPAD_BUTTON_1_UP);
+    }
+
+    @Test
+    public void calibrationSetsTheNeutralPosition() {
+        tilt(0, 20);
+        mDrive.calibrate();
+        tick();
+        assertEquals(0, mDrive.getSpeed(), 1e-5);
+        assertEquals(0, mSink.events.size());
+
+        // flat is now tilted back
+        tilt(0, 0);
+        tick();
+        assertEvent(0, DPAD, MicroBitEvents.MES_DPAD_BUTTON_2_DOWN);
+    }
+
+    @Test
+    public void analogModeSendsClampedSpeedAndTurn() {
+        mDrive.setMode(TiltDrive.Mode.ANALOG);
+        tilt(-60, 50);
+        tick();
+
+        assertEquals(1, mDrive.getSpeed(), 0);
+        assertEquals(-1, mDrive.getTurn(), 0);
+        assertEquals(2, mSink.events.size());
+        assertEvent(0, MicroBitEvents.MOVEMINI_SPEED_ID, 100);
+        assertEvent(1, MicroBitEvents.MOVEMINI_TURN_ID, -100);
+
+        mDrive.stop(mNow);
+        assertEvent(2, MicroBitEvents.MOVEMINI_SPEED_ID, 0);
+        assertEvent(3, MicroBitEvents.MOVEMINI_TURN_ID, 0);
+    }
+
+    @Test
+    public void nothingIsSentWithoutAnEstimate() {
+        tick();
+
+        assertEquals(0, mSink.events.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fullTiltMustExceedTheDeadZone() {
+        mDrive.setRange(FULL_TILT, DEAD_ZONE);
+    }
+}
@@ -0,0 +1,129 @@
+package microbit.movemini;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TiltFilterTest {
+
+    private static final float G = 9.81f;
+    private static final long STEP = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final float TILT = (float) Math.toRadians(20);
+
+    /**
+     * Feeds the gravity of a phone with its top edge raised by the given pitch.
+     */
+    private static void pitched(TiltFilter filter, float pitch, long timestamp) {
+        filter.onAccelerometer(0, (float) (G * Math.sin(pitch)), (float) (G * Math.cos(pitch)), timestamp);
+    }
+
+    @Test
+    public void firstSampleIsTakenAsIs() {
+        TiltFilter filter = new TiltFilter();
+        assertFalse(filter.hasEstimate());
+
+        // right edge down
+        filter.onAccelerometer((float) (-G * Math.sin(TILT)), 0, (float) (G * Math.cos(TILT)), 0);
+
+        assertTrue(filter.hasEstimate());
+        assertEquals(TILT, filter.getRoll(), 1e-5);
+        assertEquals(0, filter.getPitch(), 1e-5);
+    }
+
+    @Test
+    public void accelerometerAloneConvergesWithTheTimeConstant() {
+        TiltFilter filter = new TiltFilter(0.3f);
+        pitched(filter, 0, 0);
+
+        pitched(filter, TILT, STEP);
+        float first = filter.getPitch();
+        assertTrue("moved " + first, first > 0 && first < TILT / 10);
+
+        // one time constant leaves about 1/e of the step
+        long at = STEP;
+        for (int i = 1; i < 30; i++) {
+            at += STEP;
+            pitched(filter, TILT, at);
+        }
+        assertEquals(TILT * (1 - 1 / Math.E), filter.getPitch(), TILT * 0.02);
+
+        for (int i = 0; i < 300; i++) {
+            at += STEP;
+            pitched(filter, TILT, at);
+        }
+        assertEquals(TILT, filter.getPitch(), 1e-3);
+        assertEquals(331, filter.getSampleCount());
+    }
+
+    @Test
+    public void gyroscopeIsIntegrated() {
+        // gravity hardly pulls back within the test
+        TiltFilter filter = new TiltFilter(100);
+        pitched(filter, 0, 0);
+        filter.onGyroscope(0, 0, 0, 0);
+
+        long at = 0;
+        for (int i = 0; i < 10; i++) {
+            at += STEP;
+            filter.onGyroscope(1, -2, 0, at);
+        }
+
+        assertEquals(0.1, filter.getPitch(), 0.002);
+        assertEquals(-0.2, filter.getRoll(), 0.004);
+    }
+
+    @Test
+    public void gravityRemovesTheGyroscopeDrift() {
+        TiltFilter filter = new TiltFilter(0.3f);
+        pitched(filter, 0, 0);
+        filter.onGyroscope(0, 0, 0, 0);
+
+        // a bias of 0.05 rad/s integrates to 0.5 rad in 10 s
+        long at = 0;
+        for (int i = 0; i < 1000; i++) {
+            at += STEP;
+            pitched(filter, 0, at);
+            filter.onGyroscope(0.05f, 0, 0, at);
+        }
+
+        // what is left is the bias times the time constant
+        assertEquals(0.015, filter.getPitch(), 0.002);
+    }
+
+    @Test
+    public void longGapIsNotIntegrated() {
+        TiltFilter filter = new TiltFilter(100);
+        pitched(filter, 0, 0);
+        filter.onGyroscope(0, 0, 0, 0);
+
+        filter.onGyroscope(1, 1, 0, TimeUnit.SECONDS.toNanos(1));
+
+        assertEquals(0, filter.getPitch(), 1e-6);
+        assertEquals(0, filter.getRoll(), 1e-6);
+    }
+
+    @Test
+    public void resetForgetsTheSamples() {
+        TiltFilter filter = new TiltFilter();
+        pitched(filter, TILT, 0);
+
+        filter.reset();
+        assertFalse(filter.hasEstimate());
+        assertEquals(0, filter.getPitch(), 0);
+        // no gravity to anchor to yet
+        filter.onGyroscope(1, 1, 0, STEP);
+        assertFalse(filter.hasEstimate());
+
+        pitched(filter, -TILT, 2 * STEP);
+        assertEquals(-TILT, filter.getPitch(), 1e-5);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void timeConstantMustBePositive() {
+        new TiltFilter(0);
+    }
+}
@@ -0,0 +1,213 @@
+package microbit.movemini;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WriteFlowControlTest {
+
+    private static final long COMPLETION_TIMEOUT_MS = 500;
+
+    private SimulatedMicroBit mRobot;
+    private CoalescingCommandQueue mQueue;
+    private CommandWriter mWriter;
+    private volatile CountDownLatch mLinkUp;
+    // completions the link loses before they reach the writer
+    private final AtomicInteger mCompletionsToLose = new AtomicInteger();
+
+    @After
+    public void tearDown() {
+        if (mRobot != null) {
+            mRobot.dropLink();
+            mWriter.stop();
+            mRobot.shutdown();
+        }
+    }
+
+    private void connect(long latencyMicros) throws InterruptedException {
+        mRobot = new SimulatedMicroBit(latencyMicros, RobotTransport.DEFAULT_MTU, 0, 1);
+        mQueue = new CoalescingCommandQueue(16);
+        mWriter = new CommandWriter(mQueue, mRobot);
+        mRobot.setCallback(new RobotTransport.Callback() {
+            @Override
+            public void onLinkUp() {
+                // a new link starts without the writes of the old one, see RobotSession
+                mWriter.discardHeldPacket();
+                mWriter.getFlowControl().reset();
+                mLinkUp.countDown();
+            }
+
+            @Override
+            public void onLinkDown() {
+            }
+
+            @Override
+            public void onWriteComplete(boolean success) {
+                if (mCompletionsToLose.get() > 0 && mCompletionsToLose.getAndDecrement() > 0) {
+                    return;
+                }
+                mWriter.onWriteComplete(success);
+            }
+
+            @Override
+            public void onPacketReceived(byte[] data, int length) {
+            }
+
+            @Override
+            public void onRssiRead(int rssi) {
+            }
+        });
+        open();
+    }
+
+    private void open() throws InterruptedException {
+        mLinkUp = new CountDownLatch(1);
+        mRobot.open();
+        assertTrue("link did not come up", mLinkUp.await(1, TimeUnit.SECONDS));
+    }
+
+    private void awaitReceived(long count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (mRobot.getReceivedCount() < count && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(count, mRobot.getReceivedCount());
+    }
+
+    private void awaitInFlight(int inFlight) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (mWriter.getFlowControl().getInFlight() != inFlight && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(inFlight, mWriter.getFlowControl().getInFlight());
+    }
+
+    @Test
+    public void acquireWaitsWhileTheWindowIsFull() throws InterruptedException {
+        final WriteFlowControl flowControl = new WriteFlowControl(2, COMPLETION_TIMEOUT_MS);
+        flowControl.acquire();
+        flowControl.acquire();
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flowControl.acquire();
+                    acquired.countDown();
+                } catch (InterruptedException e) {
+                    // test ended
+                }
+            }
+        });
+        thread.start();
+
+        assertFalse(acquired.await(50, TimeUnit.MILLISECONDS));
+        assertEquals(2, flowControl.getInFlight());
+        flowControl.complete(true);
+        assertTrue(acquired.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(2, flowControl.getInFlight());
+        assertEquals(1, flowControl.getCompletedCount());
+        assertEquals(0, flowControl.getTimedOutCount());
+        thread.join();
+    }
+
+    @Test
+    public void tryAcquireTakesOnlyAFreeCredit() {
+        WriteFlowControl flowControl = new WriteFlowControl(1, COMPLETION_TIMEOUT_MS);
+
+        assertTrue(flowControl.tryAcquire());
+        assertFalse(flowControl.tryAcquire());
+        // the write was never issued
+        flowControl.cancel();
+        assertEquals(0, flowControl.getInFlight());
+        assertTrue(flowControl.tryAcquire());
+        assertEquals(1, flowControl.getInFlight());
+        assertEquals(0, flowControl.getCompletedCount());
+    }
+
+    @Test
+    public void reclaimsTheCreditOfALostCompletion() throws InterruptedException {
+        connect(0);
+        mCompletionsToLose.set(1);
+        mQueue.offer(MicroBitEvents.MOVEMINI_SPEED_ID, 1);
+        assertTrue(mWriter.writeNext());
+        awaitReceived(1);
+
+        mQueue.offer(MicroBitEvents.MOVEMINI_SPEED_ID, 2);
+        long start = System.nanoTime();
+        assertTrue(mWriter.writeNext());
+        long waited = System.nanoTime() - start;
+        awaitReceived(2);
+
+        WriteFlowControl flowControl = mWriter.getFlowControl();
+        assertEquals(1, flowControl.getTimedOutCount());
+        assertTrue("waited " + waited + " ns", waited >= TimeUnit.MILLISECONDS.toNanos(COMPLETION_TIMEOUT_MS - 50));
+        assertTrue("waited " + waited + " ns", waited < TimeUnit.MILLISECONDS.toNanos(COMPLETION_TIMEOUT_MS * 3));
+        awaitInFlight(0);
+    }
+
+    @Test
+    public void resetReleasesTheCreditsOfTheOldLink() throws InterruptedException {
+        connect(0);
+        mCompletionsToLose.set(1);
+        mQueue.offer(MicroBitEvents.MOVEMINI_SPEED_ID, 1);
+        assertTrue(mWriter.writeNext());
+        awaitReceived(1);
+        assertEquals(1, mWriter.getFlowControl().getInFlight());
+
+        mRobot.dropLink();
+        open();
+        assertEquals(0, mWriter.getFlowControl().getInFlight());
+
+        mQueue.offer(MicroBitEvents.MOVEMINI_SPEED_ID, 2);
+        long start = System.nanoTime();
+        assertTrue(mWriter.writeNext());
+        long waited = System.nanoTime() - start;
+        awaitReceived(2);
+
+        assertEquals(0, mWriter.getFlowControl().getTimedOutCount());
+        assertTrue("waited " + waited + " ns", waited < TimeUnit.MILLISECONDS.toNanos(COMPLETION_TIMEOUT_MS / 2));
+    }
+
+    @Test
+    public void failedWriteStillDeliversTheStop() throws InterruptedException {
+        connect(200);
+        mWriter.start();
+        mQueue.offer(MicroBitEvents.MES_DPAD_CONTROLLER_ID, MicroBitEvents.MES_DPAD_BUTTON_1_DOWN);
+        awaitReceived(1);
+        assertEquals(SimulatedMicroBit.Motion.FORWARD, mRobot.getMotion());
+
+        mRobot.failNextWrites(1);
+        mQueue.offer(MicroBitEvents.MES_DPAD_CONTROLLER_ID, MicroBitEvents.MES_DPAD_BUTTON_1_UP);
+        awaitReceived(2);
+
+        assertEquals(SimulatedMicroBit.Motion.STOPPED, mRobot.getMotion());
+        assertEquals(1, mWriter.getFlowControl().getFailedCount());
+        assertEquals(1, mWriter.getRedeliveredCount());
+        assertEquals(3, mWriter.getWriteCount());
+    }
+
+    @Test
+    public void failedWriteIsSentBeforeANewerCommand() throws InterruptedException {
+        connect(TimeUnit.MILLISECONDS.toMicros(20));
+        mWriter.start();
+        mRobot.failNextWrites(1);
+
+        mQueue.offer(MicroBitEvents.MES_DPAD_CONTROLLER_ID, MicroBitEvents.MES_DPAD_BUTTON_1_DOWN);
+        awaitInFlight(1);
+        // held by the writer until the failed write completes
+        mQueue.offer(MicroBitEvents.MES_DPAD_CONTROLLER_ID, MicroBitEvents.MES_DPAD_BUTTON_1_UP);
+        awaitReceived(2);
+
+        // forward was written again first, the newer stop still wins
+        assertEquals(SimulatedMicroBit.Motion.STOPPED, mRobot.getMotion());
+        assertEquals(1, mWriter.getRedeliveredCount());
+    }
+}
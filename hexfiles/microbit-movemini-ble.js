@@ -0,0 +1,127 @@
+// MakeCode JavaScript source of the :MOVE mini program, with the analog speed and turn
+// handlers, the echo handler and the heartbeat watchdog. Paste it into the JavaScript view of
+// https://makecode.microbit.org, add the bluetooth extension and download a new hex file;
+// microbit-movemini-ble.hex in this directory was built from the blocks in the screenshot
+// and only handles the D-pad events.
+//
+// The :MOVE mini wheels are continuous rotation servos on P1 (right) and P2 (left).
+
+let moving = false
+// time the last event from the app arrived
+let lastEventAt = 0
+// set by the first heartbeat, 0 keeps the watchdog off for apps that send none
+let deadline = 0
+// analog driving, percent in -100..100, positive turns right
+let speed = 0
+let turn = 0
+
+function driveForward() {
+    pins.servoWritePin(AnalogPin.P1, 0)
+    pins.servoWritePin(AnalogPin.P2, 180)
+}
+
+function driveBackward() {
+    pins.servoWritePin(AnalogPin.P1, 180)
+    pins.servoWritePin(AnalogPin.P2, 0)
+}
+
+function turnLeft() {
+    pins.servoWritePin(AnalogPin.P1, 0)
+    pins.servoWritePin(AnalogPin.P2, 0)
+}
+
+function turnRight() {
+    pins.servoWritePin(AnalogPin.P1, 180)
+    pins.servoWritePin(AnalogPin.P2, 180)
+}
+
+function stop() {
+    pins.digitalWritePin(DigitalPin.P1, 0)
+    pins.digitalWritePin(DigitalPin.P2, 0)
+    moving = false
+    speed = 0
+    turn = 0
+}
+
+// event values arrive as unsigned 16 bit
+function signedPercent(value: number) {
+    if (value > 32767) {
+        value -= 65536
+    }
+    return Math.max(-100, Math.min(100, value))
+}
+
+// mixes speed and turn into the wheel speeds, 90 is the servo standstill
+function driveAnalog() {
+    if (speed == 0 && turn == 0) {
+        stop()
+        return
+    }
+    let left = Math.max(-100, Math.min(100, speed + turn))
+    let right = Math.max(-100, Math.min(100, speed - turn))
+    pins.servoWritePin(AnalogPin.P1, 90 - right * 9 / 10)
+    pins.servoWritePin(AnalogPin.P2, 90 + left * 9 / 10)
+    moving = true
+}
+
+bluetooth.onBluetoothConnected(function () {
+    basic.showIcon(IconNames.Happy)
+})
+
+bluetooth.onBluetoothDisconnected(function () {
+    stop()
+    deadline = 0
+    basic.showIcon(IconNames.Sad)
+})
+
+control.onEvent(EventBusSource.MES_DPAD_CONTROLLER_ID, EventBusValue.MICROBIT_EVT_ANY, function () {
+    lastEventAt = input.runningTime()
+    if (control.eventValue() == EventBusValue.MES_DPAD_BUTTON_1_DOWN) {
+        driveForward()
+        moving = true
+    } else if (control.eventValue() == EventBusValue.MES_DPAD_BUTTON_2_DOWN) {
+        driveBackward()
+        moving = true
+    } else if (control.eventValue() == EventBusValue.MES_DPAD_BUTTON_3_DOWN) {
+        turnLeft()
+        moving = true
+    } else if (control.eventValue() == EventBusValue.MES_DPAD_BUTTON_4_DOWN) {
+        turnRight()
+        moving = true
+    } else if (control.eventValue() == EventBusValue.MES_DPAD_BUTTON_1_UP) {
+        stop()
+    }
+})
+
+// analog speed and turn of the joystick and the tilt steering
+control.onEvent(9010, EventBusValue.MICROBIT_EVT_ANY, function () {
+    lastEventAt = input.runningTime()
+    speed = signedPercent(control.eventValue())
+    driveAnalog()
+})
+
+control.onEvent(9011, EventBusValue.MICROBIT_EVT_ANY, function () {
+    lastEventAt = input.runningTime()
+    turn = signedPercent(control.eventValue())
+    driveAnalog()
+})
+
+// echo for the latency measurement of the app
+control.onEvent(9012, EventBusValue.MICROBIT_EVT_ANY, function () {
+    lastEventAt = input.runningTime()
+    control.raiseEvent(9013, control.eventValue())
+})
+
+// heartbeat, the value is the deadline in ms
+control.onEvent(9014, EventBusValue.MICROBIT_EVT_ANY, function () {
+    lastEventAt = input.runningTime()
+    deadline = control.eventValue()
+})
+
+// watchdog: stop when the app went silent while the robot moves
+basic.forever(function () {
+    if (moving && deadline > 0 && input.runningTime() - lastEventAt > deadline) {
+        stop()
+    }
+    basic.pause(20)
+})